@@ -0,0 +1,47 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Decode throughput of new Instruction(hex) over the words of every workload
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DecodeBenchmark {
+    private String[] hex;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        StringBuilder all = new StringBuilder();
+        for(Workloads.Program program : Workloads.all(1000)){
+            for(int word : program.text){
+                all.append(String.format("%08x", word)).append('\n');
+            }
+        }
+        hex = all.toString().split("\n");
+    }
+
+    @Benchmark
+    public Object decode(){
+        String word = hex[next];
+        next = next + 1 == hex.length ? 0 : next + 1;
+        return Guest.decode(word);
+    }
+}
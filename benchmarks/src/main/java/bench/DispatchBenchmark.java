@@ -0,0 +1,226 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Switching on the mnemonic String against switching on the dense operation
+code from Instruction.getOperation(). Both loops run the same decoded
+ALU/branch loop with identical semantics; the simulator benchmark is the real
+MIPSSimulator running the same program.
+The decoded fields are copied out of the Instructions up front, since calling
+getters through the Guest handles would cost more than the dispatch itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DispatchBenchmark {
+    //Case labels have to be constants, so these mirror Instruction.OP_*.
+    //setup() checks them against the real values.
+    private static final int OP_ADDIU = 2;
+    private static final int OP_AND = 3;
+    private static final int OP_BNE = 6;
+    private static final int OP_LUI = 8;
+    private static final int OP_OR = 10;
+    private static final int OP_ORI = 11;
+    private static final int OP_SLT = 12;
+    private static final int OP_SUB = 13;
+    private static final int OP_SYSCALL = 15;
+
+    @Param({"100000"})
+    public int iterations;
+
+    private Workloads.Program program;
+    private String[] mnemonic;
+    private int[] operation;
+    private int[] rs;
+    private int[] rt;
+    private int[] rd;
+    private int[] immediate;
+    private int[] unsignedImmediate;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        checkOperation("OP_ADDIU", OP_ADDIU);
+        checkOperation("OP_AND", OP_AND);
+        checkOperation("OP_BNE", OP_BNE);
+        checkOperation("OP_LUI", OP_LUI);
+        checkOperation("OP_OR", OP_OR);
+        checkOperation("OP_ORI", OP_ORI);
+        checkOperation("OP_SLT", OP_SLT);
+        checkOperation("OP_SUB", OP_SUB);
+        checkOperation("OP_SYSCALL", OP_SYSCALL);
+
+        program = new Workloads.Program("dispatchLoop", buildLoop(iterations), new int[0]);
+        int length = program.text.length;
+        mnemonic = new String[length];
+        operation = new int[length];
+        rs = new int[length];
+        rt = new int[length];
+        rd = new int[length];
+        immediate = new int[length];
+        unsignedImmediate = new int[length];
+        for(int i = 0; i < length; i++){
+            Object inst = Guest.decode(String.format("%08x", program.text[i]));
+            mnemonic[i] = (String)Guest.field(inst, "getMnemonic");
+            operation[i] = (int)Guest.field(inst, "getOperation");
+            rs[i] = (int)Guest.field(inst, "getRs");
+            rt[i] = (int)Guest.field(inst, "getRt");
+            rd[i] = (int)Guest.field(inst, "getRd");
+            immediate[i] = (int)Guest.field(inst, "getImmediate");
+            unsignedImmediate[i] = (int)Guest.field(inst, "getUnsignedImmediate");
+        }
+    }
+
+    //The old main loop: one String switch per instruction
+    @Benchmark
+    public int mnemonicSwitch(Retired retired){
+        int[] reg = new int[32];
+        int pc = 0;
+        long count = 0;
+        boolean done = false;
+        while(pc < mnemonic.length && !done){
+            int i = pc;
+            ++pc;
+            ++count;
+            switch(mnemonic[i]){
+                case "addiu":
+                    reg[rt[i]] = reg[rs[i]] + immediate[i];
+                    break;
+                case "and":
+                    reg[rd[i]] = reg[rs[i]] & reg[rt[i]];
+                    break;
+                case "or":
+                    reg[rd[i]] = reg[rs[i]] | reg[rt[i]];
+                    break;
+                case "slt":
+                    reg[rd[i]] = reg[rs[i]] < reg[rt[i]] ? 1 : 0;
+                    break;
+                case "sub":
+                    reg[rd[i]] = reg[rs[i]] - reg[rt[i]];
+                    break;
+                case "lui":
+                    reg[rt[i]] = unsignedImmediate[i] << 16;
+                    break;
+                case "ori":
+                    reg[rt[i]] = reg[rs[i]] | unsignedImmediate[i];
+                    break;
+                case "bne":
+                    if(reg[rs[i]] != reg[rt[i]]){
+                        pc += immediate[i];
+                    }
+                    break;
+                case "syscall":
+                    done = true;
+                    break;
+            }
+        }
+        retired.instructions += count;
+        return reg[11];
+    }
+
+    //The new main loop: a tableswitch on the operation code
+    @Benchmark
+    public int operationSwitch(Retired retired){
+        int[] reg = new int[32];
+        int pc = 0;
+        long count = 0;
+        boolean done = false;
+        while(pc < operation.length && !done){
+            int i = pc;
+            ++pc;
+            ++count;
+            switch(operation[i]){
+                case OP_ADDIU:
+                    reg[rt[i]] = reg[rs[i]] + immediate[i];
+                    break;
+                case OP_AND:
+                    reg[rd[i]] = reg[rs[i]] & reg[rt[i]];
+                    break;
+                case OP_OR:
+                    reg[rd[i]] = reg[rs[i]] | reg[rt[i]];
+                    break;
+                case OP_SLT:
+                    reg[rd[i]] = reg[rs[i]] < reg[rt[i]] ? 1 : 0;
+                    break;
+                case OP_SUB:
+                    reg[rd[i]] = reg[rs[i]] - reg[rt[i]];
+                    break;
+                case OP_LUI:
+                    reg[rt[i]] = unsignedImmediate[i] << 16;
+                    break;
+                case OP_ORI:
+                    reg[rt[i]] = reg[rs[i]] | unsignedImmediate[i];
+                    break;
+                case OP_BNE:
+                    if(reg[rs[i]] != reg[rt[i]]){
+                        pc += immediate[i];
+                    }
+                    break;
+                case OP_SYSCALL:
+                    done = true;
+                    break;
+            }
+        }
+        retired.instructions += count;
+        return reg[11];
+    }
+
+    //The real simulator on the same program, without the JIT
+    @Benchmark
+    public int simulator(Retired retired){
+        Object sim = Guest.load(program, false);
+        int exitCode = Guest.run(sim);
+        retired.instructions += Guest.instructionCount(sim);
+        return exitCode;
+    }
+
+    private static void checkOperation(String name, int value){
+        if(Guest.operation(name) != value){
+            throw new IllegalStateException("Instruction." + name + " is no longer " + value);
+        }
+    }
+
+    /*
+    Counts $t0 down from iterations, doing some ALU work every time around.
+    $t0 = 8, $t1 = 9, $t2 = 10, $t3 = 11
+     */
+    private static int[] buildLoop(int iterations){
+        return new int[]{
+                iType(0x0f, 0, 8, iterations >>> 16),       //lui $t0, hi
+                iType(0x0d, 8, 8, iterations),              //ori $t0, $t0, lo
+                iType(0x09, 9, 9, 3),                       //loop: addiu $t1, $t1, 3
+                rType(0x24, 9, 8, 10),                      //and $t2, $t1, $t0
+                rType(0x25, 10, 9, 11),                     //or $t3, $t2, $t1
+                rType(0x2a, 11, 8, 10),                     //slt $t2, $t3, $t0
+                rType(0x22, 11, 10, 11),                    //sub $t3, $t3, $t2
+                iType(0x09, 8, 8, -1),                      //addiu $t0, $t0, -1
+                iType(0x05, 8, 0, -7),                      //bne $t0, $zero, loop
+                iType(0x09, 0, 2, 10),                      //addiu $v0, $zero, 10
+                0x0000000c                                  //syscall
+        };
+    }
+
+    private static int rType(int funct, int rs, int rt, int rd){
+        return (rs << 21) | (rt << 16) | (rd << 11) | funct;
+    }
+
+    private static int iType(int opcode, int rs, int rt, int immediate){
+        return (opcode << 26) | (rs << 21) | (rt << 16) | (immediate & 0xffff);
+    }
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Interpreter only, with and without superinstructions. The "instructions" and
+"fused" counters are guest instructions per second, all of them and those
+that ran fused, so fused / instructions is the fusion hit rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class FusionBenchmark {
+    @Param({"tightLoop", "memoryStream", "branchHeavy", "aluOps", "branchOps", "loadStoreOps"})
+    public String workload;
+
+    @Param({"true", "false"})
+    public boolean fusion;
+
+    @Param({"1000000"})
+    public int size;
+
+    private Workloads.Program program;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counts {
+        public long instructions;
+        public long fused;
+
+        @Setup(Level.Iteration)
+        public void reset(){
+            instructions = 0;
+            fused = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup(){
+        program = Workloads.byName(workload, size);
+    }
+
+    @Benchmark
+    public int run(Counts counts){
+        Object sim = Guest.load(program, false, fusion);
+        int exitCode = Guest.run(sim);
+        counts.instructions += Guest.instructionCount(sim);
+        counts.fused += Guest.fusedInstructionCount(sim);
+        return exitCode;
+    }
+}
@@ -0,0 +1,133 @@
+package bench;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/*
+The simulator lives in the default package, which Java code in a named
+package cannot reference, and JMH refuses benchmarks in the default package.
+These handles bridge the two. They are static final, so HotSpot treats
+them as constants and inlines through them.
+ */
+final class Guest {
+    private static final MethodHandle NEW_SIMULATOR;
+    private static final MethodHandle LOAD_PROGRAM;
+    private static final MethodHandle RUN;
+    private static final MethodHandle INSTRUCTION_COUNT;
+    private static final MethodHandle SET_JIT_ENABLED;
+    private static final MethodHandle SET_FUSION_ENABLED;
+    private static final MethodHandle FUSED_INSTRUCTION_COUNT;
+    private static final MethodHandle NEW_INSTRUCTION;
+    private static final MethodHandle SET_SYSCALL_IO;
+    private static final MethodHandle NEW_STREAM_IO;
+
+    static {
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> simulator = Class.forName("MIPSSimulator");
+            Class<?> instruction = Class.forName("Instruction");
+            NEW_SIMULATOR = lookup.findConstructor(simulator, MethodType.methodType(void.class));
+            LOAD_PROGRAM = lookup.findVirtual(simulator, "loadProgram",
+                    MethodType.methodType(void.class, int[].class, int[].class));
+            RUN = lookup.findVirtual(simulator, "run", MethodType.methodType(int.class));
+            INSTRUCTION_COUNT = lookup.findVirtual(simulator, "getInstructionCount", MethodType.methodType(long.class));
+            SET_JIT_ENABLED = lookup.findVirtual(simulator, "setJitEnabled",
+                    MethodType.methodType(void.class, boolean.class));
+            SET_FUSION_ENABLED = lookup.findVirtual(simulator, "setFusionEnabled",
+                    MethodType.methodType(void.class, boolean.class));
+            FUSED_INSTRUCTION_COUNT = lookup.findVirtual(simulator, "getFusedInstructionCount",
+                    MethodType.methodType(long.class));
+            NEW_INSTRUCTION = lookup.findConstructor(instruction, MethodType.methodType(void.class, String.class));
+            Class<?> syscallIO = Class.forName("SyscallIO");
+            SET_SYSCALL_IO = lookup.findVirtual(simulator, "setSyscallIO", MethodType.methodType(void.class, syscallIO));
+            NEW_STREAM_IO = lookup.findConstructor(Class.forName("StreamSyscallIO"),
+                    MethodType.methodType(void.class, InputStream.class, OutputStream.class));
+        }
+        catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Guest() {
+    }
+
+    //New simulator with the program loaded. Guest output is discarded.
+    static Object load(Workloads.Program program, boolean jit){
+        return load(program, jit, true);
+    }
+
+    static Object load(Workloads.Program program, boolean jit, boolean fusion){
+        try{
+            Object sim = NEW_SIMULATOR.invoke();
+            SET_SYSCALL_IO.invoke(sim, NEW_STREAM_IO.invoke(InputStream.nullInputStream(), OutputStream.nullOutputStream()));
+            SET_JIT_ENABLED.invoke(sim, jit);
+            SET_FUSION_ENABLED.invoke(sim, fusion);
+            LOAD_PROGRAM.invoke(sim, program.text, program.data);
+            return sim;
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static int run(Object sim){
+        try{
+            return (int)RUN.invoke(sim);
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static long instructionCount(Object sim){
+        try{
+            return (long)INSTRUCTION_COUNT.invoke(sim);
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static long fusedInstructionCount(Object sim){
+        try{
+            return (long)FUSED_INSTRUCTION_COUNT.invoke(sim);
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static Object decode(String hex){
+        try{
+            return NEW_INSTRUCTION.invoke(hex);
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Calls an int or String getter of a decoded Instruction, e.g. "getRt".
+    //Looked up on every call, so only for setup code.
+    static Object field(Object instruction, String getter){
+        try{
+            return MethodHandles.publicLookup().findVirtual(instruction.getClass(), getter,
+                    MethodType.methodType(getter.equals("getMnemonic") ? String.class : int.class)).invoke(instruction);
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Value of one of the Instruction.OP_* constants
+    static int operation(String name){
+        try{
+            return (int)MethodHandles.publicLookup().findStaticGetter(Class.forName("Instruction"), name, int.class).invoke();
+        }
+        catch(Throwable e){
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+Per-op microbenchmarks. Each workload is a loop dominated by one kind of
+instruction, so the "instructions" counter approximates that op's rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class OpBenchmark {
+    @Param({"true", "false"})
+    public boolean jit;
+
+    @Param({"100000"})
+    public int size;
+
+    private Workloads.Program alu;
+    private Workloads.Program branch;
+    private Workloads.Program loadStore;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        alu = Workloads.aluOps(size);
+        branch = Workloads.branchOps(size);
+        loadStore = Workloads.loadStoreOps(size);
+    }
+
+    @Benchmark
+    public int alu(Retired retired){
+        return run(alu, retired);
+    }
+
+    @Benchmark
+    public int branch(Retired retired){
+        return run(branch, retired);
+    }
+
+    @Benchmark
+    public int loadStore(Retired retired){
+        return run(loadStore, retired);
+    }
+
+    private int run(Workloads.Program program, Retired retired){
+        Object sim = Guest.load(program, jit);
+        int exitCode = Guest.run(sim);
+        retired.instructions += Guest.instructionCount(sim);
+        return exitCode;
+    }
+}
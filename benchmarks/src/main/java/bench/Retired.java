@@ -0,0 +1,22 @@
+package bench;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/*
+Counts guest instructions retired, so JMH reports instructions per second
+next to runs per second.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class Retired {
+    public long instructions;
+
+    @Setup(Level.Iteration)
+    public void reset(){
+        instructions = 0;
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+End to end: load a workload into a fresh simulator and run it to the exit
+syscall. The "instructions" counter is guest instructions per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SimulatorBenchmark {
+    @Param({"tightLoop", "memoryStream", "branchHeavy", "syscallHeavy"})
+    public String workload;
+
+    @Param({"true", "false"})
+    public boolean jit;
+
+    @Param({"1000000"})
+    public int size;
+
+    private Workloads.Program program;
+
+    @Setup(Level.Trial)
+    public void setup(){
+        program = Workloads.byName(workload, size);
+    }
+
+    @Benchmark
+    public int run(Retired retired){
+        Object sim = Guest.load(program, jit);
+        int exitCode = Guest.run(sim);
+        retired.instructions += Guest.instructionCount(sim);
+        return exitCode;
+    }
+}
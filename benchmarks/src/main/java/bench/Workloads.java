@@ -0,0 +1,323 @@
+package bench;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Synthetic guest programs for the benchmarks.
+Every program ends with the exit syscall so it finishes with exit code 0.
+Running main writes each one as a .text/.data pair in the same hex format
+as TestFiles, e.g. <dir>/tightLoop/tightLoop.text
+ */
+public final class Workloads {
+    //Register numbers
+    private static final int ZERO = 0;
+    private static final int V0 = 2;
+    private static final int A0 = 4;
+    private static final int T0 = 8;
+    private static final int T1 = 9;
+    private static final int T2 = 10;
+    private static final int T3 = 11;
+    private static final int T4 = 12;
+    private static final int T5 = 13;
+
+    //Upper half of the .data address 0x10010000
+    private static final int DATA_HIGH = 0x1001;
+
+    private Workloads() {
+    }
+
+    public static final class Program {
+        final String name;
+        final int[] text;
+        final int[] data;
+
+        Program(String name, int[] text, int[] data) {
+            this.name = name;
+            this.text = text;
+            this.data = data;
+        }
+    }
+
+    /*
+    Workload by name, sized to run roughly size loop iterations.
+    memoryStream does 4096 stores and loads per pass, so size is divided down.
+     */
+    public static Program byName(String name, int size){
+        switch(name){
+            case "tightLoop":
+                return tightLoop(size);
+            case "memoryStream":
+                return memoryStream(Math.max(1, size / 4096));
+            case "branchHeavy":
+                return branchHeavy(size);
+            case "syscallHeavy":
+                return syscallHeavy(size);
+            case "aluOps":
+                return aluOps(size);
+            case "branchOps":
+                return branchOps(size);
+            case "loadStoreOps":
+                return loadStoreOps(size);
+            default:
+                throw new IllegalArgumentException("Unknown workload " + name);
+        }
+    }
+
+    //Counter loop with a mix of ALU ops
+    public static Program tightLoop(int iterations){
+        Asm asm = new Asm();
+        asm.loadConstant(T0, iterations);
+        asm.label("loop");
+        asm.addiu(T1, T1, 3);
+        asm.rType(0x24, T1, T0, T2);        //and
+        asm.rType(0x25, T2, T1, T3);        //or
+        asm.rType(0x2a, T3, T0, T2);        //slt
+        asm.rType(0x22, T3, T2, T3);        //sub
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "loop");
+        asm.exit();
+        return asm.program("tightLoop", new int[0]);
+    }
+
+    //Fill 4096 words of .data with sw, then sum them back with lw, size times
+    public static Program memoryStream(int passes){
+        int words = 4096;
+        Asm asm = new Asm();
+        asm.loadConstant(T4, passes);
+        asm.label("pass");
+        asm.lui(T1, DATA_HIGH);
+        asm.loadConstant(T0, words);
+        asm.label("fill");
+        asm.sw(T0, T1, 0);
+        asm.addiu(T1, T1, 4);
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "fill");
+        asm.lui(T1, DATA_HIGH);
+        asm.loadConstant(T0, words);
+        asm.label("sum");
+        asm.lw(T2, T1, 0);
+        asm.rType(0x20, T3, T2, T3);        //add
+        asm.addiu(T1, T1, 4);
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "sum");
+        asm.addiu(T4, T4, -1);
+        asm.bne(T4, ZERO, "pass");
+        asm.exit();
+        return asm.program("memoryStream", new int[0]);
+    }
+
+    //Data dependent branches that change direction every iteration
+    public static Program branchHeavy(int iterations){
+        Asm asm = new Asm();
+        asm.loadConstant(T0, iterations);
+        asm.label("loop");
+        asm.iType(0x0c, T0, T1, 1);         //andi
+        asm.beq(T1, ZERO, "even");
+        asm.addiu(T2, T2, 1);
+        asm.j("join");
+        asm.label("even");
+        asm.iType(0x0c, T0, T3, 2);         //andi
+        asm.bne(T3, ZERO, "join");
+        asm.addiu(T4, T4, 1);
+        asm.label("join");
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "loop");
+        asm.exit();
+        return asm.program("branchHeavy", new int[0]);
+    }
+
+    //Print an integer and a short string every iteration
+    public static Program syscallHeavy(int iterations){
+        Asm asm = new Asm();
+        asm.loadConstant(T0, iterations);
+        asm.label("loop");
+        asm.addiu(V0, ZERO, 1);
+        asm.rType(0x25, T0, ZERO, A0);      //or $a0, $t0, $zero
+        asm.syscall();
+        asm.addiu(V0, ZERO, 4);
+        asm.lui(A0, DATA_HIGH);
+        asm.syscall();
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "loop");
+        asm.exit();
+        //"ab\n" then the terminating word
+        return asm.program("syscallHeavy", new int[]{0x000a6261, 0x00000000});
+    }
+
+    //Eight register and immediate ALU ops per branch
+    public static Program aluOps(int iterations){
+        Asm asm = new Asm();
+        asm.loadConstant(T0, iterations);
+        asm.label("loop");
+        asm.rType(0x20, T1, T0, T2);        //add
+        asm.rType(0x22, T2, T1, T3);        //sub
+        asm.rType(0x24, T3, T2, T4);        //and
+        asm.rType(0x25, T4, T3, T5);        //or
+        asm.rType(0x2a, T5, T4, T1);        //slt
+        asm.addiu(T1, T1, 7);
+        asm.iType(0x0c, T1, T2, 0xff);      //andi
+        asm.iType(0x0d, T2, T3, 0x100);     //ori
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "loop");
+        asm.exit();
+        return asm.program("aluOps", new int[0]);
+    }
+
+    //Mostly branches: three not taken and one taken per iteration
+    public static Program branchOps(int iterations){
+        Asm asm = new Asm();
+        asm.loadConstant(T0, iterations);
+        asm.label("loop");
+        asm.bne(T1, ZERO, "out");
+        asm.beq(T0, ZERO, "out");
+        asm.bne(T2, ZERO, "out");
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "loop");
+        asm.label("out");
+        asm.exit();
+        return asm.program("branchOps", new int[0]);
+    }
+
+    //Store and reload the same few words every iteration
+    public static Program loadStoreOps(int iterations){
+        Asm asm = new Asm();
+        asm.loadConstant(T0, iterations);
+        asm.lui(T1, DATA_HIGH);
+        asm.label("loop");
+        asm.sw(T0, T1, 0);
+        asm.lw(T2, T1, 0);
+        asm.sw(T2, T1, 4);
+        asm.lw(T3, T1, 4);
+        asm.sw(T3, T1, 8);
+        asm.lw(T4, T1, 8);
+        asm.addiu(T0, T0, -1);
+        asm.bne(T0, ZERO, "loop");
+        asm.exit();
+        return asm.program("loadStoreOps", new int[0]);
+    }
+
+    public static List<Program> all(int size){
+        List<Program> programs = new ArrayList<>();
+        for(String name : new String[]{"tightLoop", "memoryStream", "branchHeavy", "syscallHeavy",
+                "aluOps", "branchOps", "loadStoreOps"}){
+            programs.add(byName(name, size));
+        }
+        return programs;
+    }
+
+    /*
+    Usage: Workloads <output dir> [iterations]
+     */
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(args.length > 0 ? args[0] : "workloads");
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+        for(Program program : all(size)){
+            Path programDir = dir.resolve(program.name);
+            Files.createDirectories(programDir);
+            writeHex(programDir.resolve(program.name + ".text"), program.text);
+            writeHex(programDir.resolve(program.name + ".data"), program.data);
+            System.out.println("wrote " + programDir);
+        }
+    }
+
+    private static void writeHex(Path file, int[] words) throws IOException {
+        try(PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))){
+            for(int word : words){
+                out.printf("%08x%n", word);
+            }
+        }
+    }
+
+    //Minimal encoder with labels for branch and jump targets
+    private static final class Asm {
+        private static final int TEXT_BASE = 0x00400000;
+        private final List<Integer> words = new ArrayList<>();
+        private final Map<String, Integer> labels = new HashMap<>();
+        //Index of branch/jump word -> label it refers to
+        private final Map<Integer, String> fixups = new HashMap<>();
+
+        void label(String name){
+            labels.put(name, words.size());
+        }
+
+        void rType(int funct, int rs, int rt, int rd){
+            words.add((rs << 21) | (rt << 16) | (rd << 11) | funct);
+        }
+
+        void iType(int opcode, int rs, int rt, int immediate){
+            words.add((opcode << 26) | (rs << 21) | (rt << 16) | (immediate & 0xffff));
+        }
+
+        void addiu(int rt, int rs, int immediate){
+            iType(0x09, rs, rt, immediate);
+        }
+
+        void lui(int rt, int immediate){
+            iType(0x0f, 0, rt, immediate);
+        }
+
+        void lw(int rt, int base, int offset){
+            iType(0x23, base, rt, offset);
+        }
+
+        void sw(int rt, int base, int offset){
+            iType(0x2b, base, rt, offset);
+        }
+
+        void beq(int rs, int rt, String label){
+            fixups.put(words.size(), label);
+            iType(0x04, rs, rt, 0);
+        }
+
+        void bne(int rs, int rt, String label){
+            fixups.put(words.size(), label);
+            iType(0x05, rs, rt, 0);
+        }
+
+        void j(String label){
+            fixups.put(words.size(), label);
+            words.add(0x02 << 26);
+        }
+
+        void syscall(){
+            words.add(0x0000000c);
+        }
+
+        void loadConstant(int rt, int value){
+            lui(rt, value >>> 16);
+            iType(0x0d, rt, rt, value);
+        }
+
+        void exit(){
+            addiu(V0, ZERO, 10);
+            syscall();
+        }
+
+        Program program(String name, int[] data){
+            int[] text = new int[words.size()];
+            for(int i = 0; i < text.length; i++){
+                text[i] = words.get(i);
+            }
+            for(Map.Entry<Integer, String> fixup : fixups.entrySet()){
+                int at = fixup.getKey();
+                int target = labels.get(fixup.getValue());
+                if((text[at] >>> 26) == 0x02){
+                    text[at] |= ((TEXT_BASE + (target << 2)) >>> 2) & 0x03ffffff;
+                }
+                else{
+                    //Branch offsets are relative to the next instruction
+                    text[at] |= (target - (at + 1)) & 0xffff;
+                }
+            }
+            return new Program(name, text, data);
+        }
+    }
+}
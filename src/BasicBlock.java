@@ -0,0 +1,127 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/*
+A straight line run of decoded instructions starting at startPc.
+Only the terminator (beq, bne, j, syscall or a breakpoint trap) can change the program counter,
+and its targets are resolved to absolute word indexes when the block is built.
+Successor blocks are linked directly the first time they are reached.
+The interpreter runs fusedBody and fusedTerminator, where BlockCache may have
+replaced common pairs with superinstructions. Everything else (profiling,
+tracing, the JIT) works on the plain body and terminator.
+A fork or hart copies blocks from its parent's cache while the parent runs on
+another thread. BlockCache publishes each block with a release store, which
+covers everything set before that. valid and compiled change afterwards, so
+they are written with release and read with acquire by copy() and isValidAcquire().
+executionCount is only a head start for the copy, so a stale value is harmless.
+ */
+public class BasicBlock {
+    private static final VarHandle VALID;
+    private static final VarHandle COMPILED;
+
+    static {
+        try{
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            VALID = lookup.findVarHandle(BasicBlock.class, "valid", boolean.class);
+            COMPILED = lookup.findVarHandle(BasicBlock.class, "compiled", CompiledBlock.class);
+        }
+        catch(ReflectiveOperationException e){
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final int startPc;
+    //Everything before the terminator. None of these change the PC.
+    private final Instruction[] body;
+    //Null when the block ends without a branch (end of text or length limit)
+    private final Instruction terminator;
+    private final int takenPc;
+    private final int fallThroughPc;
+    private boolean valid = true;
+
+    //Same as body and terminator unless BlockCache fused some pairs.
+    //fusedInstructions is how many guest instructions the superinstructions stand for.
+    Instruction[] fusedBody;
+    Instruction fusedTerminator;
+    int fusedInstructions;
+
+    //Chained successors, filled in by the simulator as they are reached
+    BasicBlock takenBlock;
+    BasicBlock fallThroughBlock;
+    //Tiering state. Compiled once executionCount reaches the JIT threshold.
+    //The owner reads compiled directly but sets it through setCompiled().
+    int executionCount;
+    CompiledBlock compiled;
+
+    public BasicBlock(int startPc, Instruction[] body, Instruction terminator, int takenPc, int fallThroughPc) {
+        this.startPc = startPc;
+        this.body = body;
+        this.terminator = terminator;
+        this.takenPc = takenPc;
+        this.fallThroughPc = fallThroughPc;
+        this.fusedBody = body;
+        this.fusedTerminator = terminator;
+    }
+
+    public int getStartPc(){
+        return startPc;
+    }
+
+    public Instruction[] getBody(){
+        return body;
+    }
+
+    public Instruction getTerminator(){
+        return terminator;
+    }
+
+    //Absolute target of beq/bne/j. Same as fallThroughPc when there is no branch.
+    public int getTakenPc(){
+        return takenPc;
+    }
+
+    //PC right after the block
+    public int getFallThroughPc(){
+        return fallThroughPc;
+    }
+
+    //Number of guest instructions the block retires
+    public int getLength(){
+        return fallThroughPc - startPc;
+    }
+
+    public boolean isValid(){
+        return valid;
+    }
+
+    //isValid() for a thread that does not own the block
+    boolean isValidAcquire(){
+        return (boolean)VALID.getAcquire(this);
+    }
+
+    void setCompiled(CompiledBlock compiled){
+        COMPILED.setRelease(this, compiled);
+    }
+
+    /*
+    Fresh copy for a forked simulator. Keeps the tiering state, so a block that
+    was already compiled stays compiled, but not the successor links.
+    May run while the owner executes the block on another thread.
+     */
+    BasicBlock copy(){
+        BasicBlock copy = new BasicBlock(startPc, body, terminator, takenPc, fallThroughPc);
+        copy.fusedBody = fusedBody;
+        copy.fusedTerminator = fusedTerminator;
+        copy.fusedInstructions = fusedInstructions;
+        copy.executionCount = executionCount;
+        copy.compiled = (CompiledBlock)COMPILED.getAcquire(this);
+        return copy;
+    }
+
+    void invalidate(){
+        VALID.setRelease(this, false);
+        takenBlock = null;
+        fallThroughBlock = null;
+        COMPILED.setRelease(this, (CompiledBlock)null);
+    }
+}
@@ -0,0 +1,370 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/*
+Runs many programs in one JVM, each in its own MIPSSimulator with its own
+I/O buffers and instruction budget.
+Programs come from either
+    a directory tree: every X.text with an X.data next to it, plus X.in as stdin if present
+    a manifest file:  one "text data [input]" per line, relative to the manifest, # for comments
+ */
+public class BatchRunner {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean virtualThreads;
+    private long instructionBudget = Long.MAX_VALUE;
+    private boolean jitEnabled = true;
+    //0 runs each program to the end on its own thread, otherwise GuestScheduler quanta
+    private long quantum;
+    private long wallNanosBudget = Long.MAX_VALUE;
+    //Shared by every job. Null to parse every program.
+    private ProgramCache programCache;
+
+    //One program to run
+    public static class Job {
+        final String name;
+        final Path textFile;
+        final Path dataFile;
+        //Null when the program gets no input
+        final Path inputFile;
+
+        public Job(String name, Path textFile, Path dataFile, Path inputFile) {
+            this.name = name;
+            this.textFile = textFile;
+            this.dataFile = dataFile;
+            this.inputFile = inputFile;
+        }
+    }
+
+    //Outcome of one program
+    public static class Result {
+        final String name;
+        //Exit code from MIPSSimulator.run(), or null if the run threw
+        final Integer exitCode;
+        final String error;
+        final String outputDigest;
+        final long instructions;
+        final long wallNanos;
+
+        Result(String name, Integer exitCode, String error, String outputDigest, long instructions, long wallNanos) {
+            this.name = name;
+            this.exitCode = exitCode;
+            this.error = error;
+            this.outputDigest = outputDigest;
+            this.instructions = instructions;
+            this.wallNanos = wallNanos;
+        }
+
+        public String getStatus(){
+            if(exitCode == null){
+                return "error: " + error;
+            }
+            switch(exitCode){
+                case MIPSSimulator.EXIT_NORMAL:
+                    return "0";
+                case MIPSSimulator.EXIT_DROPPED_OFF_BOTTOM:
+                    return "-1 dropped off bottom";
+                case MIPSSimulator.EXIT_INSTRUCTION_LIMIT:
+                    return "-2 instruction budget";
+                case MIPSSimulator.EXIT_PAUSED_AT_READ:
+                    return "-3 paused at read";
+                case MIPSSimulator.EXIT_KILLED_INSTRUCTIONS:
+                    return "-4 killed: instructions";
+                case MIPSSimulator.EXIT_KILLED_WALL_TIME:
+                    return "-5 killed: wall time";
+                default:
+                    return exitCode.toString();
+            }
+        }
+    }
+
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    //Use one virtual thread per program. Needs Java 21, otherwise platform threads are used.
+    public void setVirtualThreads(boolean virtualThreads){
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setInstructionBudget(long instructionBudget){
+        this.instructionBudget = instructionBudget;
+    }
+
+    public void setJitEnabled(boolean jitEnabled){
+        this.jitEnabled = jitEnabled;
+    }
+
+    /*
+    Time-slice the programs on a GuestScheduler, this many instructions at a time.
+    Programs over the instruction budget are then killed (-4) rather than stopped (-2).
+     */
+    public void setQuantum(long quantum){
+        this.quantum = quantum;
+    }
+
+    //Only enforced when time-slicing
+    public void setWallTimeLimit(long millis){
+        this.wallNanosBudget = millis * 1_000_000L;
+    }
+
+    //Load programs through a ProgramCache, so a program listed many times is parsed once
+    public void setProgramCache(ProgramCache programCache){
+        this.programCache = programCache;
+    }
+
+    /*
+    Find the jobs under a directory, or listed in a manifest file
+     */
+    public static List<Job> findJobs(Path source) throws IOException {
+        List<Job> jobs = new ArrayList<>();
+        if(Files.isDirectory(source)){
+            List<Path> textFiles;
+            try(Stream<Path> walk = Files.walk(source)){
+                textFiles = walk.filter(p -> p.getFileName().toString().endsWith(".text"))
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+            for(Path text : textFiles){
+                String file = text.getFileName().toString();
+                String base = file.substring(0, file.length() - ".text".length());
+                Path data = text.resolveSibling(base + ".data");
+                Path input = text.resolveSibling(base + ".in");
+                jobs.add(new Job(source.relativize(text.resolveSibling(base)).toString(), text, data,
+                        Files.exists(input) ? input : null));
+            }
+        }
+        else{
+            Path dir = source.toAbsolutePath().getParent();
+            for(String line : Files.readAllLines(source)){
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")){
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if(parts.length < 2){
+                    throw new IOException(source + ": expected \"text data [input]\" but got \"" + line + "\"");
+                }
+                Path input = parts.length > 2 ? dir.resolve(parts[2]) : null;
+                jobs.add(new Job(parts[0], dir.resolve(parts[0]), dir.resolve(parts[1]), input));
+            }
+        }
+        return jobs;
+    }
+
+    /*
+    Run every job and return the results in the same order
+     */
+    public List<Result> runAll(List<Job> jobs) throws InterruptedException {
+        if(quantum > 0){
+            return runScheduled(jobs);
+        }
+        ExecutorService executor = createExecutor();
+        try{
+            List<Future<Result>> futures = new ArrayList<>();
+            for(Job job : jobs){
+                futures.add(executor.submit(() -> runOne(job)));
+            }
+            List<Result> results = new ArrayList<>();
+            for(int i = 0; i < futures.size(); i++){
+                try{
+                    results.add(futures.get(i).get());
+                }
+                catch(ExecutionException e){
+                    results.add(new Result(jobs.get(i).name, null, String.valueOf(e.getCause()), "", 0, 0));
+                }
+            }
+            return results;
+        }
+        finally{
+            executor.shutdownNow();
+        }
+    }
+
+    /*
+    runAll on a GuestScheduler. Each program gets its whole .in file up front
+    and its input closed, so only runaways are killed.
+     */
+    private List<Result> runScheduled(List<Job> jobs) throws InterruptedException {
+        try(GuestScheduler scheduler = new GuestScheduler(threads, quantum)){
+            List<GuestScheduler.Guest> guests = new ArrayList<>();
+            for(Job job : jobs){
+                MIPSSimulator sim = new MIPSSimulator();
+                sim.setJitEnabled(jitEnabled);
+                sim.setProgramCache(programCache);
+                FeedSyscallIO io = new FeedSyscallIO();
+                //Files are read on the pool, like runOne does, so a bad job only fails itself
+                guests.add(scheduler.submit(new GuestScheduler.Guest(job.name, sim, io, () -> {
+                    try{
+                        if(!Files.exists(job.textFile) || !Files.exists(job.dataFile)){
+                            throw new IOException("missing " + (Files.exists(job.textFile) ? job.dataFile : job.textFile));
+                        }
+                        if(job.inputFile != null){
+                            io.feed(Files.readString(job.inputFile));
+                        }
+                        io.closeInput();
+                        sim.readFiles(job.dataFile.toString(), job.textFile.toString());
+                    }
+                    catch(IOException e){
+                        throw new UncheckedIOException(e);
+                    }
+                }, instructionBudget, wallNanosBudget)));
+            }
+            List<Result> results = new ArrayList<>();
+            for(GuestScheduler.Guest guest : guests){
+                try{
+                    results.add(guest.getResult().get());
+                }
+                catch(ExecutionException e){
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return results;
+        }
+    }
+
+    public Result runOne(Job job){
+        long start = System.nanoTime();
+        MIPSSimulator sim = new MIPSSimulator();
+        sim.setJitEnabled(jitEnabled);
+        sim.setProgramCache(programCache);
+        sim.setInstructionLimit(instructionBudget);
+        try{
+            if(!Files.exists(job.textFile) || !Files.exists(job.dataFile)){
+                throw new IOException("missing " + (Files.exists(job.textFile) ? job.dataFile : job.textFile));
+            }
+            String input = job.inputFile == null ? "" : Files.readString(job.inputFile);
+            MemorySyscallIO io = new MemorySyscallIO(input);
+            sim.setSyscallIO(io);
+            sim.readFiles(job.dataFile.toString(), job.textFile.toString());
+            int exitCode = sim.runTimed();
+            return new Result(job.name, exitCode, null, digest(io.getOutputBytes()),
+                    sim.getInstructionCount(), System.nanoTime() - start);
+        }
+        catch(IOException | RuntimeException e){
+            return new Result(job.name, null, e.toString(), "", sim.getInstructionCount(), System.nanoTime() - start);
+        }
+    }
+
+    /*
+    Print one row per program
+     */
+    public static String formatTable(List<Result> results){
+        StringBuilder table = new StringBuilder();
+        table.append(String.format("%-40s %-24s %14s %10s  %s%n", "program", "status", "instructions", "ms", "output sha-256"));
+        for(Result result : results){
+            table.append(String.format("%-40s %-24s %14d %10.2f  %s%n", result.name, result.getStatus(),
+                    result.instructions, result.wallNanos / 1e6, result.outputDigest));
+        }
+        return table.toString();
+    }
+
+    private ExecutorService createExecutor(){
+        if(virtualThreads){
+            try{
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService)factory.invoke(null);
+            }
+            catch(ReflectiveOperationException e){
+                System.err.println("Virtual threads need Java 21, using " + threads + " platform threads");
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    static String digest(byte[] output){
+        try{
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(output);
+            StringBuilder hex = new StringBuilder();
+            //The first 8 bytes are plenty to tell outputs apart in a table
+            for(int i = 0; i < 8; i++){
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+    Usage: BatchRunner <directory or manifest> [--threads=N] [--virtual] [--budget=N] [--interpret] [--metrics]
+        [--quantum=N] [--time-limit=MS] [--program-cache[=DIR]] [--program-cache-size=N]
+    --quantum time-slices the programs on a GuestScheduler, --time-limit then kills slow ones
+    --program-cache maps programs parsed before from DIR, as in Main
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        BatchRunner runner = new BatchRunner();
+        Path source = null;
+        boolean metrics = false;
+        Path programCacheDirectory = null;
+        long programCacheSize = ProgramCache.DEFAULT_MAX_BYTES;
+        for(String arg : args){
+            if(arg.startsWith("--threads=")){
+                runner.setThreads(Integer.parseInt(arg.substring("--threads=".length())));
+            }
+            else if(arg.equals("--virtual")){
+                runner.setVirtualThreads(true);
+            }
+            else if(arg.startsWith("--budget=")){
+                runner.setInstructionBudget(Long.parseLong(arg.substring("--budget=".length())));
+            }
+            else if(arg.equals("--interpret")){
+                runner.setJitEnabled(false);
+            }
+            else if(arg.startsWith("--quantum=")){
+                runner.setQuantum(Long.parseLong(arg.substring("--quantum=".length())));
+            }
+            else if(arg.startsWith("--time-limit=")){
+                runner.setWallTimeLimit(Long.parseLong(arg.substring("--time-limit=".length())));
+            }
+            else if(arg.equals("--program-cache")){
+                programCacheDirectory = ProgramCache.defaultDirectory();
+            }
+            else if(arg.startsWith("--program-cache=")){
+                programCacheDirectory = Paths.get(arg.substring("--program-cache=".length()));
+            }
+            else if(arg.startsWith("--program-cache-size=")){
+                programCacheSize = Long.parseLong(arg.substring("--program-cache-size=".length()));
+            }
+            else if(arg.equals("--metrics")){
+                metrics = true;
+                SimulatorMetrics.registerMBean();
+            }
+            else{
+                source = Paths.get(arg);
+            }
+        }
+        if(source == null){
+            System.err.println("Usage: BatchRunner <directory or manifest> [--threads=N] [--virtual] [--budget=N] [--interpret] [--metrics] [--quantum=N] [--time-limit=MS] [--program-cache[=DIR]] [--program-cache-size=N]");
+            return;
+        }
+        if(programCacheDirectory != null){
+            try{
+                runner.setProgramCache(new ProgramCache(programCacheDirectory, programCacheSize));
+            }
+            catch(IOException e){
+                System.err.println("Could not use program cache: " + e.getMessage());
+                return;
+            }
+        }
+        List<Result> results = runner.runAll(findJobs(source));
+        System.out.print(formatTable(results));
+        if(metrics){
+            System.out.print(SimulatorMetrics.get().getSummary());
+        }
+    }
+}
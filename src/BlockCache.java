@@ -0,0 +1,223 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/*
+Splits .text into basic blocks the first time each one is executed.
+Blocks are indexed by their starting PC (word index into .text).
+A forked cache starts from copies of its parent's blocks, taken as they are
+first looked up, so a fork does not pay to split or compile them again.
+Blocks are built with common instruction pairs fused into superinstructions
+for the interpreter (see fuse()).
+The parent may still be adding blocks on another thread while a fork copies
+them, so entries of blocks are stored with release and read from inherited
+with acquire, the same way TextSegment publishes decoded instructions.
+ */
+public class BlockCache {
+    //Long blocks are split so invalidation only has to look back this far
+    public static final int MAX_BLOCK_LENGTH = 256;
+
+    private static final VarHandle BLOCKS = MethodHandles.arrayElementVarHandle(BasicBlock[].class);
+
+    private TextSegment text;
+    private BasicBlock[] blocks;
+    //Blocks of the cache this one was forked from, built from the same text.
+    //Only ever read here, with acquire loads, possibly while the parent runs on another thread.
+    private BasicBlock[] inherited;
+    private boolean fusionEnabled = true;
+
+    public BlockCache(TextSegment text) {
+        this.text = text;
+        this.blocks = new BasicBlock[text.length()];
+    }
+
+    /*
+    Cache for a forked simulator that shares this cache's text
+     */
+    public BlockCache fork(){
+        BlockCache child = new BlockCache(text);
+        child.inherited = blocks;
+        child.fusionEnabled = fusionEnabled;
+        return child;
+    }
+
+    /*
+    Whether blocks built from now on get superinstructions. Blocks already
+    built keep theirs.
+     */
+    public void setFusionEnabled(boolean enabled){
+        fusionEnabled = enabled;
+    }
+
+    /*
+    Switch to a private copy of the text that is about to change.
+    Every block so far is dropped, and nothing more is taken from the parent,
+    since its blocks no longer match. Forks that inherited the dropped blocks
+    see them as invalid and build their own from their unchanged text.
+     */
+    public void replaceText(TextSegment newText){
+        for(BasicBlock block : blocks){
+            if(block != null){
+                block.invalidate();
+            }
+        }
+        text = newText;
+        blocks = new BasicBlock[newText.length()];
+        inherited = null;
+    }
+
+    /*
+    Find the block starting at pc, building it on first use.
+    Returns null when pc is outside of .text
+     */
+    public BasicBlock lookup(int pc){
+        if(pc < 0 || pc >= blocks.length){
+            return null;
+        }
+        BasicBlock block = blocks[pc];
+        if(block == null){
+            BasicBlock parentBlock = inherited == null ? null : (BasicBlock)BLOCKS.getAcquire(inherited, pc);
+            block = parentBlock != null && parentBlock.isValidAcquire() ? parentBlock.copy() : build(pc);
+            BLOCKS.setRelease(blocks, pc, block);
+        }
+        return block;
+    }
+
+    /*
+    Drop every block that contains pc. Used when code is overwritten.
+    A block cut short by a breakpoint trap ends at the trap's pc without
+    containing it, so blocks ending at pc are dropped too.
+     */
+    public void invalidate(int pc){
+        int first = Math.max(0, pc - MAX_BLOCK_LENGTH + 1);
+        for(int start = first; start <= pc && start < blocks.length; start++){
+            BasicBlock block = blocks[start];
+            if(block != null && block.getFallThroughPc() >= pc){
+                block.invalidate();
+                BLOCKS.setRelease(blocks, start, (BasicBlock)null);
+            }
+        }
+    }
+
+    private BasicBlock build(int startPc){
+        int pc = startPc;
+        Instruction terminator = null;
+        while(pc < text.length() && pc - startPc < MAX_BLOCK_LENGTH){
+            //Only the words a block covers are ever decoded
+            Instruction inst = text.get(pc);
+            ++pc;
+            if(isTerminator(inst)){
+                terminator = inst;
+                break;
+            }
+        }
+        int bodyLength = pc - startPc;
+        if(terminator != null){
+            --bodyLength;
+        }
+        Instruction[] body = new Instruction[bodyLength];
+        for(int i = 0; i < bodyLength; i++){
+            body[i] = text.get(startPc + i);
+        }
+
+        //pc is now the PC after the terminator, which is what branches are relative to
+        int takenPc = pc;
+        if(terminator != null){
+            switch(terminator.getOperation()){
+                case Instruction.OP_BEQ:
+                case Instruction.OP_BNE:
+                    takenPc = pc + terminator.getImmediate();
+                    break;
+                case Instruction.OP_J:
+                    takenPc = MIPSSimulator.jumpTarget(pc, terminator.getIndex());
+                    break;
+                case Instruction.OP_BREAK:
+                    //A breakpoint trap stops in front of the instruction it covers, so the
+                    //block ends there and the trap does not count as an instruction
+                    --pc;
+                    takenPc = pc;
+                    break;
+            }
+        }
+        BasicBlock block = new BasicBlock(startPc, body, terminator, takenPc, pc);
+        if(fusionEnabled){
+            fuse(block);
+        }
+        return block;
+    }
+
+    /*
+    Peephole pass over a new block. Replaces these pairs with one superinstruction:
+        lui $a, hi; ori $b, $a, lo                      32 bit constants
+        slt $a, ..; beq/bne $a, $zero (either order)    compare and branch
+        addiu $a, ..; bne $a, $b (either order)         loop counters
+    Blocks are only ever entered at their start, so neither half of a pair can
+    be a branch target here. A branch to the second half gets a block of its own,
+    built from the plain instructions.
+     */
+    private static void fuse(BasicBlock block){
+        Instruction[] body = block.getBody();
+        Instruction terminator = block.getTerminator();
+        int bodyEnd = body.length;
+        Instruction fusedTerminator = terminator;
+        if(terminator != null && bodyEnd > 0){
+            fusedTerminator = fuseBranch(body[bodyEnd - 1], terminator);
+            if(fusedTerminator != terminator){
+                --bodyEnd;
+            }
+        }
+        Instruction[] fusedBody = new Instruction[bodyEnd];
+        int length = 0;
+        int fused = fusedTerminator != terminator ? 2 : 0;
+        for(int i = 0; i < bodyEnd; i++){
+            Instruction inst = body[i];
+            if(i + 1 < bodyEnd && inst.getOperation() == Instruction.OP_LUI && inst.getRt() != 0
+                    && body[i + 1].getOperation() == Instruction.OP_ORI && body[i + 1].getRs() == inst.getRt()){
+                inst = Instruction.fuse(Instruction.OP_LUI_ORI, inst, body[++i]);
+                fused += 2;
+            }
+            fusedBody[length++] = inst;
+        }
+        if(fused == 0){
+            return;
+        }
+        block.fusedBody = length == fusedBody.length ? fusedBody : Arrays.copyOf(fusedBody, length);
+        block.fusedTerminator = fusedTerminator;
+        block.fusedInstructions = fused;
+    }
+
+    /*
+    Superinstruction for inst followed by the branch, or the branch itself
+    when the pair is not one fuse() handles
+     */
+    private static Instruction fuseBranch(Instruction inst, Instruction branch){
+        int operation = branch.getOperation();
+        if(operation != Instruction.OP_BEQ && operation != Instruction.OP_BNE){
+            return branch;
+        }
+        if(inst.getOperation() == Instruction.OP_SLT && inst.getRd() != 0
+                && (branch.getRs() == inst.getRd() && branch.getRt() == 0
+                    || branch.getRs() == 0 && branch.getRt() == inst.getRd())){
+            return Instruction.fuse(operation == Instruction.OP_BEQ ? Instruction.OP_SLT_BEQ : Instruction.OP_SLT_BNE,
+                    inst, branch);
+        }
+        if(inst.getOperation() == Instruction.OP_ADDIU && inst.getRt() != 0 && operation == Instruction.OP_BNE
+                && (branch.getRs() == inst.getRt() || branch.getRt() == inst.getRt())){
+            return Instruction.fuse(Instruction.OP_ADDIU_BNE, inst, branch);
+        }
+        return branch;
+    }
+
+    private static boolean isTerminator(Instruction inst){
+        switch(inst.getOperation()){
+            case Instruction.OP_BEQ:
+            case Instruction.OP_BNE:
+            case Instruction.OP_J:
+            case Instruction.OP_SYSCALL:
+            case Instruction.OP_BREAK:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+Second tier of the simulator. Translates hot basic blocks into JVM bytecode
+and loads each one as a hidden class, so HotSpot can compile it like any
+other Java code.
+
+Inside a compiled block guest registers live in JVM locals. Registers that
+are read are loaded at entry, and registers that are written are stored back
+to the register file at every exit. Blocks containing anything other than
+ALU ops, lui, lw, sw, beq, bne, j and a trailing syscall are left to the
+interpreter.
+ */
+public class BlockCompiler {
+    public static final int DEFAULT_THRESHOLD = 1000;
+    //Compiled code only depends on the block's start PC and words, so it is
+    //shared by every simulator in the process. Without this, each new simulator
+    //would define fresh hidden classes that HotSpot has to warm up again.
+    private static final int SHARED_CACHE_LIMIT = 8192;
+    private static final Map<BlockKey, CompiledBlock> SHARED_CACHE = new ConcurrentHashMap<>();
+
+    //Local 0 is this, 1 is the register file, 2 is memory, guest register r is 3 + r
+    private static final int REGISTER_LOCAL = 1;
+    private static final int MEMORY_LOCAL = 2;
+    private static final int FIRST_GUEST_LOCAL = 3;
+
+    //Bytecodes used by the translator
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int LDC_W = 0x13;
+    private static final int ILOAD = 0x15;
+    private static final int ISTORE = 0x36;
+    private static final int IALOAD = 0x2e;
+    private static final int IASTORE = 0x4f;
+    private static final int IADD = 0x60;
+    private static final int ISUB = 0x64;
+    private static final int IUSHR = 0x7c;
+    private static final int IAND = 0x7e;
+    private static final int IOR = 0x80;
+    private static final int IF_ICMPEQ = 0x9f;
+    private static final int IF_ICMPNE = 0xa0;
+    private static final int IRETURN = 0xac;
+    private static final int RETURN = 0xb1;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private final int threshold;
+    private int compiledCount;
+
+    public BlockCompiler(int threshold) {
+        this.threshold = threshold;
+    }
+
+    //Number of executions before a block is compiled
+    public int getThreshold(){
+        return threshold;
+    }
+
+    public int getCompiledCount(){
+        return compiledCount;
+    }
+
+    /*
+    Translate a block. Returns null when the block uses something the
+    translator does not handle, in which case it stays interpreted.
+     */
+    public CompiledBlock compile(BasicBlock block){
+        if(!isSupported(block)){
+            return null;
+        }
+        SimulatorEvents.BlockCompile event = new SimulatorEvents.BlockCompile();
+        event.begin();
+        BlockKey key = new BlockKey(block);
+        CompiledBlock shared = SHARED_CACHE.get(key);
+        if(shared != null){
+            commit(event, block, 0, true);
+            return shared;
+        }
+        try{
+            long start = System.nanoTime();
+            byte[] classBytes = translate(block);
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classBytes, true);
+            CompiledBlock compiled = (CompiledBlock)lookup.findConstructor(lookup.lookupClass(),
+                    MethodType.methodType(void.class)).invoke();
+            ++compiledCount;
+            if(SHARED_CACHE.size() < SHARED_CACHE_LIMIT){
+                SHARED_CACHE.putIfAbsent(key, compiled);
+            }
+            SimulatorMetrics metrics = SimulatorMetrics.get();
+            metrics.blocksCompiled.increment();
+            metrics.compileLatency.record(System.nanoTime() - start);
+            commit(event, block, classBytes.length, false);
+            return compiled;
+        }
+        catch(Throwable e){
+            //A block that fails to load just keeps running in the interpreter
+            return null;
+        }
+    }
+
+    private static void commit(SimulatorEvents.BlockCompile event, BasicBlock block, int classBytes, boolean shared){
+        if(event.shouldCommit()){
+            event.startPc = block.getStartPc();
+            event.length = block.getLength();
+            event.classBytes = classBytes;
+            event.shared = shared;
+            event.commit();
+        }
+    }
+
+    private static boolean isSupported(BasicBlock block){
+        //A breakpoint trap has the word of the instruction it covers, so it
+        //must never reach the shared cache, and it only works interpreted
+        Instruction terminator = block.getTerminator();
+        if(terminator != null && terminator.getOperation() == Instruction.OP_BREAK){
+            return false;
+        }
+        for(Instruction inst : block.getBody()){
+            switch(inst.getOperation()){
+                case Instruction.OP_ADD:
+                case Instruction.OP_ADDIU:
+                case Instruction.OP_AND:
+                case Instruction.OP_ANDI:
+                case Instruction.OP_LUI:
+                case Instruction.OP_LW:
+                case Instruction.OP_OR:
+                case Instruction.OP_ORI:
+                case Instruction.OP_SLT:
+                case Instruction.OP_SUB:
+                case Instruction.OP_SW:
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+    Build the class file for one block:
+        final class JitBlock implements CompiledBlock {
+            public int execute(int[] registers, Memory memory) {...}
+        }
+    Class file version 49 is used so no StackMapTable is needed for the branch.
+     */
+    private byte[] translate(BasicBlock block){
+        ConstantPool pool = new ConstantPool();
+        int thisClass = pool.classRef("JitBlock");
+        int superClass = pool.classRef("java/lang/Object");
+        int blockInterface = pool.classRef("CompiledBlock");
+        int objectInit = pool.methodRef("java/lang/Object", "<init>", "()V");
+        int initName = pool.utf8("<init>");
+        int initType = pool.utf8("()V");
+        int executeName = pool.utf8("execute");
+        int executeType = pool.utf8("([ILMemory;)I");
+        int codeName = pool.utf8("Code");
+
+        Bytecode init = new Bytecode();
+        init.op(ALOAD_0);
+        init.op(INVOKESPECIAL);
+        init.u2(objectInit);
+        init.op(RETURN);
+
+        Bytecode code = translateBody(block, pool);
+
+        Bytecode file = new Bytecode();
+        file.u4(0xcafebabe);
+        file.u2(0);
+        file.u2(49);
+        pool.writeTo(file);
+        //public final super
+        file.u2(0x0031);
+        file.u2(thisClass);
+        file.u2(superClass);
+        file.u2(1);
+        file.u2(blockInterface);
+        file.u2(0);
+        file.u2(2);
+        writeMethod(file, initName, initType, codeName, 1, 1, init);
+        writeMethod(file, executeName, executeType, codeName, 4, FIRST_GUEST_LOCAL + 32, code);
+        file.u2(0);
+        return file.toByteArray();
+    }
+
+    private Bytecode translateBody(BasicBlock block, ConstantPool pool){
+        boolean[] read = new boolean[32];
+        boolean[] written = new boolean[32];
+        for(Instruction inst : block.getBody()){
+            markRegisters(inst, read, written);
+        }
+        Instruction terminator = block.getTerminator();
+        int terminatorOperation = terminator == null ? Instruction.OP_SYSCALL : terminator.getOperation();
+        if(terminatorOperation == Instruction.OP_BEQ || terminatorOperation == Instruction.OP_BNE){
+            read[terminator.getRs()] = true;
+            read[terminator.getRt()] = true;
+        }
+
+        Bytecode code = new Bytecode();
+        //Load every register the block reads into its local
+        for(int r = 1; r < 32; r++){
+            if(read[r]){
+                code.op(ALOAD_1);
+                code.op(BIPUSH);
+                code.u1(r);
+                code.op(IALOAD);
+                code.op(ISTORE);
+                code.u1(FIRST_GUEST_LOCAL + r);
+            }
+        }
+
+        int loadWord = pool.methodRef("Memory", "loadWord", "(I)I");
+        int storeWord = pool.methodRef("Memory", "storeWord", "(II)V");
+        int compare = pool.methodRef("java/lang/Integer", "compare", "(II)I");
+        for(Instruction inst : block.getBody()){
+            int rs = inst.getRs();
+            int rt = inst.getRt();
+            int rd = inst.getRd();
+            switch(inst.getOperation()){
+                case Instruction.OP_ADD:
+                    registerOp(code, rs, rt, IADD, rd);
+                    break;
+                case Instruction.OP_AND:
+                    registerOp(code, rs, rt, IAND, rd);
+                    break;
+                case Instruction.OP_OR:
+                    registerOp(code, rs, rt, IOR, rd);
+                    break;
+                case Instruction.OP_SUB:
+                    registerOp(code, rs, rt, ISUB, rd);
+                    break;
+                case Instruction.OP_SLT:
+                    //Integer.compare gives -1, 0 or 1. Only -1 has the top bit set.
+                    if(rd != 0){
+                        loadRegister(code, rs);
+                        loadRegister(code, rt);
+                        code.op(INVOKESTATIC);
+                        code.u2(compare);
+                        code.op(BIPUSH);
+                        code.u1(31);
+                        code.op(IUSHR);
+                        storeRegister(code, rd);
+                    }
+                    break;
+                case Instruction.OP_ADDIU:
+                    immediateOp(code, pool, rs, inst.getImmediate(), IADD, rt);
+                    break;
+                case Instruction.OP_ANDI:
+                    immediateOp(code, pool, rs, inst.getUnsignedImmediate(), IAND, rt);
+                    break;
+                case Instruction.OP_ORI:
+                    immediateOp(code, pool, rs, inst.getUnsignedImmediate(), IOR, rt);
+                    break;
+                case Instruction.OP_LUI:
+                    if(rt != 0){
+                        loadConstant(code, pool, inst.getUnsignedImmediate() << 16);
+                        storeRegister(code, rt);
+                    }
+                    break;
+                case Instruction.OP_LW:
+                    if(rt != 0){
+                        code.op(ALOAD_2);
+                        address(code, pool, rs, inst.getImmediate());
+                        code.op(INVOKEVIRTUAL);
+                        code.u2(loadWord);
+                        storeRegister(code, rt);
+                    }
+                    break;
+                case Instruction.OP_SW:
+                    code.op(ALOAD_2);
+                    address(code, pool, rs, inst.getImmediate());
+                    loadRegister(code, rt);
+                    code.op(INVOKEVIRTUAL);
+                    code.u2(storeWord);
+                    break;
+            }
+        }
+
+        //Every exit writes the modified registers back and returns the next PC
+        Bytecode writeBack = new Bytecode();
+        for(int r = 1; r < 32; r++){
+            if(written[r]){
+                writeBack.op(ALOAD_1);
+                writeBack.op(BIPUSH);
+                writeBack.u1(r);
+                writeBack.op(ILOAD);
+                writeBack.u1(FIRST_GUEST_LOCAL + r);
+                writeBack.op(IASTORE);
+            }
+        }
+        if(terminatorOperation == Instruction.OP_BEQ || terminatorOperation == Instruction.OP_BNE){
+            loadRegister(code, terminator.getRs());
+            loadRegister(code, terminator.getRt());
+            //Jump over the taken exit when the branch is not taken
+            code.op(terminatorOperation == Instruction.OP_BEQ ? IF_ICMPNE : IF_ICMPEQ);
+            code.u2(3 + writeBack.size() + 3 + 1);
+            code.append(writeBack);
+            loadConstant(code, pool, block.getTakenPc());
+            code.op(IRETURN);
+            code.append(writeBack);
+            loadConstant(code, pool, block.getFallThroughPc());
+            code.op(IRETURN);
+        }
+        else{
+            code.append(writeBack);
+            loadConstant(code, pool, terminatorOperation == Instruction.OP_J ? block.getTakenPc() : block.getFallThroughPc());
+            code.op(IRETURN);
+        }
+        return code;
+    }
+
+    private static void markRegisters(Instruction inst, boolean[] read, boolean[] written){
+        switch(inst.getOperation()){
+            case Instruction.OP_ADD:
+            case Instruction.OP_AND:
+            case Instruction.OP_OR:
+            case Instruction.OP_SLT:
+            case Instruction.OP_SUB:
+                read[inst.getRs()] = true;
+                read[inst.getRt()] = true;
+                written[inst.getRd()] = true;
+                break;
+            case Instruction.OP_ADDIU:
+            case Instruction.OP_ANDI:
+            case Instruction.OP_ORI:
+            case Instruction.OP_LW:
+                read[inst.getRs()] = true;
+                written[inst.getRt()] = true;
+                break;
+            case Instruction.OP_LUI:
+                written[inst.getRt()] = true;
+                break;
+            case Instruction.OP_SW:
+                read[inst.getRs()] = true;
+                read[inst.getRt()] = true;
+                break;
+        }
+        //$zero is never stored
+        written[0] = false;
+    }
+
+    private static void registerOp(Bytecode code, int rs, int rt, int op, int rd){
+        if(rd != 0){
+            loadRegister(code, rs);
+            loadRegister(code, rt);
+            code.op(op);
+            storeRegister(code, rd);
+        }
+    }
+
+    private static void immediateOp(Bytecode code, ConstantPool pool, int rs, int immediate, int op, int rt){
+        if(rt != 0){
+            loadRegister(code, rs);
+            loadConstant(code, pool, immediate);
+            code.op(op);
+            storeRegister(code, rt);
+        }
+    }
+
+    //Pushes base register + offset
+    private static void address(Bytecode code, ConstantPool pool, int base, int offset){
+        loadRegister(code, base);
+        loadConstant(code, pool, offset);
+        code.op(IADD);
+    }
+
+    private static void loadRegister(Bytecode code, int register){
+        if(register == 0){
+            code.op(ICONST_0);
+        }
+        else{
+            code.op(ILOAD);
+            code.u1(FIRST_GUEST_LOCAL + register);
+        }
+    }
+
+    private static void storeRegister(Bytecode code, int register){
+        code.op(ISTORE);
+        code.u1(FIRST_GUEST_LOCAL + register);
+    }
+
+    private static void loadConstant(Bytecode code, ConstantPool pool, int value){
+        code.op(LDC_W);
+        code.u2(pool.integer(value));
+    }
+
+    private static void writeMethod(Bytecode file, int name, int type, int codeName,
+                                    int maxStack, int maxLocals, Bytecode code){
+        //public
+        file.u2(0x0001);
+        file.u2(name);
+        file.u2(type);
+        file.u2(1);
+        file.u2(codeName);
+        //max_stack + max_locals + code_length + code + exception table + attributes
+        file.u4(2 + 2 + 4 + code.size() + 2 + 2);
+        file.u2(maxStack);
+        file.u2(maxLocals);
+        file.u4(code.size());
+        file.append(code);
+        file.u2(0);
+        file.u2(0);
+    }
+
+    //Identifies a block by its start PC and instruction words
+    private static class BlockKey {
+        private final int startPc;
+        private final int[] words;
+        private final int hash;
+
+        BlockKey(BasicBlock block) {
+            Instruction[] body = block.getBody();
+            Instruction terminator = block.getTerminator();
+            words = new int[body.length + (terminator == null ? 0 : 1)];
+            for(int i = 0; i < body.length; i++){
+                words[i] = body[i].getWord();
+            }
+            if(terminator != null){
+                words[body.length] = terminator.getWord();
+            }
+            startPc = block.getStartPc();
+            hash = 31 * startPc + Arrays.hashCode(words);
+        }
+
+        @Override
+        public int hashCode(){
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other){
+            if(!(other instanceof BlockKey)){
+                return false;
+            }
+            BlockKey key = (BlockKey)other;
+            return startPc == key.startPc && Arrays.equals(words, key.words);
+        }
+    }
+
+    //Big endian byte buffer for class file structures and code
+    private static class Bytecode extends ByteArrayOutputStream {
+        void op(int opcode){
+            write(opcode);
+        }
+
+        void u1(int value){
+            write(value);
+        }
+
+        void u2(int value){
+            write(value >>> 8);
+            write(value);
+        }
+
+        void u4(int value){
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        void append(Bytecode other){
+            write(other.buf, 0, other.count);
+        }
+    }
+
+    //Deduplicated constant pool. Index 0 is unused, like in the class file.
+    private static class ConstantPool {
+        private final List<byte[]> entries = new ArrayList<>();
+        private final Map<String, Integer> indexes = new HashMap<>();
+
+        int utf8(String value){
+            Bytecode entry = new Bytecode();
+            entry.u1(1);
+            byte[] bytes = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+            entry.u2(bytes.length);
+            entry.write(bytes, 0, bytes.length);
+            return add("U" + value, entry);
+        }
+
+        int integer(int value){
+            Bytecode entry = new Bytecode();
+            entry.u1(3);
+            entry.u4(value);
+            return add("I" + value, entry);
+        }
+
+        int classRef(String name){
+            int nameIndex = utf8(name);
+            Bytecode entry = new Bytecode();
+            entry.u1(7);
+            entry.u2(nameIndex);
+            return add("C" + name, entry);
+        }
+
+        int methodRef(String owner, String name, String type){
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(type);
+            Bytecode nameAndType = new Bytecode();
+            nameAndType.u1(12);
+            nameAndType.u2(nameIndex);
+            nameAndType.u2(typeIndex);
+            int nameAndTypeIndex = add("N" + name + type, nameAndType);
+            Bytecode entry = new Bytecode();
+            entry.u1(10);
+            entry.u2(ownerIndex);
+            entry.u2(nameAndTypeIndex);
+            return add("M" + owner + "." + name + type, entry);
+        }
+
+        private int add(String key, Bytecode entry){
+            Integer index = indexes.get(key);
+            if(index == null){
+                entries.add(entry.toByteArray());
+                index = entries.size();
+                indexes.put(key, index);
+            }
+            return index;
+        }
+
+        void writeTo(Bytecode file){
+            file.u2(entries.size() + 1);
+            for(byte[] entry : entries){
+                file.write(entry, 0, entry.length);
+            }
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+Binary checkpoints of a simulator.
+A file is a header followed by frames that are only ever appended:
+    header  "MIPSCKPT", int version
+    frame   int FRAME_MAGIC, int body length, body, int CRC32 of body
+    body    long instruction count, int PC, int terminated, long input position,
+            int .text length, int[32] registers, int page count,
+            then per page: int page number, int flags, 1024 words
+The first frame holds every allocated page, later frames only the pages
+written since the frame before. Restoring replays the frames in order, so a
+page comes from the last frame that has it, and the machine state comes from
+the last frame. A frame cut short by a crash fails its CRC and is ignored.
+Everything is little endian.
+ */
+public class Checkpoint {
+    private static final long MAGIC = 0x54504b435350494dL;     //"MIPSCKPT" read little endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 12;
+    private static final int FRAME_MAGIC = 0x4d524643;
+    //Magic and body length in front of the body, CRC after it
+    private static final int FRAME_OVERHEAD = 12;
+    private static final int REGISTER_COUNT = 32;
+    //Body up to and including the page count
+    private static final int STATE_BYTES = 8 + 4 + 4 + 8 + 4 + REGISTER_COUNT * 4 + 4;
+    private static final int PAGE_RECORD_BYTES = 8 + Memory.PAGE_SIZE;
+
+    private Checkpoint() {
+    }
+
+    /*
+    Machine state kept in a frame, apart from memory
+     */
+    public static class State {
+        long instructionCount;
+        int programCounter;
+        boolean terminated;
+        //Bytes of syscall input consumed
+        long inputPosition;
+        int textLength;
+        final int[] registers = new int[REGISTER_COUNT];
+
+        public long getInstructionCount(){
+            return instructionCount;
+        }
+    }
+
+    /*
+    Appends frames to a checkpoint file
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        //True until the first frame, which has to hold every page
+        private boolean needsFullFrame;
+        private int framesWritten;
+
+        /*
+        With append, frames go after the last good frame of an existing file,
+        which must be the file memory was restored from. Otherwise the file is
+        started over.
+         */
+        public Writer(Path file, boolean append) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            long validLength = append ? scan(channel) : 0;
+            channel.truncate(validLength);
+            channel.position(validLength);
+            if(validLength == 0){
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putLong(MAGIC).putInt(VERSION).flip();
+                writeFully(header);
+                needsFullFrame = true;
+            }
+        }
+
+        public int getFramesWritten(){
+            return framesWritten;
+        }
+
+        /*
+        Append one frame and clear the dirty flags of memory.
+        Returns once the frame is on disk.
+         */
+        public void write(State state, Memory memory) throws IOException {
+            int[] pageNumbers = memory.getPageNumbers(!needsFullFrame);
+            long bodyLength = STATE_BYTES + (long)pageNumbers.length * PAGE_RECORD_BYTES;
+            if(bodyLength > Integer.MAX_VALUE){
+                throw new IOException("Checkpoint frame too large: " + pageNumbers.length + " pages");
+            }
+            CRC32 crc = new CRC32();
+            ByteBuffer head = ByteBuffer.allocate(8 + STATE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            head.putInt(FRAME_MAGIC).putInt((int)bodyLength);
+            head.putLong(state.instructionCount);
+            head.putInt(state.programCounter);
+            head.putInt(state.terminated ? 1 : 0);
+            head.putLong(state.inputPosition);
+            head.putInt(state.textLength);
+            for(int register : state.registers){
+                head.putInt(register);
+            }
+            head.putInt(pageNumbers.length);
+            head.flip();
+            crc.update(head.duplicate().position(8));
+            writeFully(head);
+
+            //One page at a time so a large memory never needs a buffer of its own size
+            ByteBuffer record = ByteBuffer.allocateDirect(PAGE_RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for(int pageNumber : pageNumbers){
+                record.clear();
+                record.putInt(pageNumber);
+                record.putInt(memory.getPageFlags(pageNumber) & Memory.PAGE_CODE);
+                record.asIntBuffer().put(memory.getPage(pageNumber));
+                record.position(PAGE_RECORD_BYTES).flip();
+                crc.update(record.duplicate());
+                writeFully(record);
+            }
+
+            ByteBuffer tail = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            tail.putInt((int)crc.getValue()).flip();
+            writeFully(tail);
+            channel.force(false);
+            memory.clearDirty();
+            needsFullFrame = false;
+            ++framesWritten;
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while(buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /*
+    Replay every good frame of a checkpoint file into memory, which should be
+    empty, and return the state of the last one.
+     */
+    public static State restore(Path file, Memory memory) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            State state = null;
+            long position = readHeader(channel);
+            while(true){
+                MappedByteBuffer body = nextFrame(channel, position);
+                if(body == null){
+                    break;
+                }
+                state = applyFrame(body, memory);
+                position += FRAME_OVERHEAD + body.capacity();
+            }
+            if(state == null){
+                throw new IOException(file + ": no complete checkpoint");
+            }
+            return state;
+        }
+    }
+
+    /*
+    Length of the header and every good frame, i.e. where the next frame goes
+     */
+    private static long scan(FileChannel channel) throws IOException {
+        if(channel.size() == 0){
+            return 0;
+        }
+        long position = readHeader(channel);
+        while(true){
+            MappedByteBuffer body = nextFrame(channel, position);
+            if(body == null){
+                return position;
+            }
+            position += FRAME_OVERHEAD + body.capacity();
+        }
+    }
+
+    private static long readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        if(header.remaining() < HEADER_BYTES || header.getLong() != MAGIC){
+            throw new IOException("Not a checkpoint file");
+        }
+        int version = header.getInt();
+        if(version != VERSION){
+            throw new IOException("Unsupported checkpoint version " + version);
+        }
+        return HEADER_BYTES;
+    }
+
+    /*
+    Map the body of the frame at position. Null if there is no frame there,
+    or it is incomplete or fails its CRC.
+     */
+    private static MappedByteBuffer nextFrame(FileChannel channel, long position) throws IOException {
+        ByteBuffer frameHead = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(frameHead, position);
+        frameHead.flip();
+        if(frameHead.remaining() < 8 || frameHead.getInt() != FRAME_MAGIC){
+            return null;
+        }
+        int bodyLength = frameHead.getInt();
+        if(bodyLength < STATE_BYTES || position + FRAME_OVERHEAD + bodyLength > channel.size()){
+            return null;
+        }
+        MappedByteBuffer body = channel.map(FileChannel.MapMode.READ_ONLY, position + 8, bodyLength);
+        body.order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer storedCrc = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(storedCrc, position + 8 + bodyLength);
+        storedCrc.flip();
+        CRC32 crc = new CRC32();
+        crc.update(body.duplicate());
+        if(storedCrc.getInt() != (int)crc.getValue()){
+            return null;
+        }
+        return body;
+    }
+
+    private static State applyFrame(MappedByteBuffer body, Memory memory) throws IOException {
+        State state = new State();
+        state.instructionCount = body.getLong();
+        state.programCounter = body.getInt();
+        state.terminated = body.getInt() != 0;
+        state.inputPosition = body.getLong();
+        state.textLength = body.getInt();
+        for(int i = 0; i < REGISTER_COUNT; i++){
+            state.registers[i] = body.getInt();
+        }
+        int pageCount = body.getInt();
+        if(body.remaining() != (long)pageCount * PAGE_RECORD_BYTES){
+            throw new IOException("Checkpoint frame has the wrong length for " + pageCount + " pages");
+        }
+        for(int i = 0; i < pageCount; i++){
+            int pageNumber = body.getInt();
+            int flags = body.getInt();
+            int address = pageNumber << Memory.PAGE_BITS;
+            //Words go straight from the mapping into the page
+            memory.storeWords(address, body.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer()
+                    .limit(Memory.WORDS_PER_PAGE));
+            if((flags & Memory.PAGE_CODE) != 0){
+                memory.markCode(address);
+            }
+            body.position(body.position() + Memory.PAGE_SIZE);
+        }
+        return state;
+    }
+}
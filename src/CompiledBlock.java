@@ -0,0 +1,8 @@
+/*
+A basic block translated to JVM bytecode by BlockCompiler.
+Runs the block body and its branch, and returns the next PC.
+A syscall terminator is not included; the simulator runs it afterwards.
+ */
+public interface CompiledBlock {
+    int execute(int[] registers, Memory memory);
+}
@@ -0,0 +1,436 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+Breakpoints, watchpoints, single-step and inspection for one MIPSSimulator.
+A breakpoint is a trap patched over the instruction in the decoded .text, so
+it ends its basic block and stops run() there; nothing is checked anywhere
+else. Conditional breakpoints stop the same way and only then look at the
+register, stepping past the trap when the condition does not hold.
+A watchpoint flags the pages of its range as watched in memory. Accesses to
+other pages never leave the TLB fast path. While any watchpoint is set,
+run() goes through MIPSSimulator.runWatched, which stops right after the
+lw or sw that touched the range.
+With no breakpoints or watchpoints the simulator runs exactly as without a debugger.
+Create the debugger after the program is loaded; loading replaces the text
+and drops every trap.
+Addresses are byte addresses as the program sees them, e.g. 0x00400000 for
+the first instruction.
+ */
+public class Debugger {
+    //Where .text starts, see MIPSSimulator.INITIALTEXT
+    private static final int TEXT_BASE = 0x00400000;
+    private static final String[] REGISTER_NAMES = {"zero", "at", "v0", "v1", "a0", "a1", "a2", "a3",
+            "t0", "t1", "t2", "t3", "t4", "t5", "t6", "t7", "s0", "s1", "s2", "s3", "s4", "s5", "s6", "s7",
+            "t8", "t9", "k0", "k1", "gp", "sp", "fp", "ra"};
+
+    private final MIPSSimulator sim;
+    //By PC (word index into .text). The condition is null for plain breakpoints.
+    private final Map<Integer, Condition> breakpoints = new TreeMap<>();
+    //Each is {start address, length in bytes}
+    private final List<int[]> watchpoints = new ArrayList<>();
+    //The access that stopped the last run, when a watchpoint did
+    private boolean watchTriggered;
+    private int watchAddress;
+    private boolean watchStore;
+
+    /*
+    Stop at a breakpoint only when register compares to value with op
+    (==, !=, <, <=, >, >=, signed)
+     */
+    public static class Condition {
+        final int register;
+        final String op;
+        final int value;
+
+        public Condition(int register, String op, int value) {
+            if(!op.matches("==|!=|<|<=|>|>=")){
+                throw new IllegalArgumentException("Unknown comparison " + op);
+            }
+            this.register = register;
+            this.op = op;
+            this.value = value;
+        }
+
+        boolean holds(MIPSSimulator sim){
+            int current = sim.getRegister(register);
+            switch(op){
+                case "==":
+                    return current == value;
+                case "!=":
+                    return current != value;
+                case "<":
+                    return current < value;
+                case "<=":
+                    return current <= value;
+                case ">":
+                    return current > value;
+                default:
+                    return current >= value;
+            }
+        }
+
+        @Override
+        public String toString(){
+            return "$" + REGISTER_NAMES[register] + " " + op + " " + value;
+        }
+    }
+
+    public Debugger(MIPSSimulator sim) {
+        this.sim = sim;
+        sim.setDebugger(this);
+    }
+
+    /*
+    Stop in front of the instruction at address, or only when condition holds
+    there if condition is not null. Replaces any breakpoint already at address.
+     */
+    public void setBreakpoint(int address, Condition condition){
+        int pc = toPc(address);
+        if((address & 3) != 0 || pc < 0 || pc >= sim.getTextSegment().length()){
+            throw new IllegalArgumentException(String.format("No instruction at %08x", address));
+        }
+        breakpoints.put(pc, condition);
+        sim.setTrap(pc, true);
+    }
+
+    //Returns whether there was a breakpoint at address
+    public boolean clearBreakpoint(int address){
+        int pc = toPc(address);
+        if(!breakpoints.containsKey(pc)){
+            return false;
+        }
+        breakpoints.remove(pc);
+        sim.setTrap(pc, false);
+        return true;
+    }
+
+    boolean hasBreakpoint(int pc){
+        return breakpoints.containsKey(pc);
+    }
+
+    /*
+    Stop after any lw or sw touching a word in [address, address + length)
+     */
+    public void setWatchpoint(int address, int length){
+        if(length <= 0){
+            throw new IllegalArgumentException("Watchpoint length must be positive");
+        }
+        watchpoints.add(new int[]{address, length});
+        setPagesWatched(address, length, true);
+    }
+
+    //Returns whether a watchpoint started at address
+    public boolean clearWatchpoint(int address){
+        for(int i = 0; i < watchpoints.size(); i++){
+            int[] watchpoint = watchpoints.get(i);
+            if(watchpoint[0] == address){
+                watchpoints.remove(i);
+                setPagesWatched(watchpoint[0], watchpoint[1], false);
+                //Pages shared with other watchpoints stay watched
+                for(int[] other : watchpoints){
+                    setPagesWatched(other[0], other[1], true);
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasWatchpoints(){
+        return !watchpoints.isEmpty();
+    }
+
+    /*
+    Called by the simulator for every lw and sw on a watched page. Returns
+    whether the word accessed overlaps a watchpoint, remembering it if so.
+     */
+    boolean watchHit(int address, boolean store){
+        int word = address & ~3;
+        for(int[] watchpoint : watchpoints){
+            if(Integer.compareUnsigned(word - watchpoint[0], watchpoint[1]) < 0
+                    || Integer.compareUnsigned(watchpoint[0] - word, 4) < 0){
+                watchTriggered = true;
+                watchAddress = word;
+                watchStore = store;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void setPagesWatched(int address, int length, boolean watched){
+        Memory memory = sim.getMemory();
+        int lastPage = (address + length - 1) >>> Memory.PAGE_BITS;
+        for(int page = address >>> Memory.PAGE_BITS; ; page++){
+            memory.setWatched(page << Memory.PAGE_BITS, watched);
+            if(page == lastPage){
+                break;
+            }
+        }
+    }
+
+    /*
+    Run one instruction, even one under a breakpoint. Returns as run() does,
+    EXIT_BREAKPOINT meaning it touched a watchpoint.
+     */
+    public int step(){
+        watchTriggered = false;
+        return sim.step();
+    }
+
+    /*
+    Run until a breakpoint whose condition holds, a watchpoint, the
+    instruction limit or the end of the program. Returns as run() does.
+     */
+    public int cont(){
+        //Get off the breakpoint we may be stopped at first
+        int exitCode = step();
+        while(exitCode == MIPSSimulator.EXIT_INSTRUCTION_LIMIT){
+            exitCode = sim.run();
+            if(exitCode != MIPSSimulator.EXIT_BREAKPOINT || watchTriggered){
+                return exitCode;
+            }
+            Condition condition = breakpoints.get(sim.getProgramCounter());
+            if(condition == null || condition.holds(sim)){
+                return exitCode;
+            }
+            exitCode = step();
+        }
+        return exitCode;
+    }
+
+    /*
+    Where the program is stopped and why, e.g.
+        pc {address: 00400010} lw {opcode: 23, rs(base): 09, rt: 08, immediate(offset): 0000}
+        watch {store, address: 10010004}
+     */
+    public String where(){
+        StringBuilder where = new StringBuilder();
+        int pc = sim.getProgramCounter();
+        where.append(String.format("pc {address: %08x}", toAddress(pc)));
+        if(pc >= 0 && pc < sim.getTextSegment().length()){
+            where.append(' ').append(sim.getTextSegment().get(pc));
+        }
+        where.append(System.lineSeparator());
+        if(watchTriggered){
+            where.append(String.format("watch {%s, address: %08x}%n", watchStore ? "store" : "load", watchAddress));
+        }
+        else if(breakpoints.containsKey(pc)){
+            Condition condition = breakpoints.get(pc);
+            where.append(condition == null ? "breakpoint" : "breakpoint {" + condition + "}")
+                    .append(System.lineSeparator());
+        }
+        return where.toString();
+    }
+
+    /*
+    Every register, one per line:
+        $t0  {register: 08, value: 0000000a}
+     */
+    public String registers(){
+        StringBuilder dump = new StringBuilder();
+        for(int r = 0; r < 32; r++){
+            dump.append(String.format("%-5s {register: %02x, value: %08x}%n",
+                    "$" + REGISTER_NAMES[r], r, sim.getRegister(r)));
+        }
+        return dump.toString();
+    }
+
+    /*
+    words words from address, four to a line:
+        mem {address: 10010000, words: 00000001 00000002 00000003 00000004}
+     */
+    public String memory(int address, int words){
+        StringBuilder dump = new StringBuilder();
+        Memory memory = sim.getMemory();
+        address &= ~3;
+        for(int i = 0; i < words; i += 4){
+            dump.append(String.format("mem {address: %08x, words:", address));
+            for(int j = i; j < Math.min(words, i + 4); j++){
+                dump.append(String.format(" %08x", memory.loadWord(address)));
+                address += 4;
+            }
+            dump.append('}').append(System.lineSeparator());
+        }
+        return dump.toString();
+    }
+
+    /*
+    count instructions from address, with the PC marked > and breakpoints *:
+      * 00400010 add {opcode: 00, rs: 08, rt: 09, rd: 0a, shmt: 00, funct: 20}
+     */
+    public String disassemble(int address, int count){
+        StringBuilder listing = new StringBuilder();
+        TextSegment text = sim.getTextSegment();
+        int pc = toPc(address);
+        for(int i = Math.max(0, pc); i < Math.min(text.length(), pc + count); i++){
+            listing.append(i == sim.getProgramCounter() ? '>' : ' ')
+                    .append(breakpoints.containsKey(i) ? '*' : ' ')
+                    .append(String.format(" %08x ", toAddress(i)))
+                    .append(text.get(i))
+                    .append(System.lineSeparator());
+        }
+        return listing.toString();
+    }
+
+    /*
+    Read commands from in until the program ends, quit or end of input, and
+    write results to out. Commands are read a byte at a time, so a program's
+    read int syscalls can take their input from the same stream in between.
+    Returns the exit code of the last run or step, EXIT_BREAKPOINT if the
+    program never got to finish.
+        break ADDR [REG OP VALUE]   breakpoint, e.g. break 0x00400010 $t0 == 5
+        delete ADDR                 remove the breakpoint at ADDR
+        watch ADDR [BYTES]          stop after lw/sw touches ADDR..ADDR+BYTES (default 4)
+        unwatch ADDR                remove the watchpoint starting at ADDR
+        step [N]                    run N instructions (default 1)
+        continue                    run to a breakpoint, watchpoint or the end
+        regs                        print the registers
+        mem ADDR [WORDS]            print memory (default 8 words)
+        list [ADDR] [N]             disassemble (default 8 from the PC)
+        quit
+    Each command can be shortened to its first letter.
+     */
+    public int commandLoop(InputStream in, PrintStream out) throws IOException {
+        int exitCode = MIPSSimulator.EXIT_BREAKPOINT;
+        out.print(where());
+        while(true){
+            out.print("(debug) ");
+            out.flush();
+            String line = readLine(in);
+            if(line == null){
+                return exitCode;
+            }
+            String[] words = line.trim().split("\\s+");
+            if(words[0].isEmpty()){
+                continue;
+            }
+            try{
+                switch(words[0]){
+                    case "b":
+                    case "break":
+                        Condition condition = words.length >= 5
+                                ? new Condition(parseRegister(words[2]), words[3], parseNumber(words[4])) : null;
+                        setBreakpoint(parseNumber(words[1]), condition);
+                        break;
+                    case "d":
+                    case "delete":
+                        if(!clearBreakpoint(parseNumber(words[1]))){
+                            out.println("no breakpoint there");
+                        }
+                        break;
+                    case "w":
+                    case "watch":
+                        setWatchpoint(parseNumber(words[1]), words.length > 2 ? parseNumber(words[2]) : 4);
+                        break;
+                    case "u":
+                    case "unwatch":
+                        if(!clearWatchpoint(parseNumber(words[1]))){
+                            out.println("no watchpoint there");
+                        }
+                        break;
+                    case "s":
+                    case "step":
+                        int steps = words.length > 1 ? parseNumber(words[1]) : 1;
+                        exitCode = step();
+                        for(int i = 1; i < steps && exitCode == MIPSSimulator.EXIT_INSTRUCTION_LIMIT; i++){
+                            exitCode = step();
+                        }
+                        if(finished(exitCode)){
+                            return exitCode;
+                        }
+                        out.print(where());
+                        break;
+                    case "c":
+                    case "continue":
+                        exitCode = cont();
+                        if(finished(exitCode)){
+                            return exitCode;
+                        }
+                        out.print(where());
+                        break;
+                    case "r":
+                    case "regs":
+                        out.print(registers());
+                        break;
+                    case "m":
+                    case "mem":
+                        out.print(memory(parseNumber(words[1]), words.length > 2 ? parseNumber(words[2]) : 8));
+                        break;
+                    case "l":
+                    case "list":
+                        int address = words.length > 1 ? parseNumber(words[1]) : toAddress(sim.getProgramCounter());
+                        out.print(disassemble(address, words.length > 2 ? parseNumber(words[2]) : 8));
+                        break;
+                    case "q":
+                    case "quit":
+                        return exitCode;
+                    default:
+                        out.println("unknown command " + words[0]);
+                }
+            }
+            catch(IllegalArgumentException | ArrayIndexOutOfBoundsException e){
+                out.println("bad command: " + line.trim());
+            }
+        }
+    }
+
+    //Whether the program can run no further
+    private static boolean finished(int exitCode){
+        return exitCode == MIPSSimulator.EXIT_NORMAL || exitCode == MIPSSimulator.EXIT_DROPPED_OFF_BOTTOM;
+    }
+
+    //One line without its terminator, or null at the end of input
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = in.read();
+        if(b == -1){
+            return null;
+        }
+        while(b != -1 && b != '\n'){
+            if(b != '\r'){
+                line.write(b);
+            }
+            b = in.read();
+        }
+        return line.toString();
+    }
+
+    //Decimal, or hex with 0x. Negative numbers are allowed.
+    private static int parseNumber(String word){
+        if(word.startsWith("0x") || word.startsWith("0X")){
+            return (int)Long.parseLong(word.substring(2), 16);
+        }
+        return Integer.parseInt(word);
+    }
+
+    //$t0, t0, $8 or 8
+    private static int parseRegister(String word){
+        String name = word.startsWith("$") ? word.substring(1) : word;
+        for(int r = 0; r < REGISTER_NAMES.length; r++){
+            if(REGISTER_NAMES[r].equals(name)){
+                return r;
+            }
+        }
+        int r = Integer.parseInt(name);
+        if(r < 0 || r > 31){
+            throw new IllegalArgumentException("No register " + word);
+        }
+        return r;
+    }
+
+    private static int toPc(int address){
+        return (address - TEXT_BASE) >> 2;
+    }
+
+    private static int toAddress(int pc){
+        return TEXT_BASE + (pc << 2);
+    }
+}
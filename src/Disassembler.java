@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Disassembles large text dumps, one line per word in exactly the format of
+Instruction.toString().
+Words are decoded straight from the int with shifts and masks and written as
+bytes into a reused buffer, using tables of pre-built mnemonic and hex bytes,
+so no Instruction or String is made per word.
+Big inputs are cut into chunks that are formatted in parallel and written in order.
+ */
+public class Disassembler {
+    private static final int CHUNK_WORDS = 1 << 16;
+    //Longest line is an I format one with a 5 letter mnemonic, 70 bytes with the newline
+    private static final int MAX_LINE = 80;
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    //Two hex digits of every byte value, at 2 * value
+    private static final byte[] HEX_PAIRS = new byte[512];
+    //Indexed by funct for R format and by opcode for everything else. "Error" where unknown.
+    private static final byte[][] R_MNEMONICS = new byte[64][];
+    private static final byte[][] I_MNEMONICS = new byte[64][];
+
+    private static final byte[] R_OPCODE = bytes(" {opcode: ");
+    private static final byte[] R_RS = bytes(", rs: ");
+    private static final byte[] R_RT = bytes(", rt: ");
+    private static final byte[] R_RD = bytes(", rd: ");
+    private static final byte[] R_SHMT = bytes(", shmt: 00");
+    private static final byte[] R_FUNCT = bytes(", funct: ");
+    private static final byte[] I_RS = bytes(", rs(base): ");
+    private static final byte[] I_IMMEDIATE = bytes(", immediate(offset): ");
+    private static final byte[] J_LINE = bytes("j {opcode: 02, index: ");
+    private static final byte[] SYSCALL_LINE = bytes("syscall {opcode: 00, code: 000000, funct: 0c}\n");
+
+    static {
+        for(int i = 0; i < 256; i++){
+            HEX_PAIRS[2 * i] = HEX_DIGITS[i >>> 4];
+            HEX_PAIRS[2 * i + 1] = HEX_DIGITS[i & 15];
+        }
+        byte[] error = bytes("Error");
+        for(int i = 0; i < 64; i++){
+            R_MNEMONICS[i] = error;
+            I_MNEMONICS[i] = error;
+        }
+        //Same as Instruction.convertMnemonic
+        R_MNEMONICS[0x20] = bytes("add");
+        R_MNEMONICS[0x24] = bytes("and");
+        R_MNEMONICS[0x25] = bytes("or");
+        R_MNEMONICS[0x2a] = bytes("slt");
+        R_MNEMONICS[0x22] = bytes("sub");
+        R_MNEMONICS[0x0c] = bytes("syscall");
+        I_MNEMONICS[0x09] = bytes("addiu");
+        I_MNEMONICS[0x0c] = bytes("andi");
+        I_MNEMONICS[0x04] = bytes("beq");
+        I_MNEMONICS[0x05] = bytes("bne");
+        I_MNEMONICS[0x0f] = bytes("lui");
+        I_MNEMONICS[0x23] = bytes("lw");
+        I_MNEMONICS[0x0d] = bytes("ori");
+        I_MNEMONICS[0x2b] = bytes("sw");
+        I_MNEMONICS[0x30] = bytes("ll");
+        I_MNEMONICS[0x38] = bytes("sc");
+    }
+
+    private final int threads;
+
+    public Disassembler(int threads) {
+        this.threads = threads;
+    }
+
+    /*
+    Write one line per word to out. out is not flushed or closed.
+     */
+    public void disassemble(IntBuffer words, OutputStream out) throws IOException, InterruptedException {
+        int count = words.remaining();
+        int base = words.position();
+        if(threads <= 1 || count <= CHUNK_WORDS){
+            byte[] buffer = new byte[Math.min(count, CHUNK_WORDS) * MAX_LINE];
+            for(int start = 0; start < count; start += CHUNK_WORDS){
+                int end = Math.min(count, start + CHUNK_WORDS);
+                out.write(buffer, 0, formatChunk(words, base + start, base + end, buffer));
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try{
+            //Enough chunks in flight to keep every thread busy while the oldest is written.
+            //Buffers go back to the free list once written, so at most window of them exist.
+            int window = threads * 2;
+            Deque<Future<Integer>> pending = new ArrayDeque<>();
+            Deque<byte[]> pendingBuffers = new ArrayDeque<>();
+            List<byte[]> free = new ArrayList<>();
+            for(int start = 0; start < count; start += CHUNK_WORDS){
+                if(pending.size() == window){
+                    writeOldest(pending, pendingBuffers, free, out);
+                }
+                int from = base + start;
+                int to = base + Math.min(count, start + CHUNK_WORDS);
+                byte[] buffer = free.isEmpty() ? new byte[CHUNK_WORDS * MAX_LINE] : free.remove(free.size() - 1);
+                pending.add(executor.submit(() -> formatChunk(words, from, to, buffer)));
+                pendingBuffers.add(buffer);
+            }
+            while(!pending.isEmpty()){
+                writeOldest(pending, pendingBuffers, free, out);
+            }
+        }
+        finally{
+            executor.shutdownNow();
+        }
+    }
+
+    private static void writeOldest(Deque<Future<Integer>> pending, Deque<byte[]> pendingBuffers, List<byte[]> free,
+                                    OutputStream out) throws IOException, InterruptedException {
+        byte[] buffer = pendingBuffers.removeFirst();
+        int length;
+        try{
+            length = pending.removeFirst().get();
+        }
+        catch(ExecutionException e){
+            throw new IllegalStateException(e.getCause());
+        }
+        out.write(buffer, 0, length);
+        free.add(buffer);
+    }
+
+    /*
+    Format words[from, to) into out, which needs MAX_LINE bytes per word.
+    Only absolute gets are used, so chunks of one buffer can be formatted at once.
+    Returns the number of bytes written.
+     */
+    static int formatChunk(IntBuffer words, int from, int to, byte[] out){
+        int pos = 0;
+        for(int i = from; i < to; i++){
+            pos = formatWord(words.get(i), out, pos);
+        }
+        return pos;
+    }
+
+    /*
+    Format one word as Instruction.toString() does, followed by a newline.
+    Returns the position after it.
+     */
+    static int formatWord(int word, byte[] out, int pos){
+        int opcode = word >>> 26;
+        if(word == 0x0000000c){
+            System.arraycopy(SYSCALL_LINE, 0, out, pos, SYSCALL_LINE.length);
+            return pos + SYSCALL_LINE.length;
+        }
+        if(opcode == 0x00){
+            //mnemonic {opcode: XX, rs: XX, rt: XX, rd: XX, shmt: 00, funct: XX}
+            int funct = word & 63;
+            pos = put(R_MNEMONICS[funct], out, pos);
+            pos = put(R_OPCODE, out, pos);
+            pos = hex2(opcode, out, pos);
+            pos = put(R_RS, out, pos);
+            pos = hex2((word >>> 21) & 31, out, pos);
+            pos = put(R_RT, out, pos);
+            pos = hex2((word >>> 16) & 31, out, pos);
+            pos = put(R_RD, out, pos);
+            pos = hex2((word >>> 11) & 31, out, pos);
+            pos = put(R_SHMT, out, pos);
+            pos = put(R_FUNCT, out, pos);
+            pos = hex2(funct, out, pos);
+        }
+        else if(opcode == 0x02){
+            //j {opcode: 02, index: XXXXXXX}
+            pos = put(J_LINE, out, pos);
+            int index = word & 0x03ffffff;
+            out[pos++] = HEX_DIGITS[index >>> 24];
+            pos = hex2((index >>> 16) & 0xff, out, pos);
+            pos = hex2((index >>> 8) & 0xff, out, pos);
+            pos = hex2(index & 0xff, out, pos);
+        }
+        else{
+            //mnemonic {opcode: XX, rs(base): XX, rt: XX, immediate(offset): XXXX}
+            pos = put(I_MNEMONICS[opcode], out, pos);
+            pos = put(R_OPCODE, out, pos);
+            pos = hex2(opcode, out, pos);
+            pos = put(I_RS, out, pos);
+            pos = hex2((word >>> 21) & 31, out, pos);
+            pos = put(R_RT, out, pos);
+            pos = hex2((word >>> 16) & 31, out, pos);
+            pos = put(I_IMMEDIATE, out, pos);
+            pos = hex2((word >>> 8) & 0xff, out, pos);
+            pos = hex2(word & 0xff, out, pos);
+        }
+        out[pos++] = '}';
+        out[pos++] = '\n';
+        return pos;
+    }
+
+    private static int put(byte[] text, byte[] out, int pos){
+        System.arraycopy(text, 0, out, pos, text.length);
+        return pos + text.length;
+    }
+
+    private static int hex2(int value, byte[] out, int pos){
+        out[pos] = HEX_PAIRS[2 * value];
+        out[pos + 1] = HEX_PAIRS[2 * value + 1];
+        return pos + 2;
+    }
+
+    private static byte[] bytes(String text){
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /*
+    Usage: Disassembler <.text file> [--threads=N] [--big-endian]
+    Prints to stdout. Files ending in .bin are raw binary images, anything else is hex text.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        ByteOrder order = ByteOrder.LITTLE_ENDIAN;
+        Path file = null;
+        for(String arg : args){
+            if(arg.startsWith("--threads=")){
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            }
+            else if(arg.equals("--big-endian")){
+                order = ByteOrder.BIG_ENDIAN;
+            }
+            else{
+                file = Paths.get(arg);
+            }
+        }
+        if(file == null){
+            System.err.println("Usage: Disassembler <.text file> [--threads=N] [--big-endian]");
+            return;
+        }
+        IntBuffer words = ProgramLoader.read(file, false, order);
+        new Disassembler(threads).disassemble(words, System.out);
+        System.out.flush();
+    }
+}
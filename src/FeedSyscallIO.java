@@ -0,0 +1,110 @@
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+Syscall I/O whose input arrives over time, for guests run by GuestScheduler.
+Input is appended with feed() from any thread and ended with closeInput().
+hasInputReady() tells whether a read int can finish without waiting, so the
+scheduler can park a guest instead of blocking a thread on it.
+Output is collected in memory like MemorySyscallIO.
+ */
+public class FeedSyscallIO extends StreamSyscallIO {
+    private final FeedInputStream input;
+    private final ByteArrayOutputStream output;
+
+    public FeedSyscallIO() {
+        this(new FeedInputStream(), new ByteArrayOutputStream());
+    }
+
+    private FeedSyscallIO(FeedInputStream input, ByteArrayOutputStream output) {
+        super(input, output);
+        this.input = input;
+        this.output = output;
+    }
+
+    public void feed(String text){
+        input.append(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //No more input will come. Reads past the end then fail as usual.
+    public void closeInput(){
+        input.closeInput();
+    }
+
+    /*
+    True when the next read int would not have to wait for more input: there
+    is a whole token followed by whitespace, or the input has been closed
+     */
+    public boolean hasInputReady(){
+        return input.hasToken();
+    }
+
+    public String getOutput(){
+        flush();
+        return output.toString();
+    }
+
+    public byte[] getOutputBytes(){
+        flush();
+        return output.toByteArray();
+    }
+
+    /*
+    Growable byte queue. read() is only called when hasToken() said so,
+    and returns -1 instead of waiting if it ever runs dry.
+     */
+    private static class FeedInputStream extends InputStream {
+        private byte[] bytes = new byte[64];
+        private int start;
+        private int end;
+        private boolean closed;
+
+        synchronized void append(byte[] more){
+            if(end + more.length > bytes.length){
+                //Drop what has been read, then grow if that is not enough
+                int length = end - start;
+                byte[] target = length + more.length > bytes.length
+                        ? new byte[Math.max(bytes.length * 2, length + more.length)] : bytes;
+                System.arraycopy(bytes, start, target, 0, length);
+                bytes = target;
+                start = 0;
+                end = length;
+            }
+            System.arraycopy(more, 0, bytes, end, more.length);
+            end += more.length;
+        }
+
+        synchronized void closeInput(){
+            closed = true;
+        }
+
+        synchronized boolean hasToken(){
+            if(closed){
+                return true;
+            }
+            int i = start;
+            while(i < end && Character.isWhitespace(bytes[i])){
+                ++i;
+            }
+            if(i == end){
+                return false;
+            }
+            //The token ends at the next whitespace, which has to be here already
+            while(i < end && !Character.isWhitespace(bytes[i])){
+                ++i;
+            }
+            return i < end;
+        }
+
+        @Override
+        public synchronized int read(){
+            if(start == end){
+                return -1;
+            }
+            int ch = bytes[start] & 0xff;
+            ++start;
+            return ch;
+        }
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.UncheckedIOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/*
+Runs many guest programs on a small work-stealing pool, one quantum of
+instructions at a time.
+After each quantum a guest goes to the back of its worker's queue, so no guest
+holds a thread for long and idle workers steal queued guests from busy ones.
+A guest that reaches a read int with no complete input is parked and does not
+use a thread until feed() or closeInput() makes the input ready.
+Guests that use up their instruction budget or wall time budget are killed
+between quanta and reported as EXIT_KILLED_INSTRUCTIONS or EXIT_KILLED_WALL_TIME,
+so runaways are told apart from programs that dropped off the bottom.
+Quanta are run with run() rather than runTimed(), which would count every
+quantum as a run and every preemption as over budget. finish() records the
+whole guest in SimulatorMetrics as one run instead.
+ */
+public class GuestScheduler implements AutoCloseable {
+    public static final long DEFAULT_QUANTUM = 100_000;
+
+    private final ForkJoinPool pool;
+    //Kills parked guests whose wall time runs out while they wait
+    private final ScheduledExecutorService timer;
+    private final long quantum;
+
+    public GuestScheduler(int parallelism, long quantum) {
+        //FIFO local queues, so a requeued guest waits behind the others
+        pool = new ForkJoinPool(parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        ScheduledThreadPoolExecutor timerPool = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "guest-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timerPool.setRemoveOnCancelPolicy(true);
+        timer = timerPool;
+        this.quantum = quantum;
+    }
+
+    /*
+    One guest program and its scheduling state
+     */
+    public static class Guest {
+        private final String name;
+        private final MIPSSimulator sim;
+        private final FeedSyscallIO io;
+        //Runs on the pool before the first quantum, e.g. to load the program. May be null.
+        private final Runnable setup;
+        private final long instructionBudget;
+        private final long wallNanosBudget;
+        private final CompletableFuture<BatchRunner.Result> result = new CompletableFuture<>();
+        private GuestScheduler scheduler;
+        private long startNanos;
+        //Time spent in quanta, not counting time queued or parked
+        private long runNanos;
+        private boolean setupDone;
+        //Guarded by this
+        private boolean parked;
+        private boolean finished;
+        //Wall time kill for a parked guest, cancelled when it wakes. Guarded by this.
+        private ScheduledFuture<?> expiry;
+
+        public Guest(String name, MIPSSimulator sim, FeedSyscallIO io, Runnable setup,
+                     long instructionBudget, long wallNanosBudget) {
+            this.name = name;
+            this.sim = sim;
+            this.io = io;
+            this.setup = setup;
+            this.instructionBudget = instructionBudget;
+            this.wallNanosBudget = wallNanosBudget;
+        }
+
+        public CompletableFuture<BatchRunner.Result> getResult(){
+            return result;
+        }
+
+        /*
+        Add input. Wakes the guest if it was parked waiting for it.
+         */
+        public void feed(String text){
+            io.feed(text);
+            wakeIfReady();
+        }
+
+        public void closeInput(){
+            io.closeInput();
+            wakeIfReady();
+        }
+
+        private void wakeIfReady(){
+            synchronized(this){
+                if(!parked || !io.hasInputReady()){
+                    return;
+                }
+                parked = false;
+                if(expiry != null){
+                    expiry.cancel(false);
+                    expiry = null;
+                }
+            }
+            scheduler.schedule(this);
+        }
+    }
+
+    /*
+    Start running a guest. The simulator should use the guest's io.
+     */
+    public Guest submit(Guest guest){
+        guest.scheduler = this;
+        guest.sim.setSyscallIO(guest.io);
+        guest.sim.setPauseOnRead(true);
+        guest.startNanos = System.nanoTime();
+        schedule(guest);
+        return guest;
+    }
+
+    private void schedule(Guest guest){
+        //From a worker this lands on its own queue, from anywhere else on a shared one
+        pool.execute(() -> runQuantum(guest));
+    }
+
+    private void runQuantum(Guest guest){
+        try{
+            if(!guest.setupDone){
+                guest.setupDone = true;
+                if(guest.setup != null){
+                    guest.setup.run();
+                }
+            }
+            MIPSSimulator sim = guest.sim;
+            long remaining = guest.instructionBudget - sim.getInstructionCount();
+            sim.setInstructionLimit(sim.getInstructionCount() + Math.min(quantum, Math.max(0, remaining)));
+            long runStart = System.nanoTime();
+            int exitCode = sim.run();
+            guest.runNanos += System.nanoTime() - runStart;
+            if(exitCode == MIPSSimulator.EXIT_INSTRUCTION_LIMIT){
+                if(sim.getInstructionCount() >= guest.instructionBudget){
+                    finish(guest, MIPSSimulator.EXIT_KILLED_INSTRUCTIONS, null);
+                }
+                else if(overTime(guest)){
+                    finish(guest, MIPSSimulator.EXIT_KILLED_WALL_TIME, null);
+                }
+                else{
+                    schedule(guest);
+                }
+            }
+            else if(exitCode == MIPSSimulator.EXIT_PAUSED_AT_READ){
+                if(overTime(guest)){
+                    finish(guest, MIPSSimulator.EXIT_KILLED_WALL_TIME, null);
+                }
+                else{
+                    park(guest);
+                }
+            }
+            else{
+                finish(guest, exitCode, null);
+            }
+        }
+        catch(UncheckedIOException e){
+            finish(guest, 0, e.getCause().toString());
+        }
+        catch(RuntimeException e){
+            finish(guest, 0, e.toString());
+        }
+    }
+
+    /*
+    Run again at once if the input is already there, otherwise wait for
+    feed() or closeInput(), or for the wall time to run out
+     */
+    private void park(Guest guest){
+        synchronized(guest){
+            if(!guest.io.hasInputReady()){
+                guest.parked = true;
+                long left = guest.wallNanosBudget - (System.nanoTime() - guest.startNanos);
+                if(guest.wallNanosBudget != Long.MAX_VALUE){
+                    guest.expiry = timer.schedule(() -> expire(guest), Math.max(0, left), TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+        }
+        schedule(guest);
+    }
+
+    private void expire(Guest guest){
+        synchronized(guest){
+            if(!guest.parked){
+                return;
+            }
+            guest.parked = false;
+            guest.expiry = null;
+        }
+        finish(guest, MIPSSimulator.EXIT_KILLED_WALL_TIME, null);
+    }
+
+    private static boolean overTime(Guest guest){
+        return System.nanoTime() - guest.startNanos >= guest.wallNanosBudget;
+    }
+
+    //error is null unless the guest threw, in which case exitCode is ignored
+    private static void finish(Guest guest, int exitCode, String error){
+        synchronized(guest){
+            if(guest.finished){
+                return;
+            }
+            guest.finished = true;
+        }
+        byte[] output = guest.io.getOutputBytes();
+        long wallNanos = System.nanoTime() - guest.startNanos;
+        SimulatorMetrics metrics = SimulatorMetrics.get();
+        metrics.runs.increment();
+        metrics.runLatency.record(guest.runNanos);
+        metrics.instructionsRetired.add(guest.sim.getInstructionCount());
+        if(exitCode == MIPSSimulator.EXIT_DROPPED_OFF_BOTTOM){
+            metrics.runsDroppedOffBottom.increment();
+        }
+        else if(exitCode == MIPSSimulator.EXIT_KILLED_INSTRUCTIONS){
+            metrics.runsOverBudget.increment();
+        }
+        guest.result.complete(new BatchRunner.Result(guest.name, error == null ? exitCode : null, error,
+                error == null ? BatchRunner.digest(output) : "", guest.sim.getInstructionCount(), wallNanos));
+    }
+
+    /*
+    Stop the workers. Guests still queued or parked are abandoned.
+     */
+    @Override
+    public void close(){
+        pool.shutdownNow();
+        timer.shutdownNow();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+One hart's view of memory shared by several harts running on their own threads.
+Pages, flags and the page table are shared. The TLBs and the listener belong
+to the view, so the hot path never touches state another thread writes.
+Every lw is an acquire and every sw a release, so a hart that sees a word
+another hart stored also sees everything that hart stored before it.
+ll and sc are volatile and CAS, as in Memory.
+Only used for multi-hart runs, so single hart runs keep plain array access.
+ */
+public class HartMemory extends Memory {
+    /*
+    First view, with empty memory
+     */
+    public HartMemory() {
+        super();
+    }
+
+    /*
+    Another view of the pages behind shared
+     */
+    public HartMemory(HartMemory shared) {
+        super(shared);
+    }
+
+    @Override
+    public int loadWord(int address){
+        int pageNumber = address >>> PAGE_BITS;
+        int[] page;
+        if(pageNumber == lastPageNumber){
+            page = lastPage;
+        }
+        else{
+            page = findPage(pageNumber, false);
+            if(watching){
+                loadedFromPage(pageNumber, address);
+            }
+            if(page == null){
+                return 0;
+            }
+        }
+        return (int)WORDS.getAcquire(page, (address & OFFSET_MASK) >>> 2);
+    }
+
+    @Override
+    public void storeWord(int address, int value){
+        int pageNumber = address >>> PAGE_BITS;
+        if(pageNumber == lastWritePageNumber){
+            WORDS.setRelease(lastWritePage, (address & OFFSET_MASK) >>> 2, value);
+            return;
+        }
+        int[] page = writablePage(pageNumber);
+        WORDS.setRelease(page, (address & OFFSET_MASK) >>> 2, value);
+        storedToPage(pageNumber, address);
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+Runs one program against many inputs without repeating its setup.
+The program runs once up to its first read int syscall, then the paused
+simulator is forked once per input. Forks share memory copy-on-write and
+share the decoded and compiled code, so each one only pays for the pages
+it writes. Forks run in parallel, each with its own MemorySyscallIO.
+ */
+public class InputSweep {
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long instructionBudget = Long.MAX_VALUE;
+    private boolean jitEnabled = true;
+    //Filled in by run()
+    private long setupInstructions;
+    private long setupNanos;
+    private int sharedPages;
+    private long copiedPages;
+
+    public void setThreads(int threads){
+        this.threads = threads;
+    }
+
+    public void setInstructionBudget(long instructionBudget){
+        this.instructionBudget = instructionBudget;
+    }
+
+    public void setJitEnabled(boolean jitEnabled){
+        this.jitEnabled = jitEnabled;
+    }
+
+    /*
+    Run the program once per input. Each result's output digest covers what
+    was printed before the fork followed by that fork's own output, so it
+    matches a plain run of the program with the same input.
+     */
+    public List<BatchRunner.Result> run(Path textFile, Path dataFile, List<String> inputs) throws InterruptedException {
+        long start = System.nanoTime();
+        MIPSSimulator parent = new MIPSSimulator();
+        parent.setJitEnabled(jitEnabled);
+        parent.setInstructionLimit(instructionBudget);
+        parent.setPauseOnRead(true);
+        MemorySyscallIO setupIO = new MemorySyscallIO("");
+        parent.setSyscallIO(setupIO);
+        int setupExit = parent.mainLoop(dataFile.toString(), textFile.toString());
+        byte[] prefix = setupIO.getOutputBytes();
+        setupInstructions = parent.getInstructionCount();
+        setupNanos = System.nanoTime() - start;
+        sharedPages = parent.getMemory().getPageCount();
+
+        List<BatchRunner.Result> results = new ArrayList<>();
+        if(setupExit != MIPSSimulator.EXIT_PAUSED_AT_READ){
+            //Nothing to sweep, the program never asked for input
+            results.add(new BatchRunner.Result("(no read)", setupExit, null, BatchRunner.digest(prefix),
+                    setupInstructions, setupNanos));
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try{
+            List<Future<BatchRunner.Result>> futures = new ArrayList<>();
+            List<MIPSSimulator> children = new ArrayList<>();
+            for(int i = 0; i < inputs.size(); i++){
+                //Forking happens on this thread, the paused parent is never run again
+                MIPSSimulator child = parent.fork();
+                children.add(child);
+                String name = "input " + (i + 1) + ": " + inputs.get(i).trim();
+                String input = inputs.get(i);
+                futures.add(executor.submit(() -> runChild(name, child, input, prefix)));
+            }
+            for(int i = 0; i < futures.size(); i++){
+                try{
+                    results.add(futures.get(i).get());
+                }
+                catch(ExecutionException e){
+                    results.add(new BatchRunner.Result("input " + (i + 1), null, String.valueOf(e.getCause()),
+                            "", 0, 0));
+                }
+                copiedPages += children.get(i).getMemory().getCopiedPageCount();
+            }
+            return results;
+        }
+        finally{
+            executor.shutdownNow();
+        }
+    }
+
+    private static BatchRunner.Result runChild(String name, MIPSSimulator child, String input, byte[] prefix){
+        long start = System.nanoTime();
+        MemorySyscallIO io = new MemorySyscallIO(input);
+        child.setSyscallIO(io);
+        try{
+            int exitCode = child.run();
+            byte[] output = io.getOutputBytes();
+            byte[] whole = new byte[prefix.length + output.length];
+            System.arraycopy(prefix, 0, whole, 0, prefix.length);
+            System.arraycopy(output, 0, whole, prefix.length, output.length);
+            return new BatchRunner.Result(name, exitCode, null, BatchRunner.digest(whole),
+                    child.getInstructionCount(), System.nanoTime() - start);
+        }
+        catch(RuntimeException e){
+            return new BatchRunner.Result(name, null, e.toString(), "", child.getInstructionCount(),
+                    System.nanoTime() - start);
+        }
+    }
+
+    /*
+    One line about the shared setup and how much the forks copied
+     */
+    public String summary(int forks){
+        return String.format("setup: %d instructions in %.2f ms, %d pages shared, %d pages copied by %d forks%n",
+                setupInstructions, setupNanos / 1e6, sharedPages, copiedPages, forks);
+    }
+
+    /*
+    Usage: InputSweep <.text file> <.data file> <inputs file> [--threads=N] [--budget=N] [--interpret]
+    Every line of the inputs file is the whole input of one run.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        InputSweep sweep = new InputSweep();
+        List<String> files = new ArrayList<>();
+        for(String arg : args){
+            if(arg.startsWith("--threads=")){
+                sweep.setThreads(Integer.parseInt(arg.substring("--threads=".length())));
+            }
+            else if(arg.startsWith("--budget=")){
+                sweep.setInstructionBudget(Long.parseLong(arg.substring("--budget=".length())));
+            }
+            else if(arg.equals("--interpret")){
+                sweep.setJitEnabled(false);
+            }
+            else{
+                files.add(arg);
+            }
+        }
+        if(files.size() != 3){
+            System.err.println("Usage: InputSweep <.text file> <.data file> <inputs file> [--threads=N] [--budget=N] [--interpret]");
+            return;
+        }
+        List<String> inputs = new ArrayList<>();
+        for(String line : Files.readAllLines(Paths.get(files.get(2)))){
+            inputs.add(line + "\n");
+        }
+        List<BatchRunner.Result> results = sweep.run(Paths.get(files.get(0)), Paths.get(files.get(1)), inputs);
+        System.out.print(BatchRunner.formatTable(results));
+        System.out.print(sweep.summary(inputs.size()));
+    }
+}
@@ -5,19 +5,129 @@ public class Instruction {
     private final String JTYPE = "JFormat";
     private final String SYSCALL = "Syscall";
 
+    //Dense operation codes assigned at decode time so the simulator can
+    //dispatch with a tableswitch instead of switching on the mnemonic
+    public static final int OP_UNKNOWN = 0;
+    public static final int OP_ADD = 1;
+    public static final int OP_ADDIU = 2;
+    public static final int OP_AND = 3;
+    public static final int OP_ANDI = 4;
+    public static final int OP_BEQ = 5;
+    public static final int OP_BNE = 6;
+    public static final int OP_J = 7;
+    public static final int OP_LUI = 8;
+    public static final int OP_LW = 9;
+    public static final int OP_OR = 10;
+    public static final int OP_ORI = 11;
+    public static final int OP_SLT = 12;
+    public static final int OP_SUB = 13;
+    public static final int OP_SW = 14;
+    public static final int OP_SYSCALL = 15;
+    public static final int OP_LL = 16;
+    public static final int OP_SC = 17;
+    public static final int OPERATION_COUNT = 18;
+    //Superinstructions, never decoded from a word. BlockCache fuses common pairs
+    //into these for the interpreter. Numbered after the real operations so the
+    //simulator's switch stays dense.
+    public static final int OP_LUI_ORI = 18;
+    public static final int OP_SLT_BEQ = 19;
+    public static final int OP_SLT_BNE = 20;
+    public static final int OP_ADDIU_BNE = 21;
+    //Breakpoint trap patched over an instruction by the Debugger
+    public static final int OP_BREAK = 22;
+    //Mnemonic of each operation code, for reports that count by operation
+    private static final String[] OPERATION_NAMES = {"unknown", "add", "addiu", "and", "andi", "beq", "bne", "j",
+            "lui", "lw", "or", "ori", "slt", "sub", "sw", "syscall", "ll", "sc",
+            "lui+ori", "slt+beq", "slt+bne", "addiu+bne", "break"};
+
+    //Every field is decoded once from the 32 bit word with shifts and masks.
+    //Only toString builds Strings, and only the first time it is called.
+    private final int word;
     private String instructionType;
     private String mnemonic;
-    private String opcode;
-    private String rs;
-    private String rt;
-    private String rd;
-    private String shmt;
-    private String funct;
-    private String immediate;
-    private String index;
+    private int operation;
+    private int opcode;
+    private int rs;
+    private int rt;
+    private int rd;
+    private int shmt;
+    private int funct;
+    //Sign extended at decode time
+    private int immediate;
+    private int index;
+    private String disassembly;
+    //The pair a superinstruction stands for, or a trap and the instruction
+    //it covers (second is null). Null for decoded instructions.
+    private Instruction first;
+    private Instruction second;
 
     public Instruction(String hexString){
-        disassemble(hexString);
+        this((int)Long.parseLong(hexString, 16));
+    }
+
+    public Instruction(int word){
+        this.word = word;
+        disassemble(word);
+    }
+
+    /*
+    Superinstruction for first followed by second. Fields are set up for the
+    fused handlers in MIPSSimulator:
+        lui + ori      rt: lui's rt, immediate: its value, rd: ori's rt, index: its value
+        slt + beq/bne  rs, rt, rd: as in slt. The branch compares rd with $zero.
+        addiu + bne    rs, rt, immediate: as in addiu. The branch compares rt with rd.
+     */
+    static Instruction fuse(int operation, Instruction first, Instruction second){
+        Instruction fused = new Instruction(first.word);
+        fused.operation = operation;
+        fused.mnemonic = OPERATION_NAMES[operation];
+        fused.first = first;
+        fused.second = second;
+        switch(operation){
+            case OP_LUI_ORI:
+                fused.rt = first.rt;
+                fused.immediate = first.getUnsignedImmediate() << 16;
+                fused.rd = second.rt;
+                fused.index = fused.immediate | second.getUnsignedImmediate();
+                break;
+            case OP_SLT_BEQ:
+            case OP_SLT_BNE:
+                fused.rs = first.rs;
+                fused.rt = first.rt;
+                fused.rd = first.rd;
+                break;
+            case OP_ADDIU_BNE:
+                fused.rs = first.rs;
+                fused.rt = first.rt;
+                fused.immediate = first.immediate;
+                fused.rd = second.rs == first.rt ? second.rt : second.rs;
+                break;
+        }
+        return fused;
+    }
+
+    /*
+    Breakpoint trap covering original. Prints as original.
+     */
+    static Instruction trap(Instruction original){
+        Instruction trap = new Instruction(original.word);
+        trap.operation = OP_BREAK;
+        trap.first = original;
+        trap.disassembly = original.toString();
+        return trap;
+    }
+
+    //The instruction a trap covers, null for anything else
+    public Instruction getTrapped(){
+        return operation == OP_BREAK ? first : null;
+    }
+
+    public static String operationName(int operation){
+        return OPERATION_NAMES[operation];
+    }
+
+    public int getWord(){
+        return word;
     }
 
     public String getInstructionType(){
@@ -28,117 +138,129 @@ public class Instruction {
         return mnemonic;
     }
 
-    public String getOpcode(){
+    public int getOperation(){
+        return operation;
+    }
+
+    public int getOpcode(){
         return opcode;
     }
 
-    public String getRs(){
+    public int getRs(){
         return rs;
     }
 
-    public String getRt(){
+    public int getRt(){
         return rt;
     }
 
-    public String getRd(){
+    public int getRd(){
         return rd;
     }
 
-    public String getShmt(){
+    public int getShmt(){
         return shmt;
     }
 
-    public String getFunct(){
+    public int getFunct(){
         return funct;
     }
 
-    public String getImmediate(){
+    //Sign extended 16 bit immediate. Used by addiu, beq, bne, lw and sw
+    public int getImmediate(){
         return immediate;
     }
 
-    public String getIndex(){
+    //Zero extended 16 bit immediate. Used by andi, ori and lui
+    public int getUnsignedImmediate(){
+        return immediate & 0xffff;
+    }
+
+    public int getIndex(){
         return index;
     }
 
     public String toString(){
+        if(disassembly == null){
+            disassembly = first != null ? first + "; " + second : buildString();
+        }
+        return disassembly;
+    }
+
+    private String buildString(){
         String toPrint = "Error";
         switch(instructionType){
             case RTYPE:
-                //mnemonic {opcode: XX, rs: XX, rt: XX, rd: XX, shmt: XX, funct: XX}
-                toPrint = String.format("%s {opcode: %s, rs: %s, rt: %s, rd: %s, shmt: %s, funct: %s}",
-                        mnemonic, opcode, rs, rt, rd, shmt, funct);
+                //mnemonic {opcode: XX, rs: XX, rt: XX, rd: XX, shmt: 00, funct: XX}
+                //shmt is always printed as 00, none of the supported instructions use it
+                toPrint = String.format("%s {opcode: %02x, rs: %02x, rt: %02x, rd: %02x, shmt: 00, funct: %02x}",
+                        mnemonic, opcode, rs, rt, rd, funct);
                 break;
             case ITYPE:
                 //mnemonic {opcode: XX, rs(base): XX, rt: XX, immediate(offset): XXXX}
-                toPrint = String.format("%s {opcode: %s, rs(base): %s, rt: %s, immediate(offset): %s}",
-                        mnemonic, opcode, rs, rt, immediate);
+                toPrint = String.format("%s {opcode: %02x, rs(base): %02x, rt: %02x, immediate(offset): %04x}",
+                        mnemonic, opcode, rs, rt, getUnsignedImmediate());
                 break;
             case JTYPE:
                 //mnemonic {opcode: XX, index: XXXXXXX}
-                toPrint = String.format("%s {opcode: %s, index: %s}",
+                toPrint = String.format("%s {opcode: %02x, index: %07x}",
                         mnemonic, opcode, index);
                 break;
             case SYSCALL:
                 //mnemonic {opcode: XX, code: 000000, funct: XX}
-                toPrint = String.format("%s {opcode: %s, code: 000000, funct: %s}",
+                toPrint = String.format("%s {opcode: %02x, code: 000000, funct: %02x}",
                         mnemonic, opcode, funct);
                 break;
         }
         return toPrint;
     }
 
-    private void disassemble(String hexString){
-        opcode = convertOpcode(hexString);
-        instructionType = convertInstructionType(hexString);
+    private void disassemble(int word){
+        opcode = word >>> 26;
+        instructionType = convertInstructionType(word);
         switch(instructionType){
             case RTYPE:
-                rs = convertRs(hexString);
-                rt = convertRt(hexString);
-                rd = convertRd(hexString);
-                shmt = convertShmt();
-                funct = convertFunct(hexString);
+                rs = (word >>> 21) & 31;
+                rt = (word >>> 16) & 31;
+                rd = (word >>> 11) & 31;
+                shmt = (word >>> 6) & 31;
+                funct = word & 63;
                 mnemonic = convertMnemonic();
                 break;
 
             case ITYPE:
                 mnemonic = convertMnemonic();
-                rs = convertRs(hexString);
-                rt = convertRt(hexString);
-                immediate = convertImmediate(hexString);
+                rs = (word >>> 21) & 31;
+                rt = (word >>> 16) & 31;
+                //Casting to short sign extends the low 16 bits
+                immediate = (short)word;
                 break;
 
             case JTYPE:
                 mnemonic = convertMnemonic();
-                index = convertIndex(hexString);
+                index = word & 0x03ffffff;
                 break;
 
             case SYSCALL:
-                funct = convertFunct(hexString);
+                funct = word & 63;
                 mnemonic = convertMnemonic();
                 break;
         }
     }
 
-    //Return the opcode associated with a given hex string.
-    //Opcode is bits 1 to 6
-    private String convertOpcode(String hexString){
-        long decimalOpcode = Long.parseLong(hexString, 16) >> 26;
-        return String.format("%02x", decimalOpcode);
-    }
-
-    //Use known opcode to return Instruction Type. Hex string used for syscall
-    private String convertInstructionType(String hexString){
-        String newInstructionType = "Error";
+    //Use known opcode to return Instruction Type. Whole word used for syscall
+    private String convertInstructionType(int word){
+        String newInstructionType;
         //Syscall is always the same, but the opcode is the same as R format
-        if(hexString.equals("0000000c")){
+        if(word == 0x0000000c){
             newInstructionType = SYSCALL;
         }
         //000000 - R Format instructions
-        else if(opcode.equals("00")){
+        else if(opcode == 0x00){
             newInstructionType = RTYPE;
         }
         //Only one j type instruction, and opcode will be 02
-        else if(opcode.equals("02")){
+        else if(opcode == 0x02){
             newInstructionType = JTYPE;
         }
         else{
@@ -147,110 +269,89 @@ public class Instruction {
         return newInstructionType;
     }
 
-    //Use known opcode, funct and instructionType to convert mnemonic
+    //Use known opcode, funct and instructionType to convert mnemonic.
+    //Also assigns the operation code
     private String convertMnemonic(){
         String newMnemonic = "Error";
+        operation = OP_UNKNOWN;
         //R type and syscall instructions need to use funct
         if(instructionType.equals(RTYPE) || instructionType.equals(SYSCALL)){
             switch(funct){
-                case "20": //add - 100000
+                case 0x20: //add - 100000
                     newMnemonic = "add";
+                    operation = OP_ADD;
                     break;
-                case "24": //and - 100100
+                case 0x24: //and - 100100
                     newMnemonic = "and";
+                    operation = OP_AND;
                     break;
-                case "25": //or - 100101
+                case 0x25: //or - 100101
                     newMnemonic = "or";
+                    operation = OP_OR;
                     break;
-                case "2a": //slt - 101010
+                case 0x2a: //slt - 101010
                     newMnemonic = "slt";
+                    operation = OP_SLT;
                     break;
-                case "22"://sub - 100010
+                case 0x22://sub - 100010
                     newMnemonic = "sub";
+                    operation = OP_SUB;
                     break;
-                case "0c": //syscall - 001100
+                case 0x0c: //syscall - 001100
                     newMnemonic = "syscall";
+                    operation = OP_SYSCALL;
                     break;
             }
         }
         //everything else uses opcode
         else{
             switch(opcode){
-                case "09": //addiu - 001001
+                case 0x09: //addiu - 001001
                     newMnemonic = "addiu";
+                    operation = OP_ADDIU;
                     break;
-                case "0c": //andi - 001100
+                case 0x0c: //andi - 001100
                     newMnemonic = "andi";
+                    operation = OP_ANDI;
                     break;
-                case "04": //beq - 000100
+                case 0x04: //beq - 000100
                     newMnemonic = "beq";
+                    operation = OP_BEQ;
                     break;
-                case "05": //bne - 000101
+                case 0x05: //bne - 000101
                     newMnemonic = "bne";
+                    operation = OP_BNE;
                     break;
-                case "02": //j - 000010
+                case 0x02: //j - 000010
                     newMnemonic = "j";
+                    operation = OP_J;
                     break;
-                case "0f": //lui - 001111
+                case 0x0f: //lui - 001111
                     newMnemonic = "lui";
+                    operation = OP_LUI;
                     break;
-                case "23": //lw - 100011
+                case 0x23: //lw - 100011
                     newMnemonic = "lw";
+                    operation = OP_LW;
                     break;
-                case "0d": //ori - 001101
+                case 0x0d: //ori - 001101
                     newMnemonic = "ori";
+                    operation = OP_ORI;
                     break;
-                case "2b": //sw - 101011
+                case 0x2b: //sw - 101011
                     newMnemonic = "sw";
+                    operation = OP_SW;
+                    break;
+                case 0x30: //ll - 110000
+                    newMnemonic = "ll";
+                    operation = OP_LL;
+                    break;
+                case 0x38: //sc - 111000
+                    newMnemonic = "sc";
+                    operation = OP_SC;
                     break;
             }
         }
         return newMnemonic;
     }
-
-    //Use bits 7-11 to get rs
-    private String convertRs(String hexString){
-        long decimalRs = Long.parseLong(hexString, 16) >> 21;
-        //Need to keep last 5 bits
-        decimalRs = decimalRs & 31;
-        return String.format("%02x", decimalRs);
-    }
-
-    //Use bits 12-16 to get rt
-    private String convertRt(String hexString){
-        long decimalRt = Long.parseLong(hexString, 16) >> 16;
-        //Keep last 5 bits
-        decimalRt = decimalRt & 31;
-        return String.format("%02x", decimalRt);
-    }
-
-    //Use bits 17-21 to get rd
-    private String convertRd(String hexString){
-        long decimalRd = Long.parseLong(hexString, 16) >> 11;
-        decimalRd = decimalRd & 31;
-        return String.format("%02x", decimalRd);
-    }
-
-    //I know shmt can be something, but it's always 00000 in our usage.
-    private String convertShmt(){
-        return "00";
-    }
-
-    //Bits 27-32 are used to find Funct.
-    private String convertFunct(String hexString){
-        //Need last six bits, so & 111111
-        long decimalFunct = Long.parseLong(hexString, 16) & 63;
-        return String.format("%02x", decimalFunct);
-    }
-
-    //bits 17-32 are used to determine the immediate
-    private String convertImmediate(String hexString){
-        return hexString.substring(4);
-    }
-
-    //index from j is bits 7-32
-    private String convertIndex(String hexString){
-        long decimalIndex = Long.parseLong(hexString, 16) & 67108863;
-        return String.format("%07x", decimalIndex);
-    }
 }
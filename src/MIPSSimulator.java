@@ -1,255 +1,1159 @@
-import java.io.File;
-import java.util.Scanner;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
-public class MIPSSimulator {
+public class MIPSSimulator implements MemoryListener {
     //Program counter will be inherently divided by 4.
     //Commands that use PC like branches and jumps are already word addressed
     private int programCounter;
     private final int INITIALSP = 2147479548;
     private final int INITIALDATA = 268500992;
-    //I think string is good for this since everything else is strings.
-    // Include a read register function.
-    private String[] registerArray = new String[32];
-    private String[] memoryArray = new String[256];
-    //Arbitrary sizes. Could be dynamically resized, but this works for now.
-    private String[] dataArray = new String[256];
-    private Instruction[] textArray = new Instruction[256];
+    //0x00400000, where .text starts
+    private final int INITIALTEXT = 4194304;
+    //Registers are kept as raw ints. Hex is only produced when printing or dumping state.
+    //$zero is hard-wired, so every write goes through writeRegister.
+    private int[] registerArray = new int[32];
+    //.data, .text and the stack all live in the same byte addressed memory
+    private Memory memory;
+    //Which hart this is when several share memory, 0 otherwise
+    private final int hartId;
+    //Each hart gets its own stack, this far below the one before
+    private static final int HART_STACK_SIZE = 0x100000;
+    //ll/sc reservation. sc succeeds if the word still holds reservedValue.
+    private boolean reservationValid;
+    private int reservationAddress;
+    private int reservedValue;
+    //Whether the last sc stored, which its rt does not show when rt is $zero
+    private boolean lastScStored;
+    //Words of .text, sized to the program and decoded as they are first run
+    private TextSegment textSegment = new TextSegment(new int[0]);
+    //True once textSegment is shared with a fork. It is copied before any change.
+    private boolean textShared;
+    private BlockCache blockCache = new BlockCache(textSegment);
+    //Whether new blocks get superinstructions for the interpreter, see BlockCache.fuse
+    private boolean fusionEnabled = true;
+    //Second tier. Null when running interpreter only.
+    private BlockCompiler blockCompiler = new BlockCompiler(BlockCompiler.DEFAULT_THRESHOLD);
+    //Values returned by run() and mainLoop()
+    public static final int EXIT_NORMAL = 0;
+    public static final int EXIT_DROPPED_OFF_BOTTOM = -1;
+    public static final int EXIT_INSTRUCTION_LIMIT = -2;
+    public static final int EXIT_PAUSED_AT_READ = -3;
+    //Reported by GuestScheduler for guests it stopped. run() never returns these.
+    public static final int EXIT_KILLED_INSTRUCTIONS = -4;
+    public static final int EXIT_KILLED_WALL_TIME = -5;
+    //Stopped at a Debugger breakpoint or watchpoint. The PC is where to carry on.
+    public static final int EXIT_BREAKPOINT = -6;
     //Codes in $v0 for syscalls
     private final int PRINTINTCODE = 1;
     private final int PRINTSTRINGCODE = 4;
     private final int READINTCODE = 5;
     private final int TERMINATECODE = 10;
+    private final int HARTIDCODE = 60;
 
     private boolean terminateSimulation = false;
+    //With pauseOnRead, run() stops in front of a read int syscall and leaves
+    //pausedAtRead set. The next run() does the read first.
+    private boolean pauseOnRead;
+    private boolean pausedAtRead;
+    //Set when run() reaches a breakpoint trap, or a watched access in runWatched()
+    private boolean atBreakpoint;
+    private boolean watchHit;
+    //Breakpoints and watchpoints. Null unless debugging.
+    private Debugger debugger;
+    //Number of instructions executed so far
+    private long instructionCount;
+    //How many of those ran in the interpreter, and how many of those as part of a superinstruction
+    private long interpretedInstructionCount;
+    private long fusedInstructionCount;
+    //run() stops once instructionCount reaches this. Checked between blocks.
+    private long instructionLimit = Long.MAX_VALUE;
+    //Syscall input and output. Buffered console by default.
+    private SyscallIO io = StreamSyscallIO.console();
+    //Byte order of .bin program images
+    private ByteOrder binaryOrder = ByteOrder.LITTLE_ENDIAN;
+    //Where loadFiles looks for programs parsed before. Null to always parse.
+    private ProgramCache programCache;
+    //Time spent by mainLoop loading files and running, kept apart
+    private long loadNanos;
+    private long runNanos;
+    //Guest profile. Null unless profiling, in which case run() uses runProfiled().
+    private Profiler profiler;
+    //Cache and pipeline model. Null unless modeling, in which case run() uses runModeled().
+    private TimingModel timingModel;
+    //Where traced runs record to, see setTracing. Null when not tracing.
+    private TraceWriter traceWriter;
+    private TraceWriter.Ring traceRing;
+    //Where run() writes a checkpoint every checkpointInterval instructions. Null for none.
+    private Checkpoint.Writer checkpointWriter;
+    private long checkpointInterval;
 
     public MIPSSimulator() {
-        //$zero value
-        registerArray[0] = "00000000";
-        //$sp value
-        registerArray[29] = "7fffeffc";
+        this(new Memory(), 0);
     }
 
     /*
-    Main simulation loop.
-    Run until end of program or syscall where registerArray[2] = 10
+    Simulator over another memory backend, e.g. OffHeapMemory. memory should be empty.
+     */
+    public MIPSSimulator(Memory memory) {
+        this(memory, 0);
+    }
+
+    /*
+    Simulator for one hart of a multi-hart machine, see MultiHartSimulator
+     */
+    MIPSSimulator(Memory memory, int hartId) {
+        this.memory = memory;
+        this.hartId = hartId;
+        //$sp value. $zero is already 0
+        registerArray[29] = INITIALSP - hartId * HART_STACK_SIZE;
+    }
+
+    public int getHartId(){
+        return hartId;
+    }
+
+    /*
+    Read the current value of a register
+     */
+    public int getRegister(int register){
+        return registerArray[register];
+    }
+
+    /*
+    Turn the JIT on or off. Off forces interpreter only, which is useful to
+    compare results.
+     */
+    public void setJitEnabled(boolean enabled){
+        if(!enabled){
+            blockCompiler = null;
+        }
+        else if(blockCompiler == null){
+            blockCompiler = new BlockCompiler(BlockCompiler.DEFAULT_THRESHOLD);
+        }
+    }
+
+    /*
+    Turn superinstructions on or off for blocks built from now on, so set it
+    before loading. Off is useful to compare results and speed.
+     */
+    public void setFusionEnabled(boolean enabled){
+        fusionEnabled = enabled;
+        blockCache.setFusionEnabled(enabled);
+    }
+
+    /*
+    Number of times a block runs in the interpreter before it is compiled
+     */
+    public void setJitThreshold(int threshold){
+        blockCompiler = new BlockCompiler(threshold);
+    }
+
+    public BlockCompiler getBlockCompiler(){
+        return blockCompiler;
+    }
+
+    /*
+    Replace the console with another source of syscall input and output
+     */
+    public void setSyscallIO(SyscallIO io){
+        this.io = io;
+    }
+
+    public SyscallIO getSyscallIO(){
+        return io;
+    }
+
+    /*
+    Byte order used for .bin images. Hex text files are not affected.
+     */
+    public void setBinaryByteOrder(ByteOrder order){
+        binaryOrder = order;
+    }
+
+    /*
+    Load files through a ProgramCache, so a program parsed by an earlier run
+    is mapped in instead of parsed again. Null goes back to always parsing.
+     */
+    public void setProgramCache(ProgramCache programCache){
+        this.programCache = programCache;
+    }
+
+    public long getLoadNanos(){
+        return loadNanos;
+    }
+
+    public long getRunNanos(){
+        return runNanos;
+    }
+
+    /*
+    Stop run() once this many instructions have executed in total.
+    The check happens between blocks, so a run can overshoot by up to one block.
+     */
+    public void setInstructionLimit(long limit){
+        instructionLimit = limit;
+    }
+
+    /*
+    Profile the following runs. Profiled runs use the interpreter only, so
+    every instruction is seen. Null turns profiling off again.
+     */
+    public void setProfiler(Profiler profiler){
+        this.profiler = profiler;
+    }
+
+    public Profiler getProfiler(){
+        return profiler;
+    }
+
+    /*
+    Breakpoints and watchpoints come from debugger. Only the Debugger
+    constructor sets this.
+     */
+    void setDebugger(Debugger debugger){
+        this.debugger = debugger;
+    }
+
+    //The loaded program, for tools that list it
+    TextSegment getTextSegment(){
+        return textSegment;
+    }
+
+    //Word index into .text of the next instruction to run
+    public int getProgramCounter(){
+        return programCounter;
+    }
+
+    /*
+    Feed the following runs to a cache and pipeline model. Modeled runs use the
+    interpreter only. Null turns modeling off again.
+     */
+    public void setTimingModel(TimingModel timingModel){
+        this.timingModel = timingModel;
+    }
+
+    public TimingModel getTimingModel(){
+        return timingModel;
+    }
+
+    /*
+    Report of the profiler against the loaded program
+     */
+    public String getProfileReport(){
+        return profiler == null ? "" : profiler.report(textSegment);
+    }
+
+    /*
+    Record a trace of the following runs to writer, in a stream of its own.
+    Traced runs use the interpreter only. Null turns tracing off again.
+     */
+    public void setTracing(TraceWriter writer){
+        traceWriter = writer;
+        traceRing = writer == null ? null : writer.newRing();
+    }
+
+    /*
+    Write a checkpoint every interval instructions while running.
+    Checkpoints are taken between blocks, so they can land up to one block late.
+     */
+    public void setCheckpointing(Checkpoint.Writer writer, long interval){
+        checkpointWriter = writer;
+        checkpointInterval = interval;
+    }
+
+    /*
+    Append a checkpoint of the current state. Buffered output is flushed
+    first, so everything printed before the checkpoint is out.
+     */
+    public void writeCheckpoint(Checkpoint.Writer writer) throws IOException {
+        io.flush();
+        Checkpoint.State state = new Checkpoint.State();
+        state.instructionCount = instructionCount;
+        state.programCounter = programCounter;
+        state.terminated = terminateSimulation;
+        state.inputPosition = io instanceof StreamSyscallIO ? ((StreamSyscallIO)io).getInputPosition() : 0;
+        state.textLength = textSegment.length();
+        System.arraycopy(registerArray, 0, state.registers, 0, registerArray.length);
+        writer.write(state, memory);
+    }
+
+    /*
+    Restore a fresh simulator from a checkpoint file, instead of loading a program.
+    Input the checkpointed run had already read is skipped, so the same input
+    should be supplied again. run() then carries on from the checkpoint.
+     */
+    public Checkpoint.State resume(Path file) throws IOException {
+        Checkpoint.State state = Checkpoint.restore(file, memory);
+        instructionCount = state.instructionCount;
+        programCounter = state.programCounter;
+        terminateSimulation = state.terminated;
+        pausedAtRead = false;
+        System.arraycopy(state.registers, 0, registerArray, 0, registerArray.length);
+        decodeText(state.textLength);
+        if(io instanceof StreamSyscallIO){
+            ((StreamSyscallIO)io).skipInputTo(state.inputPosition);
+        }
+        return state;
+    }
+
+    /*
+    Make run() stop at the next read int syscall, before anything is read,
+    and return EXIT_PAUSED_AT_READ. Useful for forking once input is needed.
+     */
+    public void setPauseOnRead(boolean pause){
+        pauseOnRead = pause;
+    }
+
+    /*
+    Copy-on-write fork of this simulator, normally taken while paused.
+    The child gets copies of the registers and PC, and shares memory pages
+    until either side writes them. Decoded text and blocks are shared too,
+    including compiled code. The child starts with console I/O, no profiler,
+    no checkpointing and pauseOnRead off, so the pending read goes to the
+    child's own input. Parent and child may then run on different threads.
+     */
+    public MIPSSimulator fork(){
+        MIPSSimulator child = new MIPSSimulator();
+        child.memory = memory.fork();
+        child.memory.setListener(child);
+        System.arraycopy(registerArray, 0, child.registerArray, 0, registerArray.length);
+        child.programCounter = programCounter;
+        child.instructionCount = instructionCount;
+        child.instructionLimit = instructionLimit;
+        child.terminateSimulation = terminateSimulation;
+        child.pausedAtRead = pausedAtRead;
+        child.binaryOrder = binaryOrder;
+        child.blockCompiler = blockCompiler == null ? null : new BlockCompiler(blockCompiler.getThreshold());
+        child.textSegment = textSegment;
+        child.blockCache = blockCache.fork();
+        child.textShared = true;
+        textShared = true;
+        return child;
+    }
+
+    /*
+    Another hart running this program over view, a HartMemory of the same
+    pages. It starts at the same PC with its own registers and stack, and
+    shares decoded text and compiled blocks the same way fork() does.
+    Syscall I/O is shared, so io should be safe to use from several threads.
+     */
+    MIPSSimulator spawnHart(int newHartId, Memory view){
+        MIPSSimulator hart = new MIPSSimulator(view, newHartId);
+        view.setListener(hart);
+        hart.programCounter = programCounter;
+        hart.instructionLimit = instructionLimit;
+        hart.io = io;
+        if(traceWriter != null){
+            hart.setTracing(traceWriter);
+        }
+        hart.blockCompiler = blockCompiler == null ? null : new BlockCompiler(blockCompiler.getThreshold());
+        hart.textSegment = textSegment;
+        hart.blockCache = blockCache.fork();
+        hart.textShared = true;
+        textShared = true;
+        return hart;
+    }
+
+    public Memory getMemory(){
+        return memory;
+    }
+
+    public long getInstructionCount(){
+        return instructionCount;
+    }
+
+    //Instructions the interpreter ran, profiled and traced runs aside
+    public long getInterpretedInstructionCount(){
+        return interpretedInstructionCount;
+    }
+
+    //Interpreted instructions that ran as half of a superinstruction
+    public long getFusedInstructionCount(){
+        return fusedInstructionCount;
+    }
+
+    /*
+    Dump every register as 8 hex characters, one per line
+     */
+    public String dumpRegisters(){
+        StringBuilder dump = new StringBuilder();
+        for(int i = 0; i < registerArray.length; i++){
+            dump.append(String.format("$%-2d %08x%n", i, registerArray[i]));
+        }
+        return dump.toString();
+    }
+
+    /*
+    Every register write goes through here so $zero stays hard-wired to 0
+     */
+    private void writeRegister(int register, int value){
+        if(register != 0){
+            registerArray[register] = value;
+        }
+    }
+
+    /*
+    Main simulation loop. Reads the files, then runs the program.
     Inputs: String paths for .data and .text file
-    Output: 0 on safe return, -1 on unsafe return.
+    Output: same as run()
      */
     public int mainLoop(String dataFile, String textFile) {
-       //Read files
+        loadFiles(dataFile, textFile);
+        return runTimed();
+    }
+
+    /*
+    Read a .data and .text file and load them. A file that cannot be read
+    is reported and loads as empty.
+     */
+    public void loadFiles(String dataFile, String textFile) {
         try{
-            //Read .data
-            File dataInput = new File(dataFile);
-            Scanner dataReader = new Scanner(dataInput);
-            //Want to end at a line of 00000000, but should be included in case it
-            //contains the null termination
-            boolean endOfData = false;
-            int dataArrayIndex = 0;
-            while(dataReader.hasNextLine() & !endOfData){
-                String dataLine = dataReader.nextLine();
-                endOfData = dataLine.equals("00000000");
-                //Each element should contain 2 hex characters
-                /*
-                for(int i = 0; i < 4; i++){
-                    dataArray[dataArrayIndex] = dataLine.substring(i * 2, (i * 2) + 2);
-                    ++dataArrayIndex;
+            loadFiles(dataFile, textFile, true);
+        }
+        catch(IOException e){
+            //Only thrown when not reporting
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+    Same as loadFiles, but a file that cannot be read is thrown and nothing
+    is loaded. For callers that report errors themselves, like BatchRunner.
+     */
+    public void readFiles(String dataFile, String textFile) throws IOException {
+        loadFiles(dataFile, textFile, false);
+    }
+
+    private void loadFiles(String dataFile, String textFile, boolean report) throws IOException {
+        SimulatorMetrics metrics = SimulatorMetrics.get();
+        //Read files
+        SimulatorEvents.ProgramLoad loadEvent = new SimulatorEvents.ProgramLoad();
+        loadEvent.begin();
+        long loadStart = System.nanoTime();
+        IntBuffer dataWords = IntBuffer.allocate(0);
+        IntBuffer textWords = IntBuffer.allocate(0);
+        try{
+            if(programCache != null){
+                ProgramCache.Program program = programCache.load(Paths.get(textFile), Paths.get(dataFile), binaryOrder);
+                dataWords = program.data;
+                textWords = program.text;
+            }
+            else{
+                dataWords = ProgramLoader.read(Paths.get(dataFile), true, binaryOrder);
+                textWords = ProgramLoader.read(Paths.get(textFile), false, binaryOrder);
+            }
+        }
+        catch(NoSuchFileException e){
+            if(!report){
+                throw e;
+            }
+            System.out.println("Data file not found");
+        }
+        catch(IOException e){
+            if(!report){
+                throw e;
+            }
+            System.out.println("Could not read program: " + e.getMessage());
+        }
+
+        int textLength = textWords.remaining();
+        int dataLength = dataWords.remaining();
+        loadProgram(textWords, dataWords);
+        loadNanos = System.nanoTime() - loadStart;
+        metrics.programsLoaded.increment();
+        metrics.loadLatency.record(loadNanos);
+        if(loadEvent.shouldCommit()){
+            loadEvent.textFile = textFile;
+            loadEvent.dataFile = dataFile;
+            loadEvent.textWords = textLength;
+            loadEvent.dataWords = dataLength;
+            loadEvent.commit();
+        }
+    }
+
+    /*
+    run(), timed and reported to the metrics and JFR
+     */
+    public int runTimed() {
+        SimulatorMetrics metrics = SimulatorMetrics.get();
+        SimulatorEvents.Run runEvent = new SimulatorEvents.Run();
+        runEvent.begin();
+        long instructionsBefore = instructionCount;
+        long runStart = System.nanoTime();
+        int exitCode = run();
+        runNanos = System.nanoTime() - runStart;
+        long retired = instructionCount - instructionsBefore;
+        metrics.runs.increment();
+        metrics.runLatency.record(runNanos);
+        metrics.instructionsRetired.add(retired);
+        if(exitCode == EXIT_DROPPED_OFF_BOTTOM){
+            metrics.runsDroppedOffBottom.increment();
+        }
+        else if(exitCode == EXIT_INSTRUCTION_LIMIT){
+            metrics.runsOverBudget.increment();
+        }
+        if(runEvent.shouldCommit()){
+            runEvent.instructions = retired;
+            runEvent.exitCode = exitCode;
+            runEvent.droppedOffBottom = exitCode == EXIT_DROPPED_OFF_BOTTOM;
+            runEvent.jitEnabled = blockCompiler != null;
+            runEvent.commit();
+        }
+        return exitCode;
+    }
+
+    /*
+    Load a program that is already in memory instead of reading files.
+    Used by benchmarks and anything else that generates programs.
+    Inputs: .text words in program order, .data words as they appear in a .data file
+     */
+    public void loadProgram(int[] textWords, int[] dataWords) {
+        loadProgram(IntBuffer.wrap(textWords), IntBuffer.wrap(dataWords));
+    }
+
+    /*
+    Same as above for words read by ProgramLoader. Words are copied straight
+    into memory a page at a time.
+     */
+    public void loadProgram(IntBuffer textWords, IntBuffer dataWords) {
+        int[] text = new int[textWords.remaining()];
+        textWords.duplicate().get(text);
+        memory.storeWords(INITIALTEXT, textWords);
+        setText(text);
+        //Memory is little endian, so storing the whole word reverses the bytes
+        memory.storeWords(INITIALDATA, dataWords);
+    }
+
+    /*
+    Take the .text words already in memory, e.g. after restoring a checkpoint
+     */
+    private void decodeText(int textLength) {
+        int[] text = new int[textLength];
+        for(int i = 0; i < textLength; i++){
+            text[i] = memory.loadWord(INITIALTEXT + (i << 2));
+        }
+        setText(text);
+    }
+
+    /*
+    Use text as the program, which is also in memory at INITIALTEXT, and start
+    a new block cache. Nothing is decoded until it runs.
+     */
+    private void setText(int[] text) {
+        int textLength = text.length;
+        textSegment = new TextSegment(text);
+        //Flag the code pages after storing the text so sw into them invalidates blocks
+        for(int i = 0; i < textLength; i += Memory.WORDS_PER_PAGE){
+            memory.markCode(INITIALTEXT + (i << 2));
+        }
+        if(textLength > 0){
+            memory.markCode(INITIALTEXT + ((textLength - 1) << 2));
+        }
+        memory.setListener(this);
+        blockCache = new BlockCache(textSegment);
+        blockCache.setFusionEnabled(fusionEnabled);
+    }
+
+    /*
+    Run the loaded program one basic block at a time.
+    Run until end of program or syscall where registerArray[2] = 10
+    With checkpointing on, the run is split into slices with a checkpoint after each.
+    Output: 0 on safe return, -1 on unsafe return, -2 if the instruction limit was hit,
+    -3 if paused in front of a read int (see setPauseOnRead).
+    After -2 the PC is left at the next block, so run() can be called again.
+     */
+    public int run() {
+        if(checkpointWriter == null){
+            return runUntil(instructionLimit);
+        }
+        while(true){
+            //Saturate so a huge interval does not wrap around
+            long sliceEnd = Math.min(instructionLimit, instructionCount + Math.min(checkpointInterval,
+                    Long.MAX_VALUE - instructionCount));
+            int exitCode = runUntil(sliceEnd);
+            if(exitCode != EXIT_INSTRUCTION_LIMIT || instructionCount >= instructionLimit){
+                return exitCode;
+            }
+            try{
+                writeCheckpoint(checkpointWriter);
+            }
+            catch(IOException e){
+                throw new UncheckedIOException("Could not write checkpoint", e);
+            }
+        }
+    }
+
+    /*
+    Run until the program ends or instructionCount reaches limit
+     */
+    private int runUntil(long limit) {
+        if(pausedAtRead){
+            //Finish the read int the last run paused on
+            pausedAtRead = false;
+            writeRegister(2, io.readInt());
+        }
+        atBreakpoint = false;
+        //Picked once per run so the normal loop has no profiling or watchpoint checks
+        if(debugger != null && debugger.hasWatchpoints()){
+            return runWatched(limit);
+        }
+        if(profiler != null){
+            return runProfiled(limit);
+        }
+        if(traceRing != null){
+            return runTraced(limit);
+        }
+        if(timingModel != null){
+            return runModeled(limit);
+        }
+        BasicBlock block = blockCache.lookup(programCounter);
+        while (block != null && !terminateSimulation && !pausedAtRead && !atBreakpoint && instructionCount < limit) {
+            instructionCount += block.getLength();
+            Instruction terminator = block.getTerminator();
+            boolean taken;
+            if(block.compiled != null){
+                programCounter = block.compiled.execute(registerArray, memory);
+                taken = programCounter != block.getFallThroughPc();
+                //Compiled code stops before a syscall
+                if(terminator != null && terminator.getOperation() == Instruction.OP_SYSCALL){
+                    syscall();
+                }
+            }
+            else{
+                Instruction[] body = block.fusedBody;
+                for(int i = 0; i < body.length; i++){
+                    execute(body[i]);
                 }
-                 */
-                //Reversing data for the array
-                for(int i = 3; i >= 0; i--){
-                    dataArray[dataArrayIndex] = dataLine.substring(i * 2, (i * 2) + 2);
-                    ++dataArrayIndex;
+                //Branch targets were resolved when the block was built
+                Instruction fusedTerminator = block.fusedTerminator;
+                taken = fusedTerminator != null && takeBranch(fusedTerminator);
+                programCounter = taken ? block.getTakenPc() : block.getFallThroughPc();
+                interpretedInstructionCount += block.getLength();
+                fusedInstructionCount += block.fusedInstructions;
+                if(blockCompiler != null && ++block.executionCount == blockCompiler.getThreshold()){
+                    block.setCompiled(blockCompiler.compile(block));
                 }
             }
-            dataReader.close();
-
-            //Read .text
-            File textInput = new File(textFile);
-            Scanner textReader = new Scanner(textInput);
-            int textArrayIndex = 0;
-            while(textReader.hasNextLine()){
-                textArray[textArrayIndex] = new Instruction(textReader.nextLine());
-                ++textArrayIndex;
+            block = successor(block, taken);
+        }
+        //Output is buffered, so make sure all of it is out before returning
+        io.flush();
+        return exitCode(block);
+    }
+
+    /*
+    Same as runUntil(), with every instruction, branch and syscall reported to the
+    profiler. Never enters compiled code and never compiles.
+     */
+    private int runProfiled(long limit) {
+        profiler.start(textSegment.length());
+        BasicBlock block = blockCache.lookup(programCounter);
+        while (block != null && !terminateSimulation && !pausedAtRead && !atBreakpoint && instructionCount < limit) {
+            instructionCount += block.getLength();
+            Instruction[] body = block.getBody();
+            int pc = block.getStartPc();
+            for(int i = 0; i < body.length; i++){
+                profiler.instruction(pc + i, body[i].getOperation());
+                execute(body[i]);
+            }
+            Instruction terminator = block.getTerminator();
+            boolean taken = false;
+            if(terminator != null && terminator.getOperation() == Instruction.OP_BREAK){
+                takeBranch(terminator);
             }
-            textReader.close();
+            else if(terminator != null){
+                int operation = terminator.getOperation();
+                profiler.instruction(pc + body.length, operation);
+                if(operation == Instruction.OP_SYSCALL){
+                    profiler.syscall(registerArray[2]);
+                }
+                taken = takeBranch(terminator);
+                if(operation == Instruction.OP_BEQ || operation == Instruction.OP_BNE){
+                    profiler.branch(operation, taken);
+                }
+            }
+            programCounter = taken ? block.getTakenPc() : block.getFallThroughPc();
+            block = successor(block, taken);
+        }
+        io.flush();
+        profiler.stop();
+        return exitCode(block);
+    }
 
+    /*
+    Same as runUntil(), recording every instruction to traceRing.
+    Never enters compiled code and never compiles.
+     */
+    private int runTraced(long limit) {
+        TraceWriter.Ring ring = traceRing;
+        BasicBlock block = blockCache.lookup(programCounter);
+        while (block != null && !terminateSimulation && !pausedAtRead && !atBreakpoint && instructionCount < limit) {
+            instructionCount += block.getLength();
+            Instruction[] body = block.getBody();
+            int pc = block.getStartPc();
+            for(int i = 0; i < body.length; i++){
+                executeTraced(ring, pc + i, body[i]);
+            }
+            Instruction terminator = block.getTerminator();
+            boolean taken = false;
+            if(terminator != null){
+                int code = registerArray[2];
+                taken = takeBranch(terminator);
+                //Read int and hart id are the syscalls that write a register
+                if(terminator.getOperation() == Instruction.OP_SYSCALL && (code == READINTCODE || code == HARTIDCODE) && !pausedAtRead){
+                    ring.record(pc + body.length, TraceWriter.FLAG_REG | 2, registerArray[2], 0, 0);
+                }
+                else if(!atBreakpoint){
+                    ring.record(pc + body.length, 0, 0, 0, 0);
+                }
+            }
+            programCounter = taken ? block.getTakenPc() : block.getFallThroughPc();
+            block = successor(block, taken);
+            ring.publish();
         }
-        catch(FileNotFoundException e){
-            System.out.println("Data file not found");
+        io.flush();
+        ring.publish();
+        return exitCode(block);
+    }
+
+    /*
+    Same as runUntil(), with every instruction and taken branch passed to the
+    timing model. Never enters compiled code and never compiles.
+     */
+    private int runModeled(long limit) {
+        TimingModel model = timingModel;
+        BasicBlock block = blockCache.lookup(programCounter);
+        while (block != null && !terminateSimulation && !pausedAtRead && !atBreakpoint && instructionCount < limit) {
+            instructionCount += block.getLength();
+            Instruction[] body = block.getBody();
+            int pc = block.getStartPc();
+            for(int i = 0; i < body.length; i++){
+                Instruction inst = body[i];
+                //Base register may be the one a load overwrites, so take the address first
+                model.instruction(pc + i, inst, registerArray[inst.getRs()] + inst.getImmediate());
+                execute(inst);
+            }
+            Instruction terminator = block.getTerminator();
+            boolean taken = false;
+            if(terminator != null){
+                if(terminator.getOperation() != Instruction.OP_BREAK){
+                    model.instruction(pc + body.length, terminator, 0);
+                }
+                taken = takeBranch(terminator);
+                if(taken && terminator.getOperation() != Instruction.OP_J){
+                    model.branchTaken();
+                }
+            }
+            programCounter = taken ? block.getTakenPc() : block.getFallThroughPc();
+            block = successor(block, taken);
         }
+        io.flush();
+        return exitCode(block);
+    }
 
-        //Maybe include a check that prohibits $0 from being changed
-        while (textArray[programCounter] != null && !terminateSimulation) {
-            Instruction currentInstruction = textArray[programCounter];
-            ++programCounter;
-            switch(currentInstruction.getMnemonic()){
-                case "add":
-                    add(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getRd());
-                    break;
-                case "addiu":
-                    addiu(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "and":
-                    and(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getRd());
-                    break;
-                case "andi":
-                    andi(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "beq":
-                    beq(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "bne":
-                    bne(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "j":
-                    j(currentInstruction.getIndex());
-                    break;
-                case "lui":
-                    lui(currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "lw":
-                    lw(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "or":
-                    or(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getRd());
-                    break;
-                case "ori":
-                    ori(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "slt":
-                    slt(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getRd());
-                    break;
-                case "sub":
-                    sub(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getRd());
-                    break;
-                case "sw":
-                    sw(currentInstruction.getRs(),
-                            currentInstruction.getRt(),
-                            currentInstruction.getImmediate());
-                    break;
-                case "syscall":
-                    syscall();
-                    break;
-                default:
-                    System.out.println("Unknown instruction");
-                    break;
+    /*
+    Same as runUntil() while the debugger watches memory. Stops right after an
+    instruction that touched a watched range, in the middle of its block if need be.
+    Never enters compiled code and never compiles.
+     */
+    private int runWatched(long limit) {
+        watchHit = false;
+        BasicBlock block = blockCache.lookup(programCounter);
+        while (block != null && !terminateSimulation && !pausedAtRead && !atBreakpoint && instructionCount < limit) {
+            Instruction[] body = block.getBody();
+            for(int i = 0; i < body.length; i++){
+                execute(body[i]);
+                if(watchHit){
+                    instructionCount += i + 1;
+                    programCounter = block.getStartPc() + i + 1;
+                    atBreakpoint = true;
+                    io.flush();
+                    return EXIT_BREAKPOINT;
+                }
+            }
+            instructionCount += block.getLength();
+            Instruction terminator = block.getTerminator();
+            boolean taken = terminator != null && takeBranch(terminator);
+            programCounter = taken ? block.getTakenPc() : block.getFallThroughPc();
+            //A syscall can touch watched memory too, e.g. print string
+            if(watchHit){
+                atBreakpoint = true;
+                io.flush();
+                return EXIT_BREAKPOINT;
+            }
+            block = successor(block, taken);
+        }
+        io.flush();
+        return exitCode(block);
+    }
+
+    /*
+    Run the one instruction at the PC, the real one if a breakpoint covers it,
+    and return what run() would. Used by the Debugger to single-step and to
+    get past a breakpoint.
+     */
+    public int step() {
+        if(pausedAtRead){
+            //The read int the last run paused on is this step
+            pausedAtRead = false;
+            writeRegister(2, io.readInt());
+            return exitCode(blockCache.lookup(programCounter));
+        }
+        atBreakpoint = false;
+        watchHit = false;
+        if(terminateSimulation || programCounter < 0 || programCounter >= textSegment.length()){
+            return exitCode(null);
+        }
+        Instruction inst = textSegment.get(programCounter);
+        if(inst.getOperation() == Instruction.OP_BREAK){
+            inst = inst.getTrapped();
+        }
+        //Branches are relative to the next PC, as execute() expects
+        ++programCounter;
+        ++instructionCount;
+        execute(inst);
+        io.flush();
+        atBreakpoint = watchHit;
+        return exitCode(blockCache.lookup(programCounter));
+    }
+
+    /*
+    execute() plus one trace record: the register written, if any, and the word
+    lw/ll loaded or sw/sc stored
+     */
+    private void executeTraced(TraceWriter.Ring ring, int pc, Instruction inst) {
+        int flags = 0;
+        int address = 0;
+        int word = 0;
+        int operation = inst.getOperation();
+        //Base register may be the one a load overwrites, so take the address first.
+        //The word comes from the registers, since with harts memory may have changed
+        //again by the time the instruction is done.
+        if(operation == Instruction.OP_LW || operation == Instruction.OP_LL){
+            flags = TraceWriter.FLAG_LOAD;
+            address = registerArray[inst.getRs()] + inst.getImmediate();
+        }
+        else if(operation == Instruction.OP_SW || operation == Instruction.OP_SC){
+            flags = TraceWriter.FLAG_STORE;
+            address = registerArray[inst.getRs()] + inst.getImmediate();
+            word = registerArray[inst.getRt()];
+        }
+        execute(inst);
+        if(flags == TraceWriter.FLAG_LOAD){
+            //A load into $zero leaves nothing in the registers to take it from
+            word = inst.getRt() != 0 ? registerArray[inst.getRt()] : memory.loadWord(address);
+        }
+        int destination;
+        switch(operation){
+            case Instruction.OP_ADD:
+            case Instruction.OP_AND:
+            case Instruction.OP_OR:
+            case Instruction.OP_SLT:
+            case Instruction.OP_SUB:
+                destination = inst.getRd();
+                break;
+            case Instruction.OP_ADDIU:
+            case Instruction.OP_ANDI:
+            case Instruction.OP_LUI:
+            case Instruction.OP_LW:
+            case Instruction.OP_ORI:
+            case Instruction.OP_LL:
+            case Instruction.OP_SC:
+                destination = inst.getRt();
+                break;
+            default:
+                destination = 0;
+        }
+        //A failed sc stores nothing
+        if(operation == Instruction.OP_SC && !lastScStored){
+            flags = 0;
+        }
+        if(destination != 0){
+            flags |= TraceWriter.FLAG_REG | destination;
+        }
+        ring.record(pc, flags, registerArray[destination], address, word);
+    }
+
+    /*
+    Block that runs after block, linking it in on first use
+     */
+    private BasicBlock successor(BasicBlock block, boolean taken) {
+        BasicBlock next;
+        if(taken){
+            next = block.takenBlock;
+            if(next == null || !next.isValid()){
+                next = blockCache.lookup(programCounter);
+                block.takenBlock = next;
+            }
+        }
+        else{
+            next = block.fallThroughBlock;
+            if(next == null || !next.isValid()){
+                next = blockCache.lookup(programCounter);
+                block.fallThroughBlock = next;
             }
         }
+        return next;
+    }
+
+    /*
+    Exit code of run() given the block it stopped at
+     */
+    private int exitCode(BasicBlock block) {
         //Used to indicate safe vs unsafe termination
         if(terminateSimulation){
-            return 0;
+            return EXIT_NORMAL;
+        }
+        else if(pausedAtRead){
+            return EXIT_PAUSED_AT_READ;
+        }
+        else if(atBreakpoint){
+            return EXIT_BREAKPOINT;
+        }
+        else if(block != null){
+            return EXIT_INSTRUCTION_LIMIT;
         }
         else{
-            return -1;
+            return EXIT_DROPPED_OFF_BOTTOM;
+        }
+    }
+
+    /*
+    Run the terminator of a block and report whether its branch is taken.
+    Syscalls never branch, they just run. Fused terminators run their first
+    half before deciding.
+     */
+    private boolean takeBranch(Instruction terminator) {
+        switch(terminator.getOperation()){
+            case Instruction.OP_BEQ:
+                return registerArray[terminator.getRs()] == registerArray[terminator.getRt()];
+            case Instruction.OP_BNE:
+                return registerArray[terminator.getRs()] != registerArray[terminator.getRt()];
+            case Instruction.OP_J:
+                return true;
+            case Instruction.OP_SLT_BEQ:
+                slt(terminator.getRs(), terminator.getRt(), terminator.getRd());
+                return registerArray[terminator.getRd()] == 0;
+            case Instruction.OP_SLT_BNE:
+                slt(terminator.getRs(), terminator.getRt(), terminator.getRd());
+                return registerArray[terminator.getRd()] != 0;
+            case Instruction.OP_ADDIU_BNE:
+                addiu(terminator.getRs(), terminator.getRt(), terminator.getImmediate());
+                return registerArray[terminator.getRt()] != registerArray[terminator.getRd()];
+            case Instruction.OP_BREAK:
+                //The block ends in front of the trap, so not taken leaves the PC on it
+                atBreakpoint = true;
+                return false;
+            default:
+                syscall();
+                return false;
+        }
+    }
+
+    /*
+    Execute a single instruction. Branches expect programCounter to already point past it.
+     */
+    private void execute(Instruction inst) {
+        //Operation codes are dense, so this compiles to a tableswitch
+        switch(inst.getOperation()){
+            case Instruction.OP_ADD:
+                add(inst.getRs(),
+                        inst.getRt(),
+                        inst.getRd());
+                break;
+            case Instruction.OP_ADDIU:
+                addiu(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_AND:
+                and(inst.getRs(),
+                        inst.getRt(),
+                        inst.getRd());
+                break;
+            case Instruction.OP_ANDI:
+                andi(inst.getRs(),
+                        inst.getRt(),
+                        inst.getUnsignedImmediate());
+                break;
+            case Instruction.OP_BEQ:
+                beq(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_BNE:
+                bne(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_J:
+                j(inst.getIndex());
+                break;
+            case Instruction.OP_LUI:
+                lui(inst.getRt(),
+                        inst.getUnsignedImmediate());
+                break;
+            case Instruction.OP_LW:
+                lw(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_OR:
+                or(inst.getRs(),
+                        inst.getRt(),
+                        inst.getRd());
+                break;
+            case Instruction.OP_ORI:
+                ori(inst.getRs(),
+                        inst.getRt(),
+                        inst.getUnsignedImmediate());
+                break;
+            case Instruction.OP_SLT:
+                slt(inst.getRs(),
+                        inst.getRt(),
+                        inst.getRd());
+                break;
+            case Instruction.OP_SUB:
+                sub(inst.getRs(),
+                        inst.getRt(),
+                        inst.getRd());
+                break;
+            case Instruction.OP_SW:
+                sw(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_LL:
+                ll(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_SC:
+                sc(inst.getRs(),
+                        inst.getRt(),
+                        inst.getImmediate());
+                break;
+            case Instruction.OP_SYSCALL:
+                syscall();
+                break;
+            case Instruction.OP_LUI_ORI:
+                //Both writes, so the state matches lui then ori even when they differ
+                writeRegister(inst.getRt(), inst.getImmediate());
+                writeRegister(inst.getRd(), inst.getIndex());
+                break;
+            default:
+                //Keep the message in order with buffered program output
+                io.flush();
+                System.out.println("Unknown instruction");
+                break;
+        }
+    }
+
+    /*
+    Called by memory when a store lands on a code page.
+    Replace the word, to be decoded again when it runs, and drop any block that contains it.
+     */
+    public void codeWritten(int address) {
+        int pc = (address - INITIALTEXT) >> 2;
+        if(address - INITIALTEXT >= 0 && pc < textSegment.length()){
+            ownText();
+            textSegment.set(pc, memory.loadWord(address));
+            //A breakpoint stays on the new instruction
+            if(debugger != null && debugger.hasBreakpoint(pc)){
+                textSegment.patch(pc, Instruction.trap(textSegment.get(pc)));
+            }
+            blockCache.invalidate(pc);
+        }
+    }
+
+    /*
+    Called by memory for every lw and sw on a watched page.
+    Only accesses inside a watchpoint's range stop the run.
+     */
+    @Override
+    public void watchedAccess(int address, boolean store) {
+        if(debugger != null && debugger.watchHit(address, store)){
+            watchHit = true;
+        }
+    }
+
+    /*
+    Put a breakpoint trap over the instruction at pc, or take it off again
+     */
+    void setTrap(int pc, boolean set) {
+        ownText();
+        Instruction inst = textSegment.get(pc);
+        if(set && inst.getOperation() != Instruction.OP_BREAK){
+            textSegment.patch(pc, Instruction.trap(inst));
+        }
+        else if(!set && inst.getOperation() == Instruction.OP_BREAK){
+            //Decoded again from the word on the next fetch
+            textSegment.set(pc, textSegment.getWord(pc));
+        }
+        blockCache.invalidate(pc);
+    }
+
+    /*
+    Forks share the decoded text, so this simulator needs its own before changing it
+     */
+    private void ownText() {
+        if(textShared){
+            textSegment = textSegment.copy();
+            blockCache.replaceText(textSegment);
+            textShared = false;
         }
     }
 
     /*
     Simulate add instruction. rs + rt -> rd
      */
-    private void add(String rs, String rt, String rd) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decRd = Integer.parseInt(rd, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        int rightArg = Integer.parseInt(registerArray[decRt], 16);
-        registerArray[decRd] = String.format("%08x", leftArg + rightArg);
+    private void add(int rs, int rt, int rd) {
+        writeRegister(rd, registerArray[rs] + registerArray[rt]);
     }
 
     /*
     Simulate addiu instruction. rs + immediate -> rt
      */
-    private void addiu(String rs, String rt, String immediate) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decImmediate = Integer.parseInt(immediate, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        registerArray[decRt] = String.format("%08x", leftArg + decImmediate);
+    private void addiu(int rs, int rt, int immediate) {
+        writeRegister(rt, registerArray[rs] + immediate);
     }
 
     /*
     Simulate and instruction. rs & rt -> rd
      */
-    private void and(String rs, String rt, String rd) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decRd = Integer.parseInt(rd, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        int rightArg = Integer.parseInt(registerArray[decRt], 16);
-        registerArray[decRd] = String.format("%08x", leftArg & rightArg);
+    private void and(int rs, int rt, int rd) {
+        writeRegister(rd, registerArray[rs] & registerArray[rt]);
     }
 
     /*
     Simulate andi instruction. rs & immediate -> rt
      */
-    private void andi(String rs, String rt, String immediate) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decImmediate = Integer.parseInt(immediate, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        registerArray[decRt] = String.format("%08x", leftArg & decImmediate);
+    private void andi(int rs, int rt, int immediate) {
+        writeRegister(rt, registerArray[rs] & immediate);
     }
 
     /*
     Simulate beq instruction. if rs == rt then PC + offset(immediate)
     Instruction already works using PC+4 and PC is incremented in main loop
+    Offset is sign extended when the instruction is decoded
      */
-    private void beq(String rs, String rt, String offset) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decOffset = Integer.parseInt(offset, 16);
-        //I think this will convert to negative. Check if highest bit is 1
-        //If it is, undo two's complement and negate the integer.
-        if ((decOffset >> 15) == 1) {
-            decOffset = ~decOffset;
-            decOffset += 1;
-            decOffset = -decOffset;
-        }
-        if (registerArray[decRs].equals(registerArray[decRt])) {
-            programCounter += decOffset;
+    private void beq(int rs, int rt, int offset) {
+        if (registerArray[rs] == registerArray[rt]) {
+            programCounter += offset;
         }
     }
 
     /*
     Simulate bne instruction. If rs != rt then PC + offset(immediate)
      */
-    private void bne(String rs, String rt, String offset) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decOffset = Integer.parseInt(offset, 16);
-        //I think this will convert to negative. Check if highest bit is 1
-        //If it is, undo two's complement and negate the integer.
-        if ((decOffset >> 15) == 1) {
-            decOffset = ~decOffset;
-            decOffset += 1;
-            decOffset = -decOffset;
-        }
-        if (!registerArray[decRs].equals(registerArray[decRt])) {
-            programCounter += decOffset;
+    private void bne(int rs, int rt, int offset) {
+        if (registerArray[rs] != registerArray[rt]) {
+            programCounter += offset;
         }
     }
 
@@ -257,103 +1161,106 @@ public class MIPSSimulator {
     Simulate j instruction. PC = ?
     4194304 = 0x00400000
      */
-    private void j(String index) {
-        int decIndex = Integer.parseInt(index, 16);
+    private void j(int index) {
+        programCounter = jumpTarget(programCounter, index);
+    }
+
+    /*
+    Target of a j instruction as a word index into .text.
+    nextPc is the PC after the jump. Shared with BlockCache so blocks can
+    resolve the target once.
+     */
+    static int jumpTarget(int nextPc, int index) {
         //Sign extend index by 2 bits
         //Find program counter with first value being 0x00400000
         //Get 4 highest bits by bitshifting right 28, then left 28
         //Bitwise or of sign extended index and program counter
         //Convert back to initial value of zero by subtracting 0x00400000
-        decIndex = decIndex << 2;
-        int truePC = ((programCounter + 4194304) >> 28) << 28;
-        programCounter = ((decIndex | truePC) - 4194304) >> 2;
-        //programCounter = ((decIndex) | (((programCounter + 4194304) >> 28) << 28)) - 419304;
+        int decIndex = index << 2;
+        int truePC = ((nextPc + 4194304) >> 28) << 28;
+        return ((decIndex | truePC) - 4194304) >> 2;
     }
 
     /*
     Simulate lui instruction. immediate | (16 bits of zero) -> rt
-     Basically  "instruction" + "0000" -> rt
      */
-    private void lui(String rt, String immediate) {
-        int decRt = Integer.parseInt(rt, 16);
-        registerArray[decRt] = immediate + "0000";
+    private void lui(int rt, int immediate) {
+        writeRegister(rt, immediate << 16);
     }
 
     /*
     Simulate lw instruction. memory[base(rs) + offset(immediate)] -> rt
      */
-    private void lw(String base, String rt, String offset) {
-        int decBase = Integer.parseInt(base, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decOffset = Integer.parseInt(offset, 16);
-        int regBase = Integer.parseInt(registerArray[decBase], 16);
-        //Memory array is only 256 elements, but most references are based off
-        //of $sp which starts at INITIALSP. Need to find difference
-        registerArray[decRt] = memoryArray[INITIALSP - (regBase + decOffset)];
+    private void lw(int base, int rt, int offset) {
+        writeRegister(rt, memory.loadWord(registerArray[base] + offset));
     }
 
     /*
     Simulate or instruction. rs | rt -> rd
      */
-    private void or(String rs, String rt, String rd) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decRd = Integer.parseInt(rd, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        int rightArg = Integer.parseInt(registerArray[decRt], 16);
-        registerArray[decRd] = String.format("%08x", leftArg | rightArg);
+    private void or(int rs, int rt, int rd) {
+        writeRegister(rd, registerArray[rs] | registerArray[rt]);
     }
 
     /*
     Simulate ori instruction. rs | immediate -> rt
      */
-    private void ori(String rs, String rt, String immediate) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decImmediate = Integer.parseInt(immediate, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        registerArray[decRt] = String.format("%08x", leftArg | decImmediate);
+    private void ori(int rs, int rt, int immediate) {
+        writeRegister(rt, registerArray[rs] | immediate);
     }
 
     /*
     Simulate slt instruction. (rs < rt) -> rd. True = 1, False = 0.
      */
-    private void slt(String rs, String rt, String rd) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decRd = Integer.parseInt(rd, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        int rightArg = Integer.parseInt(registerArray[decRt], 16);
-        if (leftArg < rightArg) {
-            registerArray[decRd] = String.format("%08x", 1);
+    private void slt(int rs, int rt, int rd) {
+        if (registerArray[rs] < registerArray[rt]) {
+            writeRegister(rd, 1);
         } else {
-            registerArray[decRd] = String.format("%08x", 0);
+            writeRegister(rd, 0);
         }
     }
 
     /*
     Simulate sub instruction. rs - rt -> rd
     */
-    private void sub(String rs, String rt, String rd) {
-        int decRs = Integer.parseInt(rs, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decRd = Integer.parseInt(rd, 16);
-        int leftArg = Integer.parseInt(registerArray[decRs], 16);
-        int rightArg = Integer.parseInt(registerArray[decRt], 16);
-        registerArray[decRd] = String.format("%08x", leftArg - rightArg);
+    private void sub(int rs, int rt, int rd) {
+        writeRegister(rd, registerArray[rs] - registerArray[rt]);
     }
 
     /*
     Simulate sw instruction. rt -> memory[base(rs) + offset(immediate)]
     */
-    private void sw(String base, String rt, String offset) {
-        int decBase = Integer.parseInt(base, 16);
-        int decRt = Integer.parseInt(rt, 16);
-        int decOffset = Integer.parseInt(offset, 16);
-        int regBase = Integer.parseInt(registerArray[decBase], 16);
-        //Memory array is only 256 elements, but most references are based off
-        //of $sp which starts at INITIALSP. Need to find difference
-        memoryArray[INITIALSP - (regBase + decOffset)] = registerArray[decRt];
+    private void sw(int base, int rt, int offset) {
+        memory.storeWord(registerArray[base] + offset, registerArray[rt]);
+    }
+
+    /*
+    Simulate ll instruction. memory[base(rs) + offset(immediate)] -> rt, and
+    remember the address and value for sc
+     */
+    private void ll(int base, int rt, int offset) {
+        int address = registerArray[base] + offset;
+        int value = memory.loadLinked(address);
+        reservationValid = true;
+        reservationAddress = address;
+        reservedValue = value;
+        writeRegister(rt, value);
+    }
+
+    /*
+    Simulate sc instruction. If the word at base(rs) + offset(immediate) is
+    still the value ll read, atomically store rt there and set rt to 1,
+    otherwise set rt to 0. The reservation is used up either way.
+    Checking the value rather than watching for stores means a word that is
+    changed and changed back still succeeds, which is fine for locks and counters.
+     */
+    private void sc(int base, int rt, int offset) {
+        int address = registerArray[base] + offset;
+        boolean stored = reservationValid && reservationAddress == address
+                && memory.storeConditional(address, reservedValue, registerArray[rt]);
+        reservationValid = false;
+        lastScStored = stored;
+        writeRegister(rt, stored ? 1 : 0);
     }
 
     /*
@@ -361,47 +1268,48 @@ public class MIPSSimulator {
         $v0 = 1: print integer in $a0
         $v0 = 4: print null terminated string in $a0
         $v0 = 5: read integer and save to $v0
-        $v0 = 10: Exit program
+        $v0 = 10: Exit program (only this hart when there are several)
+        $v0 = 60: hart id -> $v0
     $v0 is register 2
     $a0 is register 4
      */
     private void syscall(){
-        int v0 = Integer.parseInt(registerArray[2], 16);
+        int v0 = registerArray[2];
+        SimulatorEvents.Syscall event = new SimulatorEvents.Syscall();
+        event.begin();
         switch(v0){
             case PRINTINTCODE:
-                int a0 = Integer.parseInt(registerArray[4], 16);
-                System.out.println(a0);
+                io.printInt(registerArray[4]);
                 break;
             case PRINTSTRINGCODE:
-                //Might need to divide this by 4. Not sure yet.
-                //First read gives initial index of 1, but array starts at 0.
-                //I'm assuming this is just how this works.
-                int dataIndex = Integer.parseInt(registerArray[4],16) - INITIALDATA;
-                int dataRead = Integer.parseInt(dataArray[dataIndex], 16);
+                int address = registerArray[4];
+                int dataRead = memory.loadByte(address);
                 while(dataRead != 0){
-                    char ch = (char)dataRead;
-                   System.out.print(ch);
-                   ++dataIndex;
-                   /* Original idea
-                   if(dataIndex % 4 == 0){
-                       dataIndex += 7;
-                   }
-                   else{
-                       --dataIndex;
-                   }
-                   */
-                   dataRead = Integer.parseInt(dataArray[dataIndex], 16);
+                    io.printChar(dataRead);
+                    ++address;
+                    dataRead = memory.loadByte(address);
                 }
                 break;
             case READINTCODE:
-                Scanner scan = new Scanner(System.in);
-                int readInt = scan.nextInt();
-                registerArray[2] = String.format("%08x", readInt);
-                scan.close();
+                if(pauseOnRead){
+                    //The PC is already past the syscall, so the read happens when run() is called again
+                    pausedAtRead = true;
+                    break;
+                }
+                writeRegister(2, io.readInt());
                 break;
             case TERMINATECODE:
                 terminateSimulation = true;
                 break;
+            case HARTIDCODE:
+                writeRegister(2, hartId);
+                break;
+        }
+        SimulatorMetrics.get().syscalls.increment();
+        if(event.shouldCommit()){
+            event.code = v0;
+            event.instructions = instructionCount;
+            event.commit();
         }
     }
 }
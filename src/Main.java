@@ -1,13 +1,316 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 public class Main {
-    public static void main(String[] args) {
+    /*
+    Usage: Main [options] <.text file> <.data file>
+           Main [options] --resume=<checkpoint file>
+           Main --batch <directory or manifest> [batch options]   (see BatchRunner)
+           Main --sweep <.text file> <.data file> <inputs file> [sweep options]   (see InputSweep)
+           Main --disassemble <.text file> [--threads=N] [--big-endian]   (see Disassembler)
+           Main --read-trace <trace file>   (see TraceReader)
+           Main --serve [server options]   (see SimulatorServer)
+           Main --client [--socket=PATH | --port=N] [options] <.text file> <.data file>   (see SimulatorClient)
+    Options:
+        --interpret           run without the JIT
+        --jit-threshold=N     compile a block after it runs N times
+        --no-fusion           interpret without superinstructions (see BlockCache)
+        --big-endian          .bin program images are big endian (default little)
+        --timing              print load and run time to stderr
+        --budget=N            stop after N instructions
+        --profile             interpret only and print a guest profile to stderr
+        --debug               load the program and take debugger commands from stdin (see Debugger)
+        --checkpoint=FILE     write a checkpoint to FILE every --checkpoint-every instructions
+        --checkpoint-every=N  instructions between checkpoints (default 100000000)
+        --resume=FILE         carry on from the last checkpoint in FILE instead of loading files
+                              (checkpoints then keep going to FILE unless --checkpoint says otherwise)
+        --harts=N             run N harts over shared memory, each on its own thread
+        --metrics             register the metrics MBean and print the metrics to stderr at exit
+        --trace=FILE          interpret only and record every instruction to FILE (see TraceWriter)
+        --pipeline            interpret only, modeling L1 caches and a 5-stage pipeline, and print
+                              cycles, CPI, stalls and hit rates to stderr (see TimingModel)
+        --icache=SIZE,WAYS,LINE  L1 instruction cache for --pipeline, in bytes (default 16384,2,32)
+        --dcache=SIZE,WAYS,LINE  L1 data cache for --pipeline, in bytes (default 16384,4,32)
+        --miss-penalty=N      cycles per cache miss for --pipeline (default 20)
+        --branch-penalty=N    cycles per taken beq/bne for --pipeline (default 2)
+        --off-heap            keep guest memory in direct buffers outside the Java heap
+        --memory-file=FILE    keep guest memory in FILE, mapped shared so other processes can
+                              read it while the program runs (see OffHeapMemory)
+        --program-cache[=DIR] map programs parsed by earlier runs from DIR instead of parsing them
+                              (default DIR is ~/.cache/mips-program-cache, see ProgramCache)
+        --program-cache-size=N  evict least recently used programs past N bytes (default 256 MiB)
+    Files ending in .bin are raw binary images, anything else is hex text.
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("--batch")){
+            BatchRunner.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--sweep")){
+            InputSweep.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--disassemble")){
+            Disassembler.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--read-trace")){
+            TraceReader.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--serve")){
+            SimulatorServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if(args.length > 0 && args[0].equals("--client")){
+            SimulatorClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        int hartCount = 1;
+        OffHeapMemory offHeap = null;
+        for(String arg : args){
+            if(arg.startsWith("--harts=")){
+                hartCount = Integer.parseInt(arg.substring("--harts=".length()));
+            }
+            else if(arg.equals("--off-heap") && offHeap == null){
+                offHeap = new OffHeapMemory();
+            }
+            else if(arg.startsWith("--memory-file=")){
+                offHeap = new OffHeapMemory(Paths.get(arg.substring("--memory-file=".length())));
+            }
+        }
+        if(hartCount > 1 && offHeap != null){
+            System.out.println("Off-heap memory is not supported with several harts");
+            return;
+        }
+        //With several harts, options go to hart 0 and it passes them on when the program loads
+        MultiHartSimulator machine = hartCount > 1 ? new MultiHartSimulator(hartCount) : null;
+        MIPSSimulator sim = machine != null ? machine.getHart(0)
+                : offHeap != null ? new MIPSSimulator(offHeap) : new MIPSSimulator();
+        List<String> files = new ArrayList<>();
+        boolean timing = false;
+        boolean metrics = false;
+        boolean debug = false;
+        boolean pipeline = false;
+        TimingModel.Cache instructionCache = new TimingModel.Cache(16384, 2, 32);
+        TimingModel.Cache dataCache = new TimingModel.Cache(16384, 4, 32);
+        int missPenalty = TimingModel.DEFAULT_MISS_PENALTY;
+        int branchPenalty = TimingModel.DEFAULT_BRANCH_PENALTY;
+        Path checkpointFile = null;
+        long checkpointEvery = 100_000_000L;
+        Path resumeFile = null;
+        TraceWriter traceWriter = null;
+        Path programCacheDirectory = null;
+        long programCacheSize = ProgramCache.DEFAULT_MAX_BYTES;
+        for(String arg : args){
+            if(arg.equals("--interpret")){
+                sim.setJitEnabled(false);
+            }
+            else if(arg.startsWith("--jit-threshold=")){
+                sim.setJitThreshold(Integer.parseInt(arg.substring("--jit-threshold=".length())));
+            }
+            else if(arg.equals("--no-fusion")){
+                sim.setFusionEnabled(false);
+            }
+            else if(arg.equals("--big-endian")){
+                sim.setBinaryByteOrder(ByteOrder.BIG_ENDIAN);
+            }
+            else if(arg.startsWith("--budget=")){
+                sim.setInstructionLimit(Long.parseLong(arg.substring("--budget=".length())));
+            }
+            else if(arg.equals("--profile")){
+                sim.setProfiler(new Profiler());
+            }
+            else if(arg.startsWith("--checkpoint=")){
+                checkpointFile = Paths.get(arg.substring("--checkpoint=".length()));
+            }
+            else if(arg.startsWith("--checkpoint-every=")){
+                checkpointEvery = Long.parseLong(arg.substring("--checkpoint-every=".length()));
+            }
+            else if(arg.startsWith("--trace=")){
+                traceWriter = new TraceWriter(Paths.get(arg.substring("--trace=".length())));
+                sim.setTracing(traceWriter);
+            }
+            else if(arg.startsWith("--resume=")){
+                resumeFile = Paths.get(arg.substring("--resume=".length()));
+            }
+            else if(arg.startsWith("--harts=") || arg.equals("--off-heap") || arg.startsWith("--memory-file=")){
+                //Handled above
+            }
+            else if(arg.equals("--metrics")){
+                metrics = true;
+                SimulatorMetrics.registerMBean();
+            }
+            else if(arg.equals("--timing")){
+                timing = true;
+            }
+            else if(arg.equals("--debug")){
+                debug = true;
+            }
+            else if(arg.equals("--program-cache")){
+                programCacheDirectory = ProgramCache.defaultDirectory();
+            }
+            else if(arg.startsWith("--program-cache=")){
+                programCacheDirectory = Paths.get(arg.substring("--program-cache=".length()));
+            }
+            else if(arg.startsWith("--program-cache-size=")){
+                programCacheSize = Long.parseLong(arg.substring("--program-cache-size=".length()));
+            }
+            else if(arg.equals("--pipeline")){
+                pipeline = true;
+            }
+            else if(arg.startsWith("--icache=")){
+                instructionCache = parseCache(arg.substring("--icache=".length()));
+            }
+            else if(arg.startsWith("--dcache=")){
+                dataCache = parseCache(arg.substring("--dcache=".length()));
+            }
+            else if(arg.startsWith("--miss-penalty=")){
+                missPenalty = Integer.parseInt(arg.substring("--miss-penalty=".length()));
+            }
+            else if(arg.startsWith("--branch-penalty=")){
+                branchPenalty = Integer.parseInt(arg.substring("--branch-penalty=".length()));
+            }
+            else{
+                files.add(arg);
+            }
+        }
+        if(machine != null && (checkpointFile != null || resumeFile != null)){
+            System.out.println("Checkpoints are not supported with several harts");
+            return;
+        }
+        if(machine != null && debug){
+            System.out.println("The debugger is not supported with several harts");
+            return;
+        }
+        if(machine != null && pipeline){
+            System.out.println("The pipeline model is not supported with several harts");
+            return;
+        }
+        if(programCacheDirectory != null){
+            try{
+                sim.setProgramCache(new ProgramCache(programCacheDirectory, programCacheSize));
+            }
+            catch(IOException e){
+                System.out.println("Could not use program cache: " + e.getMessage());
+                return;
+            }
+        }
+        if(pipeline){
+            sim.setTimingModel(new TimingModel(instructionCache, dataCache, missPenalty, branchPenalty));
+        }
+        if(resumeFile != null && checkpointFile == null){
+            checkpointFile = resumeFile;
+        }
+        Checkpoint.Writer checkpointWriter = null;
+        int exitCode;
+        try{
+            if(checkpointFile != null){
+                //Keep adding to the file we resumed from, start any other file over
+                checkpointWriter = new Checkpoint.Writer(checkpointFile, checkpointFile.equals(resumeFile));
+                sim.setCheckpointing(checkpointWriter, checkpointEvery);
+            }
+            if(machine != null){
+                machine.loadFiles(files.get(1), files.get(0));
+                exitCode = combinedExitCode(machine.run());
+            }
+            else if(resumeFile != null){
+                Checkpoint.State state = sim.resume(resumeFile);
+                System.err.println("resumed at instruction " + state.getInstructionCount());
+                exitCode = sim.runTimed();
+            }
+            else if(debug){
+                sim.loadFiles(files.get(1), files.get(0));
+                exitCode = new Debugger(sim).commandLoop(System.in, System.out);
+            }
+            else{
+                exitCode = sim.mainLoop(files.get(1), files.get(0));
+            }
+        }
+        catch(IOException e){
+            System.out.println("Could not use checkpoint: " + e.getMessage());
+            return;
+        }
+        finally{
+            if(checkpointWriter != null){
+                checkpointWriter.close();
+            }
+            if(offHeap != null){
+                offHeap.close();
+            }
+            if(traceWriter != null){
+                traceWriter.close();
+            }
+        }
+        System.out.println(finishMessage(exitCode));
+        if(sim.getProfiler() != null){
+            System.err.print(sim.getProfileReport());
+        }
+        if(sim.getTimingModel() != null){
+            System.err.print(sim.getTimingModel().report());
+        }
+        if(metrics){
+            System.err.print(SimulatorMetrics.get().getSummary());
+        }
+        if(timing){
+            System.err.printf("load: %.3f ms, run: %.3f ms, %d instructions%n",
+                    sim.getLoadNanos() / 1e6, sim.getRunNanos() / 1e6,
+                    machine != null ? machine.getInstructionCount() : sim.getInstructionCount());
+            if(sim.getInterpretedInstructionCount() > 0){
+                System.err.printf("interpreted: %d instructions, %.1f%% of them fused%n",
+                        sim.getInterpretedInstructionCount(),
+                        100.0 * sim.getFusedInstructionCount() / sim.getInterpretedInstructionCount());
+            }
+        }
+    }
 
-        MIPSSimulator sim = new MIPSSimulator();
-        int exitCode = sim.mainLoop(args[1], args[0]);
-        if(exitCode == 0){
-            System.out.println("\n-- program is finished running --");
+    /*
+    What to print once the program stops, given its exit code
+     */
+    static String finishMessage(int exitCode){
+        if(exitCode == MIPSSimulator.EXIT_NORMAL){
+            return "\n-- program is finished running --";
+        }
+        else if(exitCode == MIPSSimulator.EXIT_INSTRUCTION_LIMIT){
+            return "\n-- program stopped (instruction limit reached) --";
+        }
+        else if(exitCode == MIPSSimulator.EXIT_KILLED_WALL_TIME){
+            return "\n-- program stopped (time limit reached) --";
+        }
+        else if(exitCode == MIPSSimulator.EXIT_BREAKPOINT){
+            return "\n-- program stopped in the debugger --";
         }
         else{
-            System.out.println("\n-- program is finished running (dropped off bottom) --");
+            return "\n-- program is finished running (dropped off bottom) --";
+        }
+    }
+
+    /*
+    SIZE,WAYS,LINE in bytes
+     */
+    private static TimingModel.Cache parseCache(String spec){
+        String[] parts = spec.split(",");
+        if(parts.length != 3){
+            throw new IllegalArgumentException("Expected SIZE,WAYS,LINE, got " + spec);
+        }
+        return new TimingModel.Cache(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+    }
+
+    /*
+    One exit code for all harts: the first one that did not end normally, or 0
+     */
+    private static int combinedExitCode(int[] exitCodes){
+        for(int exitCode : exitCodes){
+            if(exitCode != MIPSSimulator.EXIT_NORMAL){
+                return exitCode;
+            }
         }
+        return MIPSSimulator.EXIT_NORMAL;
     }
-}
\ No newline at end of file
+}
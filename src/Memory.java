@@ -0,0 +1,435 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+Byte addressed memory covering the whole 32 bit address space.
+Memory is split into 4 KiB pages that are only allocated the first time
+they are written, so the footprint grows with the pages a program touches.
+Pages hold words (little endian, like MARS) so lw/sw are a single array access.
+Each page also has a set of flags. Stores to flagged pages always take the
+slow path so the flag can be acted on. The dirty flag is the exception: it is
+set on the first store after clearDirty(), and the page then goes back to
+the fast path. Watched pages are kept out of both TLBs, so every lw and sw
+to them reaches the listener, and pages without the flag never check for it.
+fork() makes a copy-on-write child: both sides share every page until one of
+them stores to it, at which point that side gets its own copy.
+The page table itself is allocated with CAS, so several views (see
+HartMemory) can share one set of pages from different threads.
+ */
+public class Memory {
+    public static final int PAGE_BITS = 12;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+    public static final int WORDS_PER_PAGE = PAGE_SIZE >> 2;
+    static final int OFFSET_MASK = PAGE_SIZE - 1;
+    //Page number is 20 bits, split into a 10 bit directory index and a 10 bit table index
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    //Page flags
+    public static final int PAGE_CODE = 1;
+    //Written since the last clearDirty(). Used for incremental checkpoints.
+    public static final int PAGE_DIRTY = 2;
+    //Page array is shared with a fork and has to be copied before a store
+    public static final int PAGE_SHARED = 4;
+    //Accesses are reported to the listener, for debugger watchpoints
+    public static final int PAGE_WATCH = 8;
+
+    //Element access for the page table, and for words where ordering matters
+    static final VarHandle WORDS = MethodHandles.arrayElementVarHandle(int[].class);
+    private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(int[][].class);
+    private static final VarHandle TABLES = MethodHandles.arrayElementVarHandle(int[][][].class);
+    private static final VarHandle FLAG_TABLES = MethodHandles.arrayElementVarHandle(byte[][].class);
+
+    //Two level page table. Tables and pages are both allocated lazily.
+    private final int[][][] directory;
+    //Flags for every page, laid out the same way as the page table
+    private final byte[][] flagDirectory;
+    private final AtomicInteger pageCount;
+    //Shared pages this memory has copied since it was forked
+    private int copiedPageCount;
+    private MemoryListener listener;
+    //Whether this view has ever watched a page. Only tested on the TLB miss path.
+    boolean watching;
+
+    //One entry TLB. Remembers the last page used so sequential lw/sw skip the table walk.
+    //-1 never matches because page numbers are at most 20 bits.
+    //The TLB belongs to this object, so every view of shared pages has its own.
+    int lastPageNumber = -1;
+    int[] lastPage;
+    //Separate entry for stores. Only pages without flags other than dirty are cached here.
+    int lastWritePageNumber = -1;
+    int[] lastWritePage;
+
+    public Memory() {
+        directory = new int[1 << TABLE_BITS][][];
+        flagDirectory = new byte[1 << TABLE_BITS][];
+        pageCount = new AtomicInteger();
+    }
+
+    /*
+    Another view of the same pages and flags, with its own TLB and listener
+     */
+    Memory(Memory shared) {
+        directory = shared.directory;
+        flagDirectory = shared.flagDirectory;
+        pageCount = shared.pageCount;
+    }
+
+    /*
+    Read the word containing address. The low 2 bits are ignored.
+    Untouched memory reads as 0 and is not allocated.
+     */
+    public int loadWord(int address){
+        int pageNumber = address >>> PAGE_BITS;
+        if(pageNumber == lastPageNumber){
+            return lastPage[(address & OFFSET_MASK) >>> 2];
+        }
+        int[] page = findPage(pageNumber, false);
+        if(watching){
+            loadedFromPage(pageNumber, address);
+        }
+        if(page == null){
+            return 0;
+        }
+        return page[(address & OFFSET_MASK) >>> 2];
+    }
+
+    /*
+    Write the word containing address. The low 2 bits are ignored.
+     */
+    public void storeWord(int address, int value){
+        int pageNumber = address >>> PAGE_BITS;
+        if(pageNumber == lastWritePageNumber){
+            lastWritePage[(address & OFFSET_MASK) >>> 2] = value;
+            return;
+        }
+        int[] page = writablePage(pageNumber);
+        page[(address & OFFSET_MASK) >>> 2] = value;
+        storedToPage(pageNumber, address);
+    }
+
+    /*
+    Load linked: read a word with volatile ordering
+     */
+    public int loadLinked(int address){
+        int[] page = findPage(address >>> PAGE_BITS, false);
+        if(page == null){
+            return 0;
+        }
+        return (int)WORDS.getVolatile(page, (address & OFFSET_MASK) >>> 2);
+    }
+
+    /*
+    Store conditional: write value only if the word still holds expected,
+    as one atomic step. Returns whether the store happened.
+     */
+    public boolean storeConditional(int address, int expected, int value){
+        int pageNumber = address >>> PAGE_BITS;
+        int[] page = writablePage(pageNumber);
+        if(!WORDS.compareAndSet(page, (address & OFFSET_MASK) >>> 2, expected, value)){
+            return false;
+        }
+        storedToPage(pageNumber, address);
+        return true;
+    }
+
+    /*
+    Store slow path, before the store: the page to store into, allocated and
+    unshared if needed and marked dirty. Cached in the write TLB when the
+    store needs no further action.
+     */
+    final int[] writablePage(int pageNumber){
+        int[] page = findPage(pageNumber, true);
+        int flags = getPageFlags(pageNumber);
+        if((flags & PAGE_SHARED) != 0){
+            page = unshare(pageNumber, page);
+            flags &= ~PAGE_SHARED;
+        }
+        if((flags & PAGE_DIRTY) == 0){
+            setPageFlags(pageNumber, PAGE_DIRTY);
+        }
+        if((flags & ~PAGE_DIRTY) == 0){
+            lastWritePageNumber = pageNumber;
+            lastWritePage = page;
+        }
+        return page;
+    }
+
+    /*
+    Store slow path, after the store: report writes to code
+     */
+    final void storedToPage(int pageNumber, int address){
+        int flags = getPageFlags(pageNumber);
+        if((flags & PAGE_CODE) != 0 && listener != null){
+            listener.codeWritten(address);
+        }
+        if((flags & PAGE_WATCH) != 0 && listener != null){
+            listener.watchedAccess(address, true);
+        }
+    }
+
+    /*
+    Load slow path while watching: report loads from watched pages
+     */
+    final void loadedFromPage(int pageNumber, int address){
+        if((getPageFlags(pageNumber) & PAGE_WATCH) != 0 && listener != null){
+            listener.watchedAccess(address, false);
+        }
+    }
+
+    /*
+    Read one unsigned byte
+     */
+    public int loadByte(int address){
+        int word = loadWord(address);
+        return (word >>> ((address & 3) << 3)) & 0xff;
+    }
+
+    /*
+    Write the low 8 bits of value to one byte
+     */
+    public void storeByte(int address, int value){
+        int shift = (address & 3) << 3;
+        int word = loadWord(address);
+        word = (word & ~(0xff << shift)) | ((value & 0xff) << shift);
+        storeWord(address, word);
+    }
+
+    /*
+    Copy a run of words into memory starting at address, a page at a time.
+    Meant for loading programs, so the listener is not told about code pages.
+     */
+    public void storeWords(int address, IntBuffer words){
+        IntBuffer source = words.duplicate();
+        while(source.hasRemaining()){
+            int pageNumber = address >>> PAGE_BITS;
+            int[] page = findPage(pageNumber, true);
+            if((getPageFlags(pageNumber) & PAGE_SHARED) != 0){
+                page = unshare(pageNumber, page);
+            }
+            int offset = (address & OFFSET_MASK) >>> 2;
+            int count = Math.min(WORDS_PER_PAGE - offset, source.remaining());
+            source.get(page, offset, count);
+            address += count << 2;
+        }
+    }
+
+    /*
+    Flag the page holding address as containing code.
+    Stores to it will be reported to the listener.
+     */
+    public void markCode(int address){
+        setPageFlags(address >>> PAGE_BITS, PAGE_CODE);
+    }
+
+    /*
+    Watch or stop watching the page holding address. Loads and stores to a
+    watched page through this view are reported to the listener.
+     */
+    public void setWatched(int address, boolean watched){
+        int pageNumber = address >>> PAGE_BITS;
+        if(watched){
+            watching = true;
+            setPageFlags(pageNumber, PAGE_WATCH);
+        }
+        else if((getPageFlags(pageNumber) & PAGE_WATCH) != 0){
+            clearPageFlags(pageNumber, PAGE_WATCH);
+        }
+        dropReadTlb();
+    }
+
+    //Forget the page the read TLB holds
+    void dropReadTlb(){
+        lastPageNumber = -1;
+        lastPage = null;
+    }
+
+    public void setListener(MemoryListener listener){
+        this.listener = listener;
+    }
+
+    public int getPageFlags(int pageNumber){
+        byte[] flags = (byte[])FLAG_TABLES.getAcquire(flagDirectory, pageNumber >>> TABLE_BITS);
+        if(flags == null){
+            return 0;
+        }
+        return flags[pageNumber & TABLE_MASK];
+    }
+
+    /*
+    Copy-on-write fork. The child gets its own page table pointing at the same
+    pages, and every page is flagged shared on both sides, so whichever side
+    stores to a page first copies it. Costs one pass over the page table;
+    pages are only copied as they are written.
+    After forking, this memory and the child may be used from different threads.
+     */
+    public Memory fork(){
+        Memory child = new Memory();
+        for(int dir = 0; dir < directory.length; dir++){
+            int[][] table = directory[dir];
+            if(table == null){
+                continue;
+            }
+            for(int i = 0; i < table.length; i++){
+                if(table[i] != null){
+                    setPageFlags((dir << TABLE_BITS) | i, PAGE_SHARED);
+                }
+            }
+            child.directory[dir] = table.clone();
+        }
+        for(int dir = 0; dir < flagDirectory.length; dir++){
+            if(flagDirectory[dir] != null){
+                child.flagDirectory[dir] = flagDirectory[dir].clone();
+            }
+        }
+        child.pageCount.set(pageCount.get());
+        //Every page is now shared, so our own stores have to take the slow path too
+        lastWritePageNumber = -1;
+        lastWritePage = null;
+        return child;
+    }
+
+    /*
+    Take a copy of every page flag of source. Used by forks that keep their
+    pages elsewhere (see OffHeapMemory).
+     */
+    final void copyFlags(Memory source){
+        for(int dir = 0; dir < flagDirectory.length; dir++){
+            if(source.flagDirectory[dir] != null){
+                flagDirectory[dir] = source.flagDirectory[dir].clone();
+            }
+        }
+    }
+
+    /*
+    Number of shared pages copied by stores since this memory was forked
+     */
+    public int getCopiedPageCount(){
+        return copiedPageCount;
+    }
+
+    /*
+    Replace a shared page with a private copy and return the copy
+     */
+    private int[] unshare(int pageNumber, int[] page){
+        int[] copy = page.clone();
+        directory[pageNumber >>> TABLE_BITS][pageNumber & TABLE_MASK] = copy;
+        clearPageFlags(pageNumber, PAGE_SHARED);
+        if(lastPageNumber == pageNumber){
+            lastPage = copy;
+        }
+        ++copiedPageCount;
+        return copy;
+    }
+
+    void setPageFlags(int pageNumber, int newFlags){
+        byte[] flags = (byte[])FLAG_TABLES.getAcquire(flagDirectory, pageNumber >>> TABLE_BITS);
+        if(flags == null){
+            FLAG_TABLES.compareAndSet(flagDirectory, pageNumber >>> TABLE_BITS, null, new byte[1 << TABLE_BITS]);
+            flags = (byte[])FLAG_TABLES.getAcquire(flagDirectory, pageNumber >>> TABLE_BITS);
+        }
+        flags[pageNumber & TABLE_MASK] |= (byte)newFlags;
+        //A flagged page can no longer use the store fast path
+        if(pageNumber == lastWritePageNumber){
+            lastWritePageNumber = -1;
+            lastWritePage = null;
+        }
+    }
+
+    /*
+    Clear flags of one page that has flags
+     */
+    final void clearPageFlags(int pageNumber, int oldFlags){
+        flagDirectory[pageNumber >>> TABLE_BITS][pageNumber & TABLE_MASK] &= (byte)~oldFlags;
+    }
+
+    /*
+    Clear the dirty flag of every page. The write TLB is dropped so the next
+    store to each page marks it again.
+     */
+    public void clearDirty(){
+        for(byte[] flags : flagDirectory){
+            if(flags != null){
+                for(int i = 0; i < flags.length; i++){
+                    flags[i] &= (byte)~PAGE_DIRTY;
+                }
+            }
+        }
+        lastWritePageNumber = -1;
+        lastWritePage = null;
+    }
+
+    /*
+    Page numbers of every allocated page in address order, or only the
+    dirty ones when dirtyOnly is true
+     */
+    public int[] getPageNumbers(boolean dirtyOnly){
+        int[] numbers = new int[pageCount.get()];
+        int count = 0;
+        for(int dir = 0; dir < directory.length; dir++){
+            int[][] table = directory[dir];
+            if(table == null){
+                continue;
+            }
+            for(int i = 0; i < table.length; i++){
+                int pageNumber = (dir << TABLE_BITS) | i;
+                if(table[i] != null && (!dirtyOnly || (getPageFlags(pageNumber) & PAGE_DIRTY) != 0)){
+                    numbers[count] = pageNumber;
+                    ++count;
+                }
+            }
+        }
+        return Arrays.copyOf(numbers, count);
+    }
+
+    /*
+    The words of a page, or null if it was never written. The array is live,
+    so callers must not keep it across stores.
+     */
+    int[] getPage(int pageNumber){
+        int[][] table = directory[pageNumber >>> TABLE_BITS];
+        return table == null ? null : table[pageNumber & TABLE_MASK];
+    }
+
+    /*
+    Number of pages allocated so far
+     */
+    public int getPageCount(){
+        return pageCount.get();
+    }
+
+    /*
+    Walk the page table. Allocates the page when create is true.
+    Returns null for a missing page otherwise.
+    Entries are read with acquire and filled with CAS, so views on other
+    threads either see a whole new table or page, or allocate the same one.
+     */
+    final int[] findPage(int pageNumber, boolean create){
+        int[][] table = (int[][])TABLES.getAcquire(directory, pageNumber >>> TABLE_BITS);
+        if(table == null){
+            if(!create){
+                return null;
+            }
+            TABLES.compareAndSet(directory, pageNumber >>> TABLE_BITS, null, new int[1 << TABLE_BITS][]);
+            table = (int[][])TABLES.getAcquire(directory, pageNumber >>> TABLE_BITS);
+        }
+        int[] page = (int[])PAGES.getAcquire(table, pageNumber & TABLE_MASK);
+        if(page == null){
+            if(!create){
+                return null;
+            }
+            if(PAGES.compareAndSet(table, pageNumber & TABLE_MASK, null, new int[WORDS_PER_PAGE])){
+                pageCount.incrementAndGet();
+            }
+            page = (int[])PAGES.getAcquire(table, pageNumber & TABLE_MASK);
+        }
+        if(!watching || (getPageFlags(pageNumber) & PAGE_WATCH) == 0){
+            lastPageNumber = pageNumber;
+            lastPage = page;
+        }
+        return page;
+    }
+}
@@ -0,0 +1,11 @@
+/*
+Callbacks from Memory for writes that need more than a plain store.
+Only called from the slow path, so pages without flags cost nothing.
+ */
+public interface MemoryListener {
+    //A store hit a page that holds code. The new value is already in memory.
+    void codeWritten(int address);
+
+    //A lw or sw touched a watched page (see Memory.setWatched). Stores are already in memory.
+    void watchedAccess(int address, boolean store);
+}
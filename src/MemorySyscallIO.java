@@ -0,0 +1,31 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+Syscall I/O kept entirely in memory, for batch runs and tests.
+Input is a fixed string. Output is collected and read back with getOutput().
+ */
+public class MemorySyscallIO extends StreamSyscallIO {
+    private final ByteArrayOutputStream output;
+
+    public MemorySyscallIO(String input) {
+        this(input, new ByteArrayOutputStream());
+    }
+
+    private MemorySyscallIO(String input, ByteArrayOutputStream output) {
+        super(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), output);
+        this.output = output;
+    }
+
+    //Everything printed so far
+    public String getOutput(){
+        flush();
+        return output.toString();
+    }
+
+    public byte[] getOutputBytes(){
+        flush();
+        return output.toByteArray();
+    }
+}
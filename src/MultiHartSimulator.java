@@ -0,0 +1,111 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+Several MIPS harts (hardware threads) running one program over one shared
+memory, each on its own Java thread.
+Every hart has its own PC, registers and stack ($sp starts 1 MiB lower per
+hart) and starts at the first instruction; syscall 60 tells them apart.
+Memory goes through HartMemory views, so word accesses are ordered and ll/sc
+are atomic across harts. Decoded text and compiled blocks are shared.
+A hart that writes code only changes its own decoded copy.
+Exit (syscall 10) ends the calling hart, and the run ends when all harts have.
+ */
+public class MultiHartSimulator {
+    private final MIPSSimulator[] harts;
+    private final HartMemory[] views;
+
+    public MultiHartSimulator(int hartCount) {
+        if(hartCount < 1){
+            throw new IllegalArgumentException("Need at least one hart, got " + hartCount);
+        }
+        harts = new MIPSSimulator[hartCount];
+        views = new HartMemory[hartCount];
+        views[0] = new HartMemory();
+        for(int i = 1; i < hartCount; i++){
+            views[i] = new HartMemory(views[0]);
+        }
+        harts[0] = new MIPSSimulator(views[0], 0);
+    }
+
+    public int getHartCount(){
+        return harts.length;
+    }
+
+    /*
+    One hart. Settings made on hart 0 before loading are copied to the others.
+     */
+    public MIPSSimulator getHart(int hart){
+        return harts[hart];
+    }
+
+    /*
+    Load through hart 0, then create the other harts from it.
+    Configure hart 0 (JIT, budget, I/O) before this.
+     */
+    public void loadFiles(String dataFile, String textFile){
+        harts[0].loadFiles(dataFile, textFile);
+        spawnHarts();
+    }
+
+    public void loadProgram(int[] textWords, int[] dataWords){
+        harts[0].loadProgram(textWords, dataWords);
+        spawnHarts();
+    }
+
+    private void spawnHarts(){
+        SyscallIO io = harts[0].getSyscallIO();
+        if(!(io instanceof SynchronizedSyscallIO)){
+            harts[0].setSyscallIO(new SynchronizedSyscallIO(io));
+        }
+        for(int i = 1; i < harts.length; i++){
+            harts[i] = harts[0].spawnHart(i, views[i]);
+        }
+    }
+
+    /*
+    Run every hart on its own thread and wait for all of them.
+    Returns each hart's exit code, as from MIPSSimulator.run().
+    A hart that throws gets Integer.MIN_VALUE and the exception is rethrown
+    once every hart has stopped.
+     */
+    public int[] run() throws InterruptedException {
+        int[] exitCodes = new int[harts.length];
+        List<Thread> threads = new ArrayList<>();
+        RuntimeException[] failure = new RuntimeException[1];
+        for(int i = 0; i < harts.length; i++){
+            int hart = i;
+            Thread thread = new Thread(() -> {
+                try{
+                    exitCodes[hart] = harts[hart].runTimed();
+                }
+                catch(RuntimeException e){
+                    exitCodes[hart] = Integer.MIN_VALUE;
+                    synchronized(failure){
+                        failure[0] = e;
+                    }
+                }
+            }, "hart-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for(Thread thread : threads){
+            thread.join();
+        }
+        if(failure[0] != null){
+            throw failure[0];
+        }
+        return exitCodes;
+    }
+
+    /*
+    Instructions retired by all harts together
+     */
+    public long getInstructionCount(){
+        long total = 0;
+        for(MIPSSimulator hart : harts){
+            total += hart.getInstructionCount();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+Memory with its pages outside the Java heap, so big guest address spaces
+do not weigh on the GC. Behaves exactly like Memory: same page flags, copy on
+write forks, code listener and little endian words.
+Pages are 4 KiB slices of larger regions. Regions are either direct buffers,
+or mappings of a file that other processes can read while the guest runs.
+Every access states its byte order explicitly rather than relying on the
+platform's.
+
+Shared file layout, all little endian:
+    header page   "MIPSMEM1", int page size, int slots per region
+    regions       each an index page followed by REGION_SLOTS data pages.
+                  Index entry k is 1 + the page number held in slot k, 0 if unused.
+Slots are handed out in order and never reused. A page that gets copied
+(see fork) moves to a later slot, so readers should take the last slot
+holding a page number. main() is such a reader.
+ */
+public class OffHeapMemory extends Memory implements Closeable {
+    private static final byte[] FILE_MAGIC = "MIPSMEM1".getBytes(StandardCharsets.US_ASCII);
+    //One index page holds an entry for every slot in its region
+    static final int REGION_SLOTS = PAGE_SIZE / 4 - 1;
+    private static final long REGION_BYTES = (long)PAGE_SIZE * (REGION_SLOTS + 1);
+    private static final int TABLE_BITS = 10;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+    private static final int WORD_OFFSET_MASK = OFFSET_MASK & ~3;
+    //For ll/sc, which need atomic access to a word in a buffer
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    //Page table of little endian page slices, allocated lazily like Memory's
+    private final ByteBuffer[][] directory = new ByteBuffer[1 << TABLE_BITS][];
+    //Null for direct buffers
+    private final FileChannel channel;
+    private final List<ByteBuffer> regions = new ArrayList<>();
+    private int slotCount;
+    private int pageCount;
+    private int copiedPageCount;
+
+    //Same TLBs as Memory, over buffers
+    private int lastBufferNumber = -1;
+    private ByteBuffer lastBuffer;
+    private int lastWriteBufferNumber = -1;
+    private ByteBuffer lastWriteBuffer;
+
+    /*
+    Memory in direct buffers
+     */
+    public OffHeapMemory() {
+        channel = null;
+    }
+
+    /*
+    Memory in a file mapped shared, replacing what the file held
+     */
+    public OffHeapMemory(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, PAGE_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put(FILE_MAGIC);
+        header.putInt(PAGE_SIZE);
+        header.putInt(REGION_SLOTS);
+    }
+
+    @Override
+    public int loadWord(int address){
+        int pageNumber = address >>> PAGE_BITS;
+        if(pageNumber == lastBufferNumber){
+            return lastBuffer.getInt(address & WORD_OFFSET_MASK);
+        }
+        ByteBuffer page = findBuffer(pageNumber, false);
+        if(watching){
+            loadedFromPage(pageNumber, address);
+        }
+        if(page == null){
+            return 0;
+        }
+        return page.getInt(address & WORD_OFFSET_MASK);
+    }
+
+    @Override
+    public void storeWord(int address, int value){
+        int pageNumber = address >>> PAGE_BITS;
+        if(pageNumber == lastWriteBufferNumber){
+            lastWriteBuffer.putInt(address & WORD_OFFSET_MASK, value);
+            return;
+        }
+        writableBuffer(pageNumber).putInt(address & WORD_OFFSET_MASK, value);
+        storedToPage(pageNumber, address);
+    }
+
+    //Bytes are read straight from the buffer. Words are little endian, so
+    //this is the same byte Memory picks out of the word.
+    @Override
+    public int loadByte(int address){
+        int pageNumber = address >>> PAGE_BITS;
+        if(pageNumber == lastBufferNumber){
+            return lastBuffer.get(address & OFFSET_MASK) & 0xff;
+        }
+        ByteBuffer page = findBuffer(pageNumber, false);
+        //Watched pages are never the cached buffer, so they always get here
+        if(watching){
+            loadedFromPage(pageNumber, address);
+        }
+        if(page == null){
+            return 0;
+        }
+        return page.get(address & OFFSET_MASK) & 0xff;
+    }
+
+    @Override
+    public void storeByte(int address, int value){
+        int pageNumber = address >>> PAGE_BITS;
+        writableBuffer(pageNumber).put(address & OFFSET_MASK, (byte)value);
+        storedToPage(pageNumber, address);
+    }
+
+    @Override
+    public int loadLinked(int address){
+        ByteBuffer page = findBuffer(address >>> PAGE_BITS, false);
+        if(page == null){
+            return 0;
+        }
+        return (int)INTS.getVolatile(page, address & WORD_OFFSET_MASK);
+    }
+
+    @Override
+    public boolean storeConditional(int address, int expected, int value){
+        int pageNumber = address >>> PAGE_BITS;
+        ByteBuffer page = writableBuffer(pageNumber);
+        if(!INTS.compareAndSet(page, address & WORD_OFFSET_MASK, expected, value)){
+            return false;
+        }
+        storedToPage(pageNumber, address);
+        return true;
+    }
+
+    @Override
+    public void storeWords(int address, IntBuffer words){
+        IntBuffer source = words.duplicate();
+        while(source.hasRemaining()){
+            int pageNumber = address >>> PAGE_BITS;
+            ByteBuffer page = findBuffer(pageNumber, true);
+            if((getPageFlags(pageNumber) & PAGE_SHARED) != 0){
+                page = unshare(pageNumber, page);
+            }
+            int offset = (address & OFFSET_MASK) >>> 2;
+            int count = Math.min(WORDS_PER_PAGE - offset, source.remaining());
+            IntBuffer target = page.duplicate().position(offset << 2).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            target.put(source.slice().limit(count));
+            source.position(source.position() + count);
+            address += count << 2;
+        }
+    }
+
+    /*
+    Copy-on-write fork, as Memory.fork(). The child always lives in direct
+    buffers, even when this memory is a shared file.
+     */
+    @Override
+    public OffHeapMemory fork(){
+        OffHeapMemory child = new OffHeapMemory();
+        for(int dir = 0; dir < directory.length; dir++){
+            ByteBuffer[] table = directory[dir];
+            if(table == null){
+                continue;
+            }
+            for(int i = 0; i < table.length; i++){
+                if(table[i] != null){
+                    int pageNumber = (dir << TABLE_BITS) | i;
+                    setPageFlags(pageNumber, PAGE_SHARED);
+                }
+            }
+            child.directory[dir] = table.clone();
+        }
+        child.copyFlags(this);
+        child.pageCount = pageCount;
+        return child;
+    }
+
+    @Override
+    public int getCopiedPageCount(){
+        return copiedPageCount;
+    }
+
+    //The write TLB only holds pages without flags other than dirty
+    @Override
+    void setPageFlags(int pageNumber, int newFlags){
+        super.setPageFlags(pageNumber, newFlags);
+        if(pageNumber == lastWriteBufferNumber){
+            lastWriteBufferNumber = -1;
+            lastWriteBuffer = null;
+        }
+    }
+
+    @Override
+    void dropReadTlb(){
+        super.dropReadTlb();
+        lastBufferNumber = -1;
+        lastBuffer = null;
+    }
+
+    @Override
+    public void clearDirty(){
+        super.clearDirty();
+        lastWriteBufferNumber = -1;
+        lastWriteBuffer = null;
+    }
+
+    @Override
+    public int[] getPageNumbers(boolean dirtyOnly){
+        int[] numbers = new int[pageCount];
+        int count = 0;
+        for(int dir = 0; dir < directory.length; dir++){
+            ByteBuffer[] table = directory[dir];
+            if(table == null){
+                continue;
+            }
+            for(int i = 0; i < table.length; i++){
+                int pageNumber = (dir << TABLE_BITS) | i;
+                if(table[i] != null && (!dirtyOnly || (getPageFlags(pageNumber) & PAGE_DIRTY) != 0)){
+                    numbers[count] = pageNumber;
+                    ++count;
+                }
+            }
+        }
+        return Arrays.copyOf(numbers, count);
+    }
+
+    /*
+    A copy of the words of a page, or null if it was never written
+     */
+    @Override
+    int[] getPage(int pageNumber){
+        ByteBuffer[] table = directory[pageNumber >>> TABLE_BITS];
+        ByteBuffer page = table == null ? null : table[pageNumber & TABLE_MASK];
+        if(page == null){
+            return null;
+        }
+        int[] words = new int[WORDS_PER_PAGE];
+        page.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(words);
+        return words;
+    }
+
+    @Override
+    public int getPageCount(){
+        return pageCount;
+    }
+
+    /*
+    Write the shared file's pages out to disk. Nothing to do for direct buffers.
+     */
+    public void force(){
+        for(ByteBuffer region : regions){
+            if(region instanceof MappedByteBuffer){
+                ((MappedByteBuffer)region).force();
+            }
+        }
+    }
+
+    /*
+    Flush and close the shared file. The mapping stays readable until it is
+    garbage collected, so this memory must not be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        if(channel != null){
+            force();
+            channel.close();
+        }
+    }
+
+    /*
+    Store slow path, as Memory.writablePage()
+     */
+    private ByteBuffer writableBuffer(int pageNumber){
+        ByteBuffer page = findBuffer(pageNumber, true);
+        int flags = getPageFlags(pageNumber);
+        if((flags & PAGE_SHARED) != 0){
+            page = unshare(pageNumber, page);
+            flags &= ~PAGE_SHARED;
+        }
+        if((flags & PAGE_DIRTY) == 0){
+            setPageFlags(pageNumber, PAGE_DIRTY);
+        }
+        if((flags & ~PAGE_DIRTY) == 0){
+            lastWriteBufferNumber = pageNumber;
+            lastWriteBuffer = page;
+        }
+        return page;
+    }
+
+    private ByteBuffer unshare(int pageNumber, ByteBuffer page){
+        ByteBuffer copy = allocateSlot(pageNumber);
+        copy.duplicate().put(page.duplicate().clear());
+        directory[pageNumber >>> TABLE_BITS][pageNumber & TABLE_MASK] = copy;
+        clearPageFlags(pageNumber, PAGE_SHARED);
+        if(lastBufferNumber == pageNumber){
+            lastBuffer = copy;
+        }
+        ++copiedPageCount;
+        return copy;
+    }
+
+    private ByteBuffer findBuffer(int pageNumber, boolean create){
+        ByteBuffer[] table = directory[pageNumber >>> TABLE_BITS];
+        if(table == null){
+            if(!create){
+                return null;
+            }
+            table = new ByteBuffer[1 << TABLE_BITS];
+            directory[pageNumber >>> TABLE_BITS] = table;
+        }
+        ByteBuffer page = table[pageNumber & TABLE_MASK];
+        if(page == null){
+            if(!create){
+                return null;
+            }
+            page = allocateSlot(pageNumber);
+            table[pageNumber & TABLE_MASK] = page;
+            ++pageCount;
+        }
+        if(!watching || (getPageFlags(pageNumber) & PAGE_WATCH) == 0){
+            lastBufferNumber = pageNumber;
+            lastBuffer = page;
+        }
+        return page;
+    }
+
+    /*
+    Next free slot as a zeroed little endian page, recorded in the file's
+    index when there is a file
+     */
+    private ByteBuffer allocateSlot(int pageNumber){
+        int region = slotCount / REGION_SLOTS;
+        int slot = slotCount % REGION_SLOTS;
+        if(region == regions.size()){
+            regions.add(mapRegion(region));
+        }
+        ++slotCount;
+        ByteBuffer regionBuffer = regions.get(region);
+        if(channel != null){
+            regionBuffer.putInt(slot << 2, pageNumber + 1);
+        }
+        int offset = channel != null ? (slot + 1) * PAGE_SIZE : slot * PAGE_SIZE;
+        return regionBuffer.slice(offset, PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer mapRegion(int region){
+        if(channel == null){
+            return ByteBuffer.allocateDirect(REGION_SLOTS * PAGE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        try{
+            //Mapping past the end grows the file
+            return channel.map(FileChannel.MapMode.READ_WRITE, PAGE_SIZE + region * REGION_BYTES, REGION_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch(IOException e){
+            throw new IllegalStateException("Could not map guest memory", e);
+        }
+    }
+
+    /*
+    Usage: OffHeapMemory <memory file> <hex address> [words]
+    Print words of a shared memory file, e.g. while the guest runs.
+    Pages that were never written read as 0.
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2){
+            System.err.println("Usage: OffHeapMemory <memory file> <hex address> [words]");
+            return;
+        }
+        int address = (int)Long.parseLong(args[1], 16) & ~3;
+        int words = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        try(FileChannel file = FileChannel.open(Paths.get(args[0]), StandardOpenOption.READ)){
+            MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, file.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[FILE_MAGIC.length];
+            mapped.get(0, magic);
+            if(!Arrays.equals(magic, FILE_MAGIC) || mapped.getInt(FILE_MAGIC.length) != PAGE_SIZE){
+                System.err.println(args[0] + " is not a guest memory file");
+                return;
+            }
+            //Latest slot of every page number, as a byte offset into the file
+            long regionCount = (file.size() - PAGE_SIZE) / REGION_BYTES;
+            Map<Integer, Long> pages = new HashMap<>();
+            for(long region = 0; region < regionCount; region++){
+                long base = PAGE_SIZE + region * REGION_BYTES;
+                for(int slot = 0; slot < REGION_SLOTS; slot++){
+                    int entry = mapped.getInt((int)(base + (slot << 2)));
+                    if(entry != 0){
+                        pages.put(entry - 1, base + (long)(slot + 1) * PAGE_SIZE);
+                    }
+                }
+            }
+            for(int i = 0; i < words; i++, address += 4){
+                Long page = pages.get(address >>> PAGE_BITS);
+                int word = page == null ? 0 : mapped.getInt((int)(page + (address & OFFSET_MASK)));
+                System.out.printf("%08x  %08x%n", address, word);
+            }
+        }
+    }
+}
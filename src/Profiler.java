@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+/*
+Guest level profile of one program run.
+MIPSSimulator only calls into this from its profiling loop, which is picked
+once per run(), so the normal loop carries no profiling code at all.
+Counts are kept in primitive arrays indexed by operation code and PC.
+ */
+public class Profiler {
+    //Syscall codes above this are counted together as "other"
+    private static final int MAX_SYSCALL_CODE = 16;
+    //Rows in the hot PC table
+    private static final int HOT_PC_ROWS = 10;
+
+    private final long[] operationCounts = new long[Instruction.OPERATION_COUNT];
+    //Executions per .text word. Grows if the program is longer than expected.
+    private long[] pcCounts = new long[0];
+    //Indexed by operation code, only beq and bne are used
+    private final long[] takenCounts = new long[Instruction.OPERATION_COUNT];
+    private final long[] notTakenCounts = new long[Instruction.OPERATION_COUNT];
+    private final long[] syscallCounts = new long[MAX_SYSCALL_CODE + 1];
+    private long instructions;
+    private long nanos;
+    private long startNanos;
+
+    /*
+    Called when run() starts and stops, so instructions per second only
+    covers time spent executing
+     */
+    void start(int textLength){
+        if(pcCounts.length < textLength){
+            pcCounts = Arrays.copyOf(pcCounts, textLength);
+        }
+        startNanos = System.nanoTime();
+    }
+
+    void stop(){
+        nanos += System.nanoTime() - startNanos;
+    }
+
+    void instruction(int pc, int operation){
+        ++instructions;
+        ++operationCounts[operation];
+        if(pc >= pcCounts.length){
+            pcCounts = Arrays.copyOf(pcCounts, Math.max(pc + 1, pcCounts.length * 2));
+        }
+        ++pcCounts[pc];
+    }
+
+    void branch(int operation, boolean taken){
+        if(taken){
+            ++takenCounts[operation];
+        }
+        else{
+            ++notTakenCounts[operation];
+        }
+    }
+
+    void syscall(int code){
+        ++syscallCounts[code >= 0 && code < MAX_SYSCALL_CODE ? code : MAX_SYSCALL_CODE];
+    }
+
+    public long getInstructions(){
+        return instructions;
+    }
+
+    public long getOperationCount(int operation){
+        return operationCounts[operation];
+    }
+
+    public long getPcCount(int pc){
+        return pc < pcCounts.length ? pcCounts[pc] : 0;
+    }
+
+    public long getTakenCount(int operation){
+        return takenCounts[operation];
+    }
+
+    public long getNotTakenCount(int operation){
+        return notTakenCounts[operation];
+    }
+
+    public long getSyscallCount(int code){
+        return syscallCounts[code >= 0 && code < MAX_SYSCALL_CODE ? code : MAX_SYSCALL_CODE];
+    }
+
+    public double getInstructionsPerSecond(){
+        return nanos == 0 ? 0 : instructions * 1e9 / nanos;
+    }
+
+    /*
+    Text report: totals, counts per mnemonic, branches, syscalls, the hottest
+    PCs, then the whole program disassembled with a count on every line.
+    text is the decoded program the counts were taken on.
+     */
+    public String report(TextSegment text){
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("instructions: %d in %.3f ms, %.0f per second%n",
+                instructions, nanos / 1e6, getInstructionsPerSecond()));
+
+        report.append(String.format("%nper mnemonic:%n"));
+        Integer[] operations = new Integer[Instruction.OPERATION_COUNT];
+        for(int i = 0; i < operations.length; i++){
+            operations[i] = i;
+        }
+        Arrays.sort(operations, (a, b) -> Long.compare(operationCounts[b], operationCounts[a]));
+        for(int operation : operations){
+            if(operationCounts[operation] > 0){
+                report.append(String.format("  %-8s %14d %6.2f%%%n", Instruction.operationName(operation),
+                        operationCounts[operation], percent(operationCounts[operation])));
+            }
+        }
+
+        report.append(String.format("%nbranches:%n"));
+        for(int operation : new int[]{Instruction.OP_BEQ, Instruction.OP_BNE}){
+            long total = takenCounts[operation] + notTakenCounts[operation];
+            report.append(String.format("  %-8s taken %12d  not taken %12d  (%.1f%% taken)%n",
+                    Instruction.operationName(operation), takenCounts[operation], notTakenCounts[operation],
+                    total == 0 ? 0.0 : 100.0 * takenCounts[operation] / total));
+        }
+
+        report.append(String.format("%nsyscalls:%n"));
+        for(int code = 0; code <= MAX_SYSCALL_CODE; code++){
+            if(syscallCounts[code] > 0){
+                report.append(String.format("  %-8s %14d%n", code == MAX_SYSCALL_CODE ? "other" : "$v0=" + code,
+                        syscallCounts[code]));
+            }
+        }
+
+        report.append(String.format("%nhottest PCs:%n"));
+        int length = Math.min(text.length(), pcCounts.length);
+        Integer[] pcs = new Integer[length];
+        for(int i = 0; i < length; i++){
+            pcs[i] = i;
+        }
+        Arrays.sort(pcs, (a, b) -> Long.compare(pcCounts[b], pcCounts[a]));
+        for(int i = 0; i < Math.min(HOT_PC_ROWS, length) && pcCounts[pcs[i]] > 0; i++){
+            appendLine(report, text, pcs[i]);
+        }
+
+        report.append(String.format("%nannotated disassembly:%n"));
+        for(int pc = 0; pc < text.length(); pc++){
+            appendLine(report, text, pc);
+        }
+        return report.toString();
+    }
+
+    //count  percent  address  disassembly
+    private void appendLine(StringBuilder report, TextSegment text, int pc){
+        long count = getPcCount(pc);
+        report.append(String.format("  %14d %6.2f%%  %08x  %s%n", count, percent(count),
+                0x00400000 + (pc << 2), text.get(pc)));
+    }
+
+    private double percent(long count){
+        return instructions == 0 ? 0.0 : 100.0 * count / instructions;
+    }
+}
@@ -0,0 +1,410 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/*
+Directory of parsed program images, named by the SHA-256 of the .text and
+.data files they came from, so a program that is run again is mapped in
+instead of parsed. Hex text is the only thing worth caching: decoding is lazy
+(see TextSegment) and blocks are built as they first run (see BlockCache),
+and .bin images are already used in place, so a pair of .bin files skips the cache.
+So do programs under MIN_CACHED_BYTES, which parse faster than an entry is found.
+
+Whatever is in the directory is loaded as the program, so it must belong to
+the user and not be writable by anyone else. The default is under the
+user's home rather than the shared temp directory for the same reason.
+
+Entries are written to a temp file in the same directory and moved into
+place atomically, so parallel runs, in this process or others, only ever see
+whole entries. Two runs that miss on the same program both write it, and the
+last move wins with the same contents. An entry deleted while mapped stays
+readable through the mapping.
+Hits touch the entry's modified time. After each store the oldest entries
+are deleted until the directory fits in maxBytes.
+
+Hashing the files costs about as much as parsing them, so loading files
+first looks for an index file named by the SHA-256 of both files' paths,
+sizes, modified times and file keys, which holds the key of their entry.
+A hit through the index reads neither file. Like make, this trusts the
+modified time, so the index is only written for files that have not
+changed for a while, and an edit in the same clock tick as the last run
+is still caught by hashing.
+
+Entry format, little endian so it maps straight onto the IntBuffers:
+    "MIPSPRG1"
+    32 bytes    SHA-256 key, checked against the name
+    int         .text words
+    int         .data words
+    ints        .text words, then .data words
+Index files, ending in .key, hold just the 32 byte key.
+Anything else in the directory that ends in .prg or .key and does not match
+is treated as a miss and replaced.
+ */
+public class ProgramCache {
+    static final byte[] MAGIC = "MIPSPRG1".getBytes(StandardCharsets.US_ASCII);
+    private static final int KEY_BYTES = 32;
+    private static final int HEADER_BYTES = MAGIC.length + KEY_BYTES + 8;
+    private static final String SUFFIX = ".prg";
+    private static final String INDEX_SUFFIX = ".key";
+    //Files modified more recently than this are not put in the index
+    private static final long INDEX_SETTLE_MILLIS = 2000;
+    public static final long DEFAULT_MAX_BYTES = 256L << 20;
+    //Smaller programs parse in well under the millisecond a lookup takes
+    static final long MIN_CACHED_BYTES = 256 << 10;
+    //Temp files this old were left by a run that died before moving them
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    /*
+    Parsed words of one program, and whether they came from the cache
+     */
+    public static class Program {
+        public final IntBuffer text;
+        public final IntBuffer data;
+        public final boolean hit;
+
+        Program(IntBuffer text, IntBuffer data, boolean hit) {
+            this.text = text;
+            this.data = data;
+            this.hit = hit;
+        }
+    }
+
+    /*
+    Throws if directory cannot be created, or belongs to another user or
+    can be written to by other users
+     */
+    public ProgramCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if(posix && !Files.exists(directory)){
+            Files.createDirectories(directory,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        }
+        else{
+            Files.createDirectories(directory);
+        }
+        checkPrivate(directory, posix);
+    }
+
+    private static void checkPrivate(Path directory, boolean posix) throws IOException {
+        UserPrincipal user = directory.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        UserPrincipal owner = Files.getOwner(directory);
+        if(!owner.equals(user)){
+            throw new IOException(directory + " belongs to " + owner.getName() + ", not " + user.getName());
+        }
+        if(posix){
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+            if(permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    || permissions.contains(PosixFilePermission.OTHERS_WRITE)){
+                throw new IOException(directory + " can be written to by other users");
+            }
+        }
+    }
+
+    /*
+    Shared by every run of this user unless told otherwise
+     */
+    static Path defaultDirectory(){
+        return Paths.get(System.getProperty("user.home"), ".cache", "mips-program-cache");
+    }
+
+    /*
+    Same as ProgramLoader.read() for both files, from the cache when they have
+    been seen before. Errors reading the program itself are thrown, while a
+    cache that cannot be written to only costs the parse.
+     */
+    public Program load(Path textFile, Path dataFile, ByteOrder binaryOrder) throws IOException {
+        String textName = textFile.toString();
+        String dataName = dataFile.toString();
+        boolean textBinary = textName.endsWith(".bin");
+        boolean dataBinary = dataName.endsWith(".bin");
+        //Same order as MIPSSimulator.loadFiles, so a missing file is reported the same way
+        BasicFileAttributes dataAttributes = Files.readAttributes(dataFile, BasicFileAttributes.class);
+        BasicFileAttributes textAttributes = Files.readAttributes(textFile, BasicFileAttributes.class);
+        if(textBinary && dataBinary || textAttributes.size() + dataAttributes.size() < MIN_CACHED_BYTES){
+            return new Program(ProgramLoader.read(textFile, false, binaryOrder),
+                    ProgramLoader.read(dataFile, true, binaryOrder), false);
+        }
+        byte[] indexKey = indexKey(textFile, textAttributes, dataFile, dataAttributes, binaryOrder);
+        Path index = directory.resolve(toHex(indexKey) + INDEX_SUFFIX);
+        byte[] key = readIndex(index);
+        if(key != null){
+            Program cached = read(entry(key), key);
+            if(cached != null){
+                SimulatorMetrics.get().programCacheHits.increment();
+                return cached;
+            }
+        }
+
+        ByteBuffer data = map(dataFile);
+        ByteBuffer text = map(textFile);
+        key = key(text, textBinary, data, dataBinary, binaryOrder);
+        Path entry = entry(key);
+        Program program = read(entry, key);
+        boolean stored = program != null;
+        if(program != null){
+            SimulatorMetrics.get().programCacheHits.increment();
+        }
+        else{
+            program = new Program(ProgramLoader.parse(text, textName, false, binaryOrder),
+                    ProgramLoader.parse(data, dataName, true, binaryOrder), false);
+        }
+        try{
+            if(!stored){
+                write(entry, key, program.text, program.data);
+            }
+            long settled = System.currentTimeMillis() - INDEX_SETTLE_MILLIS;
+            if(textAttributes.lastModifiedTime().toMillis() < settled
+                    && dataAttributes.lastModifiedTime().toMillis() < settled){
+                writeAtomically(index, ByteBuffer.wrap(key));
+            }
+            if(!stored){
+                evict();
+            }
+        }
+        catch(IOException e){
+            //Only the next run loses out
+        }
+        return program;
+    }
+
+    private Path entry(byte[] key){
+        return directory.resolve(toHex(key) + SUFFIX);
+    }
+
+    private static MappedByteBuffer map(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /*
+    SHA-256 over everything that changes the parsed words: the format version,
+    both files' contents and which of them are .bin, and the .bin byte order
+     */
+    private static byte[] key(ByteBuffer text, boolean textBinary, ByteBuffer data, boolean dataBinary,
+                              ByteOrder binaryOrder){
+        MessageDigest digest = sha256();
+        digest.update(MAGIC);
+        digest.update((byte)((textBinary ? 1 : 0) | (dataBinary ? 2 : 0)
+                | (binaryOrder == ByteOrder.BIG_ENDIAN ? 4 : 0)));
+        //The length keeps the text/data boundary from moving without changing the hash
+        digest.update(ByteBuffer.allocate(8).putLong(text.remaining()).flip());
+        digest.update(text.duplicate());
+        digest.update(data.duplicate());
+        return digest.digest();
+    }
+
+    /*
+    SHA-256 of where both files are and when they last changed
+     */
+    private static byte[] indexKey(Path textFile, BasicFileAttributes textAttributes, Path dataFile,
+                                   BasicFileAttributes dataAttributes, ByteOrder binaryOrder){
+        StringBuilder description = new StringBuilder(new String(MAGIC, StandardCharsets.US_ASCII));
+        description.append('\n').append(binaryOrder);
+        describe(description, textFile, textAttributes);
+        describe(description, dataFile, dataAttributes);
+        MessageDigest digest = sha256();
+        return digest.digest(description.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void describe(StringBuilder description, Path file, BasicFileAttributes attributes){
+        description.append('\n').append(file.toAbsolutePath().normalize())
+                .append('\n').append(attributes.size())
+                .append('\n').append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS))
+                .append('\n').append(attributes.fileKey());
+    }
+
+    //The key an index file holds, or null
+    private static byte[] readIndex(Path index){
+        try{
+            byte[] key = Files.readAllBytes(index);
+            if(key.length != KEY_BYTES){
+                return null;
+            }
+            Files.setLastModifiedTime(index, FileTime.fromMillis(System.currentTimeMillis()));
+            return key;
+        }
+        catch(IOException e){
+            //Not indexed yet, or evicted
+            return null;
+        }
+    }
+
+    /*
+    The entry's words, mapped. Null when there is no entry or it does not check out.
+     */
+    private static Program read(Path entry, byte[] key){
+        ByteBuffer bytes;
+        try{
+            bytes = map(entry).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        catch(IOException e){
+            //Not cached yet, or evicted
+            return null;
+        }
+        if(bytes.limit() < HEADER_BYTES){
+            return null;
+        }
+        byte[] magic = new byte[MAGIC.length];
+        byte[] entryKey = new byte[KEY_BYTES];
+        bytes.get(0, magic).get(MAGIC.length, entryKey);
+        int textLength = bytes.getInt(MAGIC.length + KEY_BYTES);
+        int dataLength = bytes.getInt(MAGIC.length + KEY_BYTES + 4);
+        if(!Arrays.equals(magic, MAGIC) || !Arrays.equals(entryKey, key) || textLength < 0 || dataLength < 0
+                || bytes.limit() != HEADER_BYTES + 4L * textLength + 4L * dataLength){
+            return null;
+        }
+        try{
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        }
+        catch(IOException e){
+            //Evicted in the meantime, the mapping still holds the words
+        }
+        IntBuffer words = bytes.position(HEADER_BYTES).slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        IntBuffer text = words.duplicate().limit(textLength).slice();
+        IntBuffer data = words.duplicate().position(textLength).slice();
+        return new Program(text, data, true);
+    }
+
+    private static MessageDigest sha256(){
+        try{
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e){
+            //Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void write(Path entry, byte[] key, IntBuffer textWords, IntBuffer dataWords) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).put(key).putInt(textWords.remaining()).putInt(dataWords.remaining()).flip();
+        writeAtomically(entry, header, toBytes(textWords), toBytes(dataWords));
+    }
+
+    /*
+    Write a temp file next to file and move it into place
+     */
+    private void writeAtomically(Path file, ByteBuffer... contents) throws IOException {
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try{
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)){
+                for(ByteBuffer bytes : contents){
+                    writeFully(channel, bytes);
+                }
+            }
+            try{
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch(AtomicMoveNotSupportedException e){
+                //Not on one file system after all. Leave it to a run that can store it whole.
+            }
+        }
+        finally{
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static ByteBuffer toBytes(IntBuffer words){
+        ByteBuffer bytes = ByteBuffer.allocate(words.remaining() * 4).order(ByteOrder.LITTLE_ENDIAN);
+        bytes.asIntBuffer().put(words.duplicate());
+        return bytes;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bytes) throws IOException {
+        while(bytes.hasRemaining()){
+            channel.write(bytes);
+        }
+    }
+
+    /*
+    Delete least recently used entries until the rest fit in maxBytes, and temp
+    files left behind by runs that died. Other runs may be evicting at the same
+    time, so entries that are already gone are skipped.
+     */
+    void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        List<FileTime> times = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        long total = 0;
+        long now = System.currentTimeMillis();
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)){
+            for(Path file : stream){
+                String name = file.getFileName().toString();
+                try{
+                    FileTime time = Files.getLastModifiedTime(file);
+                    if(name.endsWith(".tmp") && now - time.toMillis() > STALE_TEMP_MILLIS){
+                        Files.deleteIfExists(file);
+                    }
+                    else if(name.endsWith(SUFFIX) || name.endsWith(INDEX_SUFFIX)){
+                        long size = Files.size(file);
+                        entries.add(file);
+                        times.add(time);
+                        sizes.add(size);
+                        total += size;
+                    }
+                }
+                catch(NoSuchFileException e){
+                    //Evicted by someone else
+                }
+            }
+        }
+        if(total <= maxBytes){
+            return;
+        }
+        Integer[] order = new Integer[entries.size()];
+        for(int i = 0; i < order.length; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(times::get));
+        for(int i = 0; i < order.length && total > maxBytes; i++){
+            try{
+                Files.deleteIfExists(entries.get(order[i]));
+            }
+            catch(IOException e){
+                //Still mapped on a platform that will not delete it, try the next one
+                continue;
+            }
+            total -= sizes.get(order[i]);
+        }
+    }
+
+    private static String toHex(byte[] bytes){
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes){
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
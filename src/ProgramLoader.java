@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/*
+Reads .text and .data files without Scanner or regex.
+Two formats are accepted:
+    hex text   - one 8 digit hex word per line, as dumped by MARS
+    binary     - a raw image of 32 bit words, for files ending in .bin
+Both are read through a memory mapped FileChannel.
+ */
+public class ProgramLoader {
+    private ProgramLoader() {
+    }
+
+    /*
+    Read the words of a .text or .data file.
+    For .data in hex format, reading stops after the first 00000000 word,
+    which holds the last null terminator.
+    binaryOrder is the byte order of .bin images.
+     */
+    public static IntBuffer read(Path file, boolean isData, ByteOrder binaryOrder) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return parse(bytes, file.toString(), isData, binaryOrder);
+        }
+    }
+
+    /*
+    Same as read() for a file's contents that are already in memory, e.g. sent
+    over a socket. name is only used for its extension and in errors.
+     */
+    public static IntBuffer parse(ByteBuffer bytes, String name, boolean isData, ByteOrder binaryOrder) throws IOException {
+        if(name.endsWith(".bin")){
+            //The image is used in place. Words are only copied once, into simulator memory.
+            return bytes.order(binaryOrder).asIntBuffer();
+        }
+        return parseHex(bytes, isData, name);
+    }
+
+    /*
+    Byte level hex parser. Whitespace separates words, anything else that
+    is not a hex digit is an error.
+     */
+    private static IntBuffer parseHex(ByteBuffer bytes, boolean isData, String file) throws IOException {
+        int[] words = new int[Math.max(16, bytes.limit() / 9)];
+        int count = 0;
+        int word = 0;
+        int digits = 0;
+        int limit = bytes.limit();
+        for(int i = 0; i <= limit; i++){
+            //Treat the end of the file as one last separator
+            int ch = i < limit ? bytes.get(i) : '\n';
+            int value;
+            if(ch >= '0' && ch <= '9'){
+                value = ch - '0';
+            }
+            else if(ch >= 'a' && ch <= 'f'){
+                value = ch - 'a' + 10;
+            }
+            else if(ch >= 'A' && ch <= 'F'){
+                value = ch - 'A' + 10;
+            }
+            else if(ch == '\n' || ch == '\r' || ch == ' ' || ch == '\t'){
+                if(digits > 0){
+                    if(count == words.length){
+                        words = Arrays.copyOf(words, count * 2);
+                    }
+                    words[count] = word;
+                    ++count;
+                    if(isData && word == 0){
+                        break;
+                    }
+                    word = 0;
+                    digits = 0;
+                }
+                continue;
+            }
+            else{
+                throw new IOException(file + ": bad hex character at byte " + i);
+            }
+            if(digits == 8){
+                throw new IOException(file + ": word longer than 8 hex digits at byte " + i);
+            }
+            word = (word << 4) | value;
+            ++digits;
+        }
+        return IntBuffer.wrap(words, 0, count).slice();
+    }
+}
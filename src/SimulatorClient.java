@@ -0,0 +1,144 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Runs a program on a SimulatorServer instead of in this JVM. Takes the same
+arguments as Main and prints the same output.
+Options the server does not handle (profiling, checkpoints, harts, tracing,
+off-heap memory) make the client run Main in this JVM instead.
+stdin is read to the end and sent with the request when it is piped in.
+A console is not read, so interactive programs should use Main.
+ */
+public class SimulatorClient {
+    private SimulatorClient() {
+    }
+
+    /*
+    Usage: SimulatorClient [--socket=PATH | --port=N] [--interpret] [--jit-threshold=N] [--big-endian]
+                           [--budget=N] [--time-limit=MS] [--timing] <.text file> <.data file>
+     */
+    public static void main(String[] args) throws Exception {
+        SocketAddress address = UnixDomainSocketAddress.of(SimulatorServer.defaultSocket());
+        SimulatorServer.Request request = new SimulatorServer.Request();
+        boolean timing = false;
+        boolean local = false;
+        List<String> mainArgs = new ArrayList<>();
+        List<String> files = new ArrayList<>();
+        for(String arg : args){
+            if(SimulatorServer.parseAddress(arg) != null){
+                address = SimulatorServer.parseAddress(arg);
+                continue;
+            }
+            mainArgs.add(arg);
+            if(arg.equals("--interpret")){
+                request.jitEnabled = false;
+            }
+            else if(arg.startsWith("--jit-threshold=")){
+                request.jitThreshold = Integer.parseInt(arg.substring("--jit-threshold=".length()));
+            }
+            else if(arg.equals("--big-endian")){
+                request.bigEndian = true;
+            }
+            else if(arg.startsWith("--budget=")){
+                request.instructionBudget = Long.parseLong(arg.substring("--budget=".length()));
+            }
+            else if(arg.startsWith("--time-limit=")){
+                request.timeLimitMillis = Long.parseLong(arg.substring("--time-limit=".length()));
+                mainArgs.remove(mainArgs.size() - 1);
+            }
+            else if(arg.equals("--timing")){
+                timing = true;
+            }
+            else if(arg.startsWith("--")){
+                //Something only Main can do
+                local = true;
+            }
+            else{
+                files.add(arg);
+            }
+        }
+        if(local){
+            Main.main(mainArgs.toArray(new String[0]));
+            return;
+        }
+        if(files.size() != 2){
+            System.err.println("Usage: SimulatorClient [--socket=PATH | --port=N] [Main options] <.text file> <.data file>");
+            return;
+        }
+        //Same order and message as MIPSSimulator.loadFiles
+        try{
+            request.dataName = files.get(1);
+            request.data = Files.readAllBytes(Paths.get(files.get(1)));
+            request.textName = files.get(0);
+            request.text = Files.readAllBytes(Paths.get(files.get(0)));
+        }
+        catch(NoSuchFileException e){
+            System.out.println("Data file not found");
+        }
+        catch(IOException e){
+            System.out.println("Could not read program: " + e.getMessage());
+        }
+        if(System.console() == null){
+            request.stdin = System.in.readAllBytes();
+        }
+        run(address, request, timing);
+    }
+
+    private static void run(SocketAddress address, SimulatorServer.Request request, boolean timing) throws IOException {
+        try(SocketChannel channel = address instanceof UnixDomainSocketAddress
+                ? SocketChannel.open(StandardProtocolFamily.UNIX) : SocketChannel.open()){
+            channel.connect(address);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.write(out);
+            out.flush();
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            byte[] buffer = new byte[8192];
+            while(true){
+                int type = in.readUnsignedByte();
+                if(type == SimulatorServer.OUTPUT){
+                    int length = in.readInt();
+                    if(buffer.length < length){
+                        buffer = Arrays.copyOf(buffer, length);
+                    }
+                    in.readFully(buffer, 0, length);
+                    System.out.write(buffer, 0, length);
+                    System.out.flush();
+                }
+                else if(type == SimulatorServer.EXIT){
+                    int exitCode = in.readInt();
+                    long instructions = in.readLong();
+                    long loadNanos = in.readLong();
+                    long runNanos = in.readLong();
+                    System.out.println(Main.finishMessage(exitCode));
+                    if(timing){
+                        System.err.printf("load: %.3f ms, run: %.3f ms, %d instructions%n",
+                                loadNanos / 1e6, runNanos / 1e6, instructions);
+                    }
+                    return;
+                }
+                else if(type == SimulatorServer.ERROR){
+                    System.out.flush();
+                    System.err.println("Run failed on the server: " + in.readUTF());
+                    return;
+                }
+                else{
+                    throw new IOException("Bad response from server: frame type " + type);
+                }
+            }
+        }
+    }
+}
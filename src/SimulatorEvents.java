@@ -0,0 +1,80 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/*
+Java Flight Recorder events for simulator runs. Record with e.g.
+    java -XX:StartFlightRecording=filename=sim.jfr Main ...
+When no recording has them enabled, begin() and shouldCommit() cost next
+to nothing and the event objects are never allocated once the JIT removes
+them, so they are emitted unconditionally.
+ */
+public final class SimulatorEvents {
+    private SimulatorEvents() {
+    }
+
+    @Name("mips.ProgramLoad")
+    @Label("Program Load")
+    @Category({"MIPS Simulator"})
+    @Description("Reading and decoding a .text/.data pair")
+    @StackTrace(false)
+    public static class ProgramLoad extends Event {
+        @Label("Text File")
+        String textFile;
+        @Label("Data File")
+        String dataFile;
+        @Label("Text Words")
+        int textWords;
+        @Label("Data Words")
+        int dataWords;
+    }
+
+    @Name("mips.Syscall")
+    @Label("Syscall")
+    @Category({"MIPS Simulator"})
+    @Description("One guest syscall, including time blocked on input")
+    @StackTrace(false)
+    public static class Syscall extends Event {
+        @Label("Code")
+        @Description("Value of $v0")
+        int code;
+        @Label("Instructions Retired")
+        long instructions;
+    }
+
+    @Name("mips.Run")
+    @Label("Run")
+    @Category({"MIPS Simulator"})
+    @Description("A program run from start to exit, budget or the end of .text")
+    @StackTrace(false)
+    public static class Run extends Event {
+        @Label("Instructions Retired")
+        long instructions;
+        @Label("Exit Code")
+        int exitCode;
+        @Label("Dropped Off Bottom")
+        boolean droppedOffBottom;
+        @Label("JIT Enabled")
+        boolean jitEnabled;
+    }
+
+    @Name("mips.BlockCompile")
+    @Label("Block Compile")
+    @Category({"MIPS Simulator"})
+    @Description("Translation of a hot basic block to a hidden class")
+    @StackTrace(false)
+    public static class BlockCompile extends Event {
+        @Label("Start PC")
+        int startPc;
+        @Label("Instructions")
+        int length;
+        @Label("Class Bytes")
+        int classBytes;
+        @Label("Shared")
+        @Description("Reused from the process wide cache instead of translated")
+        boolean shared;
+    }
+}
@@ -0,0 +1,165 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+Process wide counters and latency histograms for every simulator in the JVM.
+Updates are LongAdder increments so simulators on many threads do not
+contend. Readable through JMX after registerMBean(), or as text via getSummary().
+ */
+public final class SimulatorMetrics implements SimulatorMetricsMXBean {
+    public static final String OBJECT_NAME = "mips:type=SimulatorMetrics";
+    private static final SimulatorMetrics INSTANCE = new SimulatorMetrics();
+
+    final LongAdder programsLoaded = new LongAdder();
+    final LongAdder programCacheHits = new LongAdder();
+    final LongAdder runs = new LongAdder();
+    final LongAdder runsDroppedOffBottom = new LongAdder();
+    final LongAdder runsOverBudget = new LongAdder();
+    final LongAdder instructionsRetired = new LongAdder();
+    final LongAdder syscalls = new LongAdder();
+    final LongAdder blocksCompiled = new LongAdder();
+    final Histogram loadLatency = new Histogram();
+    final Histogram runLatency = new Histogram();
+    final Histogram compileLatency = new Histogram();
+
+    private SimulatorMetrics() {
+    }
+
+    public static SimulatorMetrics get(){
+        return INSTANCE;
+    }
+
+    /*
+    Register with the platform MBean server so jconsole or any JMX client
+    can read the metrics. Safe to call more than once.
+     */
+    public static void registerMBean(){
+        try{
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if(!server.isRegistered(name)){
+                server.registerMBean(INSTANCE, name);
+            }
+        }
+        catch(JMException e){
+            throw new IllegalStateException("Could not register " + OBJECT_NAME, e);
+        }
+    }
+
+    public long getProgramsLoaded(){
+        return programsLoaded.sum();
+    }
+
+    //Loads that came out of a ProgramCache without parsing
+    public long getProgramCacheHits(){
+        return programCacheHits.sum();
+    }
+
+    public long getRuns(){
+        return runs.sum();
+    }
+
+    public long getRunsDroppedOffBottom(){
+        return runsDroppedOffBottom.sum();
+    }
+
+    public long getRunsOverBudget(){
+        return runsOverBudget.sum();
+    }
+
+    public long getInstructionsRetired(){
+        return instructionsRetired.sum();
+    }
+
+    public long getSyscalls(){
+        return syscalls.sum();
+    }
+
+    public long getBlocksCompiled(){
+        return blocksCompiled.sum();
+    }
+
+    public long[] getLoadLatencyHistogram(){
+        return loadLatency.snapshot();
+    }
+
+    public long[] getRunLatencyHistogram(){
+        return runLatency.snapshot();
+    }
+
+    public long[] getCompileLatencyHistogram(){
+        return compileLatency.snapshot();
+    }
+
+    public String getSummary(){
+        StringBuilder summary = new StringBuilder();
+        summary.append(String.format("programs loaded:       %d (%d from the program cache)%n", getProgramsLoaded(),
+                getProgramCacheHits()));
+        summary.append(String.format("runs:                  %d (%d dropped off bottom, %d over budget)%n",
+                getRuns(), getRunsDroppedOffBottom(), getRunsOverBudget()));
+        summary.append(String.format("instructions retired:  %d%n", getInstructionsRetired()));
+        summary.append(String.format("syscalls:              %d%n", getSyscalls()));
+        summary.append(String.format("blocks compiled:       %d%n", getBlocksCompiled()));
+        summary.append(String.format("load latency:          %s%n", loadLatency.describe()));
+        summary.append(String.format("run latency:           %s%n", runLatency.describe()));
+        summary.append(String.format("compile latency:       %s%n", compileLatency.describe()));
+        return summary.toString();
+    }
+
+    /*
+    Log2 bucketed latency histogram in nanoseconds
+     */
+    static final class Histogram {
+        private static final int BUCKETS = 64;
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for(int i = 0; i < BUCKETS; i++){
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos){
+            long value = Math.max(0, nanos);
+            buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+        }
+
+        long[] snapshot(){
+            long[] counts = new long[BUCKETS];
+            for(int i = 0; i < BUCKETS; i++){
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        //count, mean and the bucket upper bound holding the median and 99th percentile
+        String describe(){
+            long[] counts = snapshot();
+            long count = 0;
+            for(long bucket : counts){
+                count += bucket;
+            }
+            if(count == 0){
+                return "no samples";
+            }
+            return String.format("n=%d mean=%.3f ms p50<%.3f ms p99<%.3f ms", count, sum.sum() / 1e6 / count,
+                    percentile(counts, count, 0.50) / 1e6, percentile(counts, count, 0.99) / 1e6);
+        }
+
+        private static double percentile(long[] counts, long count, double fraction){
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++){
+                seen += counts[i];
+                if(seen >= fraction * count){
+                    return i == 0 ? 0 : Math.pow(2, i);
+                }
+            }
+            return Math.pow(2, counts.length);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+JMX view of SimulatorMetrics, registered as mips:type=SimulatorMetrics.
+Latency histograms are arrays of counts, where bucket i holds samples
+in [2^(i-1), 2^i) nanoseconds and bucket 0 holds zero.
+ */
+public interface SimulatorMetricsMXBean {
+    long getProgramsLoaded();
+
+    long getProgramCacheHits();
+
+    long getRuns();
+
+    long getRunsDroppedOffBottom();
+
+    long getRunsOverBudget();
+
+    long getInstructionsRetired();
+
+    long getSyscalls();
+
+    long getBlocksCompiled();
+
+    long[] getLoadLatencyHistogram();
+
+    long[] getRunLatencyHistogram();
+
+    long[] getCompileLatencyHistogram();
+
+    String getSummary();
+}
@@ -0,0 +1,376 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+/*
+Keeps one warmed up JVM running programs sent over a local socket, so short
+runs do not pay for JVM startup, class loading and a cold JIT every time.
+Compiled blocks are also shared between jobs through the BlockCompiler cache.
+Listens on a Unix domain socket by default, or on a loopback TCP port.
+Each connection carries one job, run on a fresh MIPSSimulator by a fixed pool
+of threads. Output is streamed back while the program runs.
+Connections are only accepted while fewer than the queue limit are running
+or waiting, so under load clients wait in the listen backlog instead of
+piling up in memory. SimulatorClient is the matching client.
+
+Protocol, all in DataOutputStream encoding:
+    request   "MIPSRUN1", then for .text and .data: UTF file name, int length, bytes,
+              then int length and bytes of stdin, boolean JIT, int JIT threshold (0 default),
+              boolean big endian .bin images, long instruction budget, long time limit ms (0 none).
+              Each length is at most MAX_FIELD_BYTES.
+    response  frames, each a byte type then its body:
+              OUTPUT  int length, bytes of program output
+              EXIT    int exit code as from run(), long instructions, long load nanos, long run nanos
+              ERROR   UTF message, when the request was bad, the program could not be
+                      parsed or the run threw. Ends the response like EXIT.
+ */
+public class SimulatorServer {
+    static final byte[] MAGIC = "MIPSRUN1".getBytes(StandardCharsets.US_ASCII);
+    static final int OUTPUT = 'O';
+    static final int EXIT = 'X';
+    static final int ERROR = 'E';
+    //Largest .text, .data or stdin a request may carry, so one request cannot use up the heap
+    static final int MAX_FIELD_BYTES = 64 << 20;
+    //Time limits are checked between slices of this many instructions
+    private static final long TIME_SLICE = 1_000_000;
+
+    private final ServerSocketChannel server;
+    private final ExecutorService executor;
+    private final Semaphore permits;
+
+    /*
+    One run request
+     */
+    static class Request {
+        String textName = "";
+        byte[] text = new byte[0];
+        String dataName = "";
+        byte[] data = new byte[0];
+        byte[] stdin = new byte[0];
+        boolean jitEnabled = true;
+        int jitThreshold;
+        boolean bigEndian;
+        long instructionBudget = Long.MAX_VALUE;
+        long timeLimitMillis;
+
+        void write(DataOutputStream out) throws IOException {
+            out.write(MAGIC);
+            out.writeUTF(textName);
+            writeBytes(out, text);
+            out.writeUTF(dataName);
+            writeBytes(out, data);
+            writeBytes(out, stdin);
+            out.writeBoolean(jitEnabled);
+            out.writeInt(jitThreshold);
+            out.writeBoolean(bigEndian);
+            out.writeLong(instructionBudget);
+            out.writeLong(timeLimitMillis);
+        }
+
+        static Request read(DataInputStream in) throws IOException {
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if(!Arrays.equals(magic, MAGIC)){
+                throw new IOException("Not a run request");
+            }
+            Request request = new Request();
+            request.textName = in.readUTF();
+            request.text = readBytes(in);
+            request.dataName = in.readUTF();
+            request.data = readBytes(in);
+            request.stdin = readBytes(in);
+            request.jitEnabled = in.readBoolean();
+            request.jitThreshold = in.readInt();
+            request.bigEndian = in.readBoolean();
+            request.instructionBudget = in.readLong();
+            request.timeLimitMillis = in.readLong();
+            return request;
+        }
+
+        private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static byte[] readBytes(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if(length < 0 || length > MAX_FIELD_BYTES){
+                throw new IOException("Bad length " + length + ", the limit is " + MAX_FIELD_BYTES + " bytes");
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    /*
+    Bind to address, a UnixDomainSocketAddress or an InetSocketAddress.
+    threads jobs run at once, and at most queue connections are taken in at a time.
+     */
+    public SimulatorServer(SocketAddress address, int threads, int queue) throws IOException {
+        if(address instanceof UnixDomainSocketAddress){
+            Path socket = ((UnixDomainSocketAddress)address).getPath();
+            if(Files.exists(socket)){
+                if(isListening(address)){
+                    throw new IOException("A server is already listening on " + socket);
+                }
+                //A socket file left by a server that did not shut down cleanly
+                Files.deleteIfExists(socket);
+            }
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        }
+        else{
+            server = ServerSocketChannel.open();
+        }
+        server.bind(address, queue);
+        executor = Executors.newFixedThreadPool(threads);
+        permits = new Semaphore(Math.max(threads, queue));
+    }
+
+    //Whether something accepts connections on a Unix domain socket
+    private static boolean isListening(SocketAddress address){
+        try(SocketChannel probe = SocketChannel.open(StandardProtocolFamily.UNIX)){
+            probe.connect(address);
+            return true;
+        }
+        catch(IOException e){
+            return false;
+        }
+    }
+
+    /*
+    Accept and run jobs until the server is closed
+     */
+    public void serve() throws IOException, InterruptedException {
+        while(true){
+            permits.acquire();
+            SocketChannel client;
+            try{
+                client = server.accept();
+            }
+            catch(IOException e){
+                permits.release();
+                throw e;
+            }
+            executor.execute(() -> {
+                try(SocketChannel channel = client){
+                    handle(channel);
+                }
+                catch(IOException e){
+                    //The client went away, nothing to report to
+                }
+                finally{
+                    permits.release();
+                }
+            });
+        }
+    }
+
+    public void close() throws IOException {
+        server.close();
+        executor.shutdownNow();
+    }
+
+    private void handle(SocketChannel channel) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+        Request request;
+        try{
+            request = Request.read(in);
+        }
+        catch(EOFException e){
+            //The client went away mid request, or was only probing for a server
+            return;
+        }
+        catch(IOException e){
+            out.writeByte(ERROR);
+            out.writeUTF("Bad request: " + e.getMessage());
+            out.flush();
+            return;
+        }
+        OutputStream programOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte)b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.writeByte(OUTPUT);
+                out.writeInt(length);
+                out.write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                out.flush();
+            }
+        };
+        StreamSyscallIO io = new StreamSyscallIO(new ByteArrayInputStream(request.stdin), programOutput);
+        try{
+            MIPSSimulator sim = new MIPSSimulator();
+            sim.setJitEnabled(request.jitEnabled);
+            if(request.jitEnabled && request.jitThreshold > 0){
+                sim.setJitThreshold(request.jitThreshold);
+            }
+            sim.setSyscallIO(io);
+            long loadStart = System.nanoTime();
+            try{
+                load(sim, request);
+            }
+            catch(IOException e){
+                //Not the connection's fault, so reported to the client rather than thrown
+                throw new UncheckedIOException("Could not read program: " + e.getMessage(), e);
+            }
+            long loadNanos = System.nanoTime() - loadStart;
+            long runStart = System.nanoTime();
+            int exitCode = run(sim, request);
+            long runNanos = System.nanoTime() - runStart;
+            io.flush();
+            out.writeByte(EXIT);
+            out.writeInt(exitCode);
+            out.writeLong(sim.getInstructionCount());
+            out.writeLong(loadNanos);
+            out.writeLong(runNanos);
+        }
+        catch(UncheckedIOException e){
+            io.flush();
+            out.writeByte(ERROR);
+            out.writeUTF(e.getMessage());
+        }
+        catch(RuntimeException e){
+            io.flush();
+            out.writeByte(ERROR);
+            out.writeUTF(e.toString());
+        }
+        out.flush();
+    }
+
+    /*
+    Same as MIPSSimulator.readFiles for images sent in the request:
+    an image that cannot be parsed is thrown and ends the job with an ERROR frame
+     */
+    private static void load(MIPSSimulator sim, Request request) throws IOException {
+        ByteOrder order = request.bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+        IntBuffer dataWords = ProgramLoader.parse(ByteBuffer.wrap(request.data), request.dataName, true, order);
+        IntBuffer textWords = ProgramLoader.parse(ByteBuffer.wrap(request.text), request.textName, false, order);
+        sim.loadProgram(textWords, dataWords);
+    }
+
+    /*
+    Run to the end, the budget or the time limit. Over the time limit the
+    result is EXIT_KILLED_WALL_TIME.
+     */
+    private static int run(MIPSSimulator sim, Request request){
+        if(request.timeLimitMillis <= 0){
+            sim.setInstructionLimit(request.instructionBudget);
+            return sim.run();
+        }
+        long deadline = System.nanoTime() + request.timeLimitMillis * 1_000_000L;
+        while(true){
+            long remaining = request.instructionBudget - sim.getInstructionCount();
+            sim.setInstructionLimit(sim.getInstructionCount() + Math.min(TIME_SLICE, remaining));
+            int exitCode = sim.run();
+            if(exitCode != MIPSSimulator.EXIT_INSTRUCTION_LIMIT
+                    || sim.getInstructionCount() >= request.instructionBudget){
+                return exitCode;
+            }
+            if(System.nanoTime() >= deadline){
+                return MIPSSimulator.EXIT_KILLED_WALL_TIME;
+            }
+        }
+    }
+
+    /*
+    Where server and client meet unless told otherwise
+     */
+    static Path defaultSocket(){
+        return Paths.get(System.getProperty("java.io.tmpdir"), "mips-simulator.sock");
+    }
+
+    /*
+    --socket=PATH or --port=N, or the default socket. Returns null for other arguments.
+     */
+    static SocketAddress parseAddress(String arg){
+        if(arg.startsWith("--socket=")){
+            return UnixDomainSocketAddress.of(arg.substring("--socket=".length()));
+        }
+        if(arg.startsWith("--port=")){
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                    Integer.parseInt(arg.substring("--port=".length())));
+        }
+        return null;
+    }
+
+    /*
+    Usage: SimulatorServer [--socket=PATH | --port=N] [--threads=N] [--queue=N]
+    --threads jobs run at once (default one per CPU), --queue connections are
+    taken in at a time (default 4 per thread).
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        SocketAddress address = UnixDomainSocketAddress.of(defaultSocket());
+        int threads = Runtime.getRuntime().availableProcessors();
+        int queue = 0;
+        for(String arg : args){
+            if(parseAddress(arg) != null){
+                address = parseAddress(arg);
+            }
+            else if(arg.startsWith("--threads=")){
+                threads = Integer.parseInt(arg.substring("--threads=".length()));
+            }
+            else if(arg.startsWith("--queue=")){
+                queue = Integer.parseInt(arg.substring("--queue=".length()));
+            }
+            else{
+                System.err.println("Usage: SimulatorServer [--socket=PATH | --port=N] [--threads=N] [--queue=N]");
+                return;
+            }
+        }
+        SimulatorServer server;
+        try{
+            server = new SimulatorServer(address, threads, queue > 0 ? queue : threads * 4);
+        }
+        catch(IOException e){
+            System.err.println("Could not start server: " + e.getMessage());
+            return;
+        }
+        if(address instanceof UnixDomainSocketAddress){
+            Path socket = ((UnixDomainSocketAddress)address).getPath();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try{
+                    Files.deleteIfExists(socket);
+                }
+                catch(IOException e){
+                    //Left for the next server to remove
+                }
+            }));
+        }
+        System.err.println("listening on " + address);
+        server.serve();
+    }
+}
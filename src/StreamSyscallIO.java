@@ -0,0 +1,204 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.InputMismatchException;
+import java.util.NoSuchElementException;
+
+/*
+Buffered syscall I/O over a pair of streams. This is the default, over
+System.in and System.out.
+Output is collected in a char buffer and written out when it reaches the
+flush threshold, before a read, and when the program exits.
+Input is read one byte at a time from the stream, so nothing beyond the
+integer is consumed. System.in is already buffered, so this stays cheap.
+ */
+public class StreamSyscallIO implements SyscallIO {
+    public static final int DEFAULT_FLUSH_THRESHOLD = 8192;
+
+    private final InputStream in;
+    private final Writer out;
+    private final boolean ownsStreams;
+    private final char[] buffer;
+    private int buffered;
+    private final String lineSeparator = System.lineSeparator();
+    //Bytes of input consumed so far
+    private long inputPosition;
+
+    public StreamSyscallIO(InputStream in, OutputStream out) {
+        this(in, out, DEFAULT_FLUSH_THRESHOLD, false);
+    }
+
+    public StreamSyscallIO(InputStream in, OutputStream out, int flushThreshold, boolean ownsStreams) {
+        this.in = in;
+        this.out = new OutputStreamWriter(out);
+        this.ownsStreams = ownsStreams;
+        this.buffer = new char[Math.max(16, flushThreshold)];
+    }
+
+    /*
+    Console I/O. The console streams are never closed.
+     */
+    public static StreamSyscallIO console(){
+        return new StreamSyscallIO(System.in, System.out);
+    }
+
+    /*
+    Read input from one file and write output to another.
+    Input may be null for programs that never read.
+     */
+    public static StreamSyscallIO forFiles(Path input, Path output) throws IOException {
+        InputStream in = input == null ? InputStream.nullInputStream()
+                : new BufferedInputStream(Files.newInputStream(input));
+        OutputStream out = new BufferedOutputStream(Files.newOutputStream(output));
+        return new StreamSyscallIO(in, out, DEFAULT_FLUSH_THRESHOLD, true);
+    }
+
+    public long getInputPosition(){
+        return inputPosition;
+    }
+
+    /*
+    Discard input up to position, e.g. what a checkpointed run had already read.
+    Stops early at the end of input.
+     */
+    public void skipInputTo(long position){
+        while(inputPosition < position){
+            if(readByte() == -1){
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void printInt(int value){
+        //Longest int is 11 characters
+        if(buffered + 11 + lineSeparator.length() > buffer.length){
+            drain();
+        }
+        long remaining = value;
+        if(remaining < 0){
+            buffer[buffered] = '-';
+            ++buffered;
+            remaining = -remaining;
+        }
+        int start = buffered;
+        do{
+            buffer[buffered] = (char)('0' + remaining % 10);
+            ++buffered;
+            remaining /= 10;
+        } while(remaining != 0);
+        //Digits were written lowest first
+        for(int i = start, j = buffered - 1; i < j; i++, j--){
+            char swap = buffer[i];
+            buffer[i] = buffer[j];
+            buffer[j] = swap;
+        }
+        for(int i = 0; i < lineSeparator.length(); i++){
+            buffer[buffered] = lineSeparator.charAt(i);
+            ++buffered;
+        }
+    }
+
+    @Override
+    public void printChar(int ch){
+        if(buffered == buffer.length){
+            drain();
+        }
+        buffer[buffered] = (char)ch;
+        ++buffered;
+    }
+
+    /*
+    Same rules as Scanner.nextInt: skip whitespace, then an optional sign and digits.
+     */
+    @Override
+    public int readInt(){
+        //Anything printed so far is usually the prompt
+        flush();
+        int ch = readByte();
+        while(ch != -1 && Character.isWhitespace(ch)){
+            ch = readByte();
+        }
+        if(ch == -1){
+            throw new NoSuchElementException("No integer left in input");
+        }
+        boolean negative = false;
+        if(ch == '-' || ch == '+'){
+            negative = ch == '-';
+            ch = readByte();
+        }
+        long value = 0;
+        int digits = 0;
+        while(ch >= '0' && ch <= '9'){
+            value = value * 10 + (ch - '0');
+            if(value > 2147483648L){
+                throw new InputMismatchException("Integer out of range");
+            }
+            ++digits;
+            ch = readByte();
+        }
+        if(negative){
+            value = -value;
+        }
+        if(digits == 0 || (ch != -1 && !Character.isWhitespace(ch)) || value > Integer.MAX_VALUE){
+            throw new InputMismatchException("Input is not an integer");
+        }
+        return (int)value;
+    }
+
+    @Override
+    public void flush(){
+        drain();
+        try{
+            out.flush();
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close(){
+        flush();
+        if(ownsStreams){
+            try{
+                in.close();
+                out.close();
+            }
+            catch(IOException e){
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    //Hand the buffered chars to the writer without flushing it
+    private void drain(){
+        try{
+            out.write(buffer, 0, buffered);
+            buffered = 0;
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int readByte(){
+        try{
+            int ch = in.read();
+            if(ch != -1){
+                ++inputPosition;
+            }
+            return ch;
+        }
+        catch(IOException e){
+            throw new UncheckedIOException(e);
+        }
+    }
+}
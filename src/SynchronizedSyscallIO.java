@@ -0,0 +1,37 @@
+/*
+Lets several harts share one SyscallIO. Each call holds a lock, so ints and
+characters are never torn, but output from different harts can interleave
+between calls.
+ */
+public class SynchronizedSyscallIO implements SyscallIO {
+    private final SyscallIO io;
+
+    public SynchronizedSyscallIO(SyscallIO io) {
+        this.io = io;
+    }
+
+    @Override
+    public synchronized void printInt(int value){
+        io.printInt(value);
+    }
+
+    @Override
+    public synchronized void printChar(int ch){
+        io.printChar(ch);
+    }
+
+    @Override
+    public synchronized int readInt(){
+        return io.readInt();
+    }
+
+    @Override
+    public synchronized void flush(){
+        io.flush();
+    }
+
+    @Override
+    public synchronized void close(){
+        io.close();
+    }
+}
@@ -0,0 +1,20 @@
+/*
+Where syscalls send output and get input from.
+Implementations may buffer output. flush() is called before reading input
+and when the program exits, so prompts still show up in time.
+ */
+public interface SyscallIO {
+    //print int syscall. Prints the value followed by a newline.
+    void printInt(int value);
+
+    //One character of a print string syscall
+    void printChar(int ch);
+
+    //read int syscall. Reads the next whitespace separated integer.
+    int readInt();
+
+    void flush();
+
+    //Flush and release anything the implementation opened itself
+    void close();
+}
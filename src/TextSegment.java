@@ -0,0 +1,91 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/*
+The .text segment as raw words, sized to the program, with each word decoded
+into an Instruction the first time it is fetched.
+Loading only copies ints, so a big program pays to decode just the code it runs.
+A write into .text replaces the word and drops its decoded Instruction.
+The Debugger patches breakpoint traps straight into the decoded entries.
+Forks and harts share one TextSegment and may fetch from it on different
+threads, so decoded entries are published with release/acquire.
+Changing words is only done by the simulator that owns the segment (see
+MIPSSimulator.codeWritten, which copies a shared segment first).
+ */
+public class TextSegment {
+    private static final VarHandle DECODED = MethodHandles.arrayElementVarHandle(Instruction[].class);
+
+    private final int[] words;
+    //Null until first fetched
+    private final Instruction[] decoded;
+
+    public TextSegment(int[] words) {
+        this.words = words;
+        this.decoded = new Instruction[words.length];
+    }
+
+    private TextSegment(int[] words, Instruction[] decoded) {
+        this.words = words;
+        this.decoded = decoded;
+    }
+
+    public int length(){
+        return words.length;
+    }
+
+    public int getWord(int pc){
+        return words[pc];
+    }
+
+    /*
+    Decoded instruction at pc, decoding it on first use.
+    Two threads may both decode the same word. Both get equal instructions.
+     */
+    public Instruction get(int pc){
+        Instruction inst = (Instruction)DECODED.getAcquire(decoded, pc);
+        if(inst == null){
+            inst = new Instruction(words[pc]);
+            DECODED.setRelease(decoded, pc, inst);
+        }
+        return inst;
+    }
+
+    /*
+    Replace the word at pc. It is decoded again on the next fetch.
+     */
+    public void set(int pc, int word){
+        words[pc] = word;
+        DECODED.setRelease(decoded, pc, (Instruction)null);
+    }
+
+    /*
+    Put inst in place of the decoded word at pc, leaving the word itself alone.
+    Lasts until the word is set again.
+     */
+    public void patch(int pc, Instruction inst){
+        DECODED.setRelease(decoded, pc, inst);
+    }
+
+    //Number of words decoded so far
+    public int getDecodedCount(){
+        int count = 0;
+        for(int pc = 0; pc < decoded.length; pc++){
+            if(DECODED.getAcquire(decoded, pc) != null){
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    /*
+    Private copy to change without affecting anyone sharing this one.
+    Instructions already decoded are kept, they are immutable once built.
+     */
+    public TextSegment copy(){
+        Instruction[] decodedCopy = new Instruction[decoded.length];
+        for(int pc = 0; pc < decoded.length; pc++){
+            decodedCopy[pc] = (Instruction)DECODED.getAcquire(decoded, pc);
+        }
+        return new TextSegment(words.clone(), decodedCopy);
+    }
+}
@@ -0,0 +1,260 @@
+/*
+Cycle estimate for a classic in-order 5-stage MIPS pipeline (IF ID EX MEM WB)
+with L1 instruction and data caches, fed one instruction at a time.
+MIPSSimulator only calls into this from its modeled loop, which is picked
+once per run(), so runs without a model carry none of it.
+
+The pipeline retires one instruction per cycle after 4 cycles to fill it,
+with full forwarding. On top of that it stalls for:
+    load-use   the instruction right after lw/ll reads the loaded register: 1 cycle
+    branch     a taken beq/bne, resolved in EX behind predict not taken: branchPenalty cycles
+    jump       j, resolved in ID: 1 cycle
+    i-cache    an instruction fetch that misses: missPenalty cycles
+    d-cache    a lw/sw/ll/sc that misses: missPenalty cycles
+Caches are set associative with LRU replacement, and stores allocate lines
+like loads do. Tags and LRU stamps are flat primitive arrays indexed by
+set * ways + way.
+ */
+public class TimingModel {
+    //Where .text starts, for instruction fetch addresses
+    private static final int TEXT_BASE = 0x00400000;
+    private static final int PIPELINE_FILL = 4;
+    private static final int JUMP_PENALTY = 1;
+    private static final int LOAD_USE_PENALTY = 1;
+    public static final int DEFAULT_MISS_PENALTY = 20;
+    public static final int DEFAULT_BRANCH_PENALTY = 2;
+
+    private final Cache instructionCache;
+    private final Cache dataCache;
+    private final int missPenalty;
+    private final int branchPenalty;
+    private long instructions;
+    private long loadUseStalls;
+    private long branchStalls;
+    private long jumpStalls;
+    private long instructionCacheStalls;
+    private long dataCacheStalls;
+    //Register the previous instruction loaded into, 0 if it was not a load
+    private int pendingLoad;
+
+    /*
+    One level of cache. size, ways and lineSize are in bytes and must be powers of two.
+     */
+    public static class Cache {
+        private final int size;
+        private final int ways;
+        private final int lineSize;
+        private final int lineBits;
+        private final int setMask;
+        //Line number + 1 per way, 0 when empty
+        private final int[] tags;
+        //Access clock of the last use per way. The smallest in a set is evicted.
+        private final long[] stamps;
+        private long clock;
+        //A repeat access to the most recent line is a hit that changes no LRU order,
+        //so it skips the lookup. Straight line fetches mostly end here.
+        private int lastLine = -1;
+        private long accesses;
+        private long misses;
+
+        public Cache(int size, int ways, int lineSize) {
+            if(Integer.bitCount(size) != 1 || Integer.bitCount(ways) != 1 || Integer.bitCount(lineSize) != 1
+                    || lineSize < 4 || size < ways * lineSize){
+                throw new IllegalArgumentException("Cache size " + size + ", ways " + ways + ", line size " + lineSize
+                        + " must be powers of two with room for one set");
+            }
+            this.size = size;
+            this.ways = ways;
+            this.lineSize = lineSize;
+            this.lineBits = Integer.numberOfTrailingZeros(lineSize);
+            this.setMask = size / (ways * lineSize) - 1;
+            this.tags = new int[size / lineSize];
+            this.stamps = new long[size / lineSize];
+        }
+
+        /*
+        Look up the line holding address, filling it on a miss.
+        Returns whether it hit.
+         */
+        boolean access(int address){
+            ++accesses;
+            int line = address >>> lineBits;
+            if(line == lastLine){
+                return true;
+            }
+            lastLine = line;
+            ++clock;
+            int tag = line + 1;
+            int first = (line & setMask) * ways;
+            int victim = first;
+            for(int i = first; i < first + ways; i++){
+                if(tags[i] == tag){
+                    stamps[i] = clock;
+                    return true;
+                }
+                if(stamps[i] < stamps[victim]){
+                    victim = i;
+                }
+            }
+            ++misses;
+            tags[victim] = tag;
+            stamps[victim] = clock;
+            return false;
+        }
+
+        public long getAccesses(){
+            return accesses;
+        }
+
+        public long getMisses(){
+            return misses;
+        }
+
+        public double getHitRate(){
+            return accesses == 0 ? 0.0 : 1.0 - (double)misses / accesses;
+        }
+
+        @Override
+        public String toString(){
+            String capacity = size >= 1024 ? size / 1024 + " KiB" : size + " B";
+            return String.format("%s %d-way %d B lines", capacity, ways, lineSize);
+        }
+    }
+
+    /*
+    Default machine: 16 KiB 2-way L1I and 16 KiB 4-way L1D with 32 byte lines
+     */
+    public TimingModel() {
+        this(new Cache(16384, 2, 32), new Cache(16384, 4, 32), DEFAULT_MISS_PENALTY, DEFAULT_BRANCH_PENALTY);
+    }
+
+    public TimingModel(Cache instructionCache, Cache dataCache, int missPenalty, int branchPenalty) {
+        this.instructionCache = instructionCache;
+        this.dataCache = dataCache;
+        this.missPenalty = missPenalty;
+        this.branchPenalty = branchPenalty;
+    }
+
+    /*
+    One instruction entering the pipeline. address is the effective address
+    of lw/sw/ll/sc, taken before the instruction ran, and ignored for the rest.
+     */
+    void instruction(int pc, Instruction inst, int address){
+        ++instructions;
+        if(!instructionCache.access(TEXT_BASE + (pc << 2))){
+            instructionCacheStalls += missPenalty;
+        }
+        if(pendingLoad != 0 && reads(inst, pendingLoad)){
+            loadUseStalls += LOAD_USE_PENALTY;
+        }
+        pendingLoad = 0;
+        switch(inst.getOperation()){
+            case Instruction.OP_LW:
+            case Instruction.OP_LL:
+                pendingLoad = inst.getRt();
+                accessData(address);
+                break;
+            case Instruction.OP_SW:
+            case Instruction.OP_SC:
+                accessData(address);
+                break;
+            case Instruction.OP_J:
+                jumpStalls += JUMP_PENALTY;
+                break;
+        }
+    }
+
+    private void accessData(int address){
+        if(!dataCache.access(address)){
+            dataCacheStalls += missPenalty;
+        }
+    }
+
+    //The beq or bne just passed to instruction() was taken
+    void branchTaken(){
+        branchStalls += branchPenalty;
+    }
+
+    //Whether inst reads register, which is not $zero
+    private static boolean reads(Instruction inst, int register){
+        switch(inst.getOperation()){
+            case Instruction.OP_ADD:
+            case Instruction.OP_AND:
+            case Instruction.OP_OR:
+            case Instruction.OP_SLT:
+            case Instruction.OP_SUB:
+            case Instruction.OP_SW:
+            case Instruction.OP_SC:
+            case Instruction.OP_BEQ:
+            case Instruction.OP_BNE:
+                return inst.getRs() == register || inst.getRt() == register;
+            case Instruction.OP_ADDIU:
+            case Instruction.OP_ANDI:
+            case Instruction.OP_ORI:
+            case Instruction.OP_LW:
+            case Instruction.OP_LL:
+                return inst.getRs() == register;
+            case Instruction.OP_SYSCALL:
+                //$v0 picks the call and $a0 is its argument
+                return register == 2 || register == 4;
+            default:
+                return false;
+        }
+    }
+
+    public long getInstructions(){
+        return instructions;
+    }
+
+    public long getStallCycles(){
+        return loadUseStalls + branchStalls + jumpStalls + instructionCacheStalls + dataCacheStalls;
+    }
+
+    public long getCycles(){
+        return instructions == 0 ? 0 : instructions + PIPELINE_FILL + getStallCycles();
+    }
+
+    public double getCpi(){
+        return instructions == 0 ? 0.0 : (double)getCycles() / instructions;
+    }
+
+    public Cache getInstructionCache(){
+        return instructionCache;
+    }
+
+    public Cache getDataCache(){
+        return dataCache;
+    }
+
+    /*
+    Text report: cycles and CPI, where the stall cycles went, and how each cache did
+     */
+    public String report(){
+        StringBuilder report = new StringBuilder();
+        long cycles = getCycles();
+        report.append(String.format("cycles: %d for %d instructions, CPI %.3f%n", cycles, instructions, getCpi()));
+
+        report.append(String.format("%nstalls:%n"));
+        appendStall(report, "load-use", loadUseStalls, cycles);
+        appendStall(report, "branch", branchStalls, cycles);
+        appendStall(report, "jump", jumpStalls, cycles);
+        appendStall(report, "i-cache", instructionCacheStalls, cycles);
+        appendStall(report, "d-cache", dataCacheStalls, cycles);
+        appendStall(report, "total", getStallCycles(), cycles);
+
+        report.append(String.format("%ncaches (miss penalty %d cycles):%n", missPenalty));
+        appendCache(report, "L1I", instructionCache);
+        appendCache(report, "L1D", dataCache);
+        return report.toString();
+    }
+
+    private static void appendStall(StringBuilder report, String name, long stalls, long cycles){
+        report.append(String.format("  %-8s %14d cycles %6.2f%%%n", name, stalls,
+                cycles == 0 ? 0.0 : 100.0 * stalls / cycles));
+    }
+
+    private static void appendCache(StringBuilder report, String name, Cache cache){
+        report.append(String.format("  %-4s %-22s accesses %12d  misses %10d  hit rate %6.2f%%%n", name, cache,
+                cache.getAccesses(), cache.getMisses(), 100.0 * cache.getHitRate()));
+    }
+}
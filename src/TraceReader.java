@@ -0,0 +1,179 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Streams a trace written by TraceWriter back out as text, one line per instruction:
+    stream  address  [$reg=value]  [load|store [address]=word]
+Records of different streams (harts) come out in the order their frames were
+written, each stream in program order.
+ */
+public class TraceReader {
+    private final InputStream in;
+    //Decoder state of every stream, the same as the writer's
+    private final Map<Integer, StreamState> streams = new HashMap<>();
+    private final char[] line = new char[80];
+
+    private static class StreamState {
+        int lastPc = -1;
+        final int[] lastRegisters = new int[32];
+        int lastAddress;
+    }
+
+    public TraceReader(InputStream in) {
+        this.in = in;
+    }
+
+    /*
+    Write the whole trace to out as text. Returns the number of records.
+     */
+    public long toText(Writer out) throws IOException {
+        byte[] magic = in.readNBytes(TraceWriter.MAGIC.length);
+        if(!Arrays.equals(magic, TraceWriter.MAGIC)){
+            throw new IOException("Not a trace file");
+        }
+        long records = 0;
+        while(true){
+            int first = in.read();
+            if(first < 0){
+                return records;
+            }
+            int stream = readVarint(first);
+            int length = readVarint(readByte());
+            StreamState state = streams.computeIfAbsent(stream, s -> new StreamState());
+            byte[] payload = in.readNBytes(length);
+            if(payload.length != length){
+                //The writer was cut off mid frame
+                throw new EOFException("Trace ends inside a frame");
+            }
+            Payload bytes = new Payload(payload);
+            while(bytes.position < payload.length){
+                writeRecord(stream, state, bytes, out);
+                ++records;
+            }
+        }
+    }
+
+    private void writeRecord(int stream, StreamState state, Payload bytes, Writer out) throws IOException {
+        int pc = state.lastPc + 1 + bytes.zigZag();
+        state.lastPc = pc;
+        int flags = bytes.next();
+        int length = 0;
+        length = putDecimal(stream, length);
+        line[length++] = ' ';
+        length = putHex(0x00400000 + (pc << 2), length);
+        int value = 0;
+        if((flags & TraceWriter.FLAG_REG) != 0){
+            int register = flags & TraceWriter.REGISTER_MASK;
+            value = state.lastRegisters[register] + bytes.zigZag();
+            state.lastRegisters[register] = value;
+            line[length++] = ' ';
+            line[length++] = '$';
+            length = putDecimal(register, length);
+            line[length++] = '=';
+            length = putHex(value, length);
+        }
+        if((flags & (TraceWriter.FLAG_LOAD | TraceWriter.FLAG_STORE)) != 0){
+            int address = state.lastAddress + bytes.zigZag();
+            state.lastAddress = address;
+            int word = value + bytes.zigZag();
+            String kind = (flags & TraceWriter.FLAG_LOAD) != 0 ? " load [" : " store [";
+            kind.getChars(0, kind.length(), line, length);
+            length += kind.length();
+            length = putHex(address, length);
+            line[length++] = ']';
+            line[length++] = '=';
+            length = putHex(word, length);
+        }
+        line[length++] = '\n';
+        out.write(line, 0, length);
+    }
+
+    private int putHex(int value, int length){
+        for(int shift = 28; shift >= 0; shift -= 4){
+            line[length++] = Character.forDigit((value >>> shift) & 15, 16);
+        }
+        return length;
+    }
+
+    private int putDecimal(int value, int length){
+        String digits = Integer.toString(value);
+        digits.getChars(0, digits.length(), line, length);
+        return length + digits.length();
+    }
+
+    private int readByte() throws IOException {
+        int b = in.read();
+        if(b < 0){
+            throw new EOFException("Trace ends inside a frame header");
+        }
+        return b;
+    }
+
+    private int readVarint(int first) throws IOException {
+        int value = first & 0x7f;
+        int b = first;
+        for(int shift = 7; (b & 0x80) != 0; shift += 7){
+            b = readByte();
+            value |= (b & 0x7f) << shift;
+        }
+        return value;
+    }
+
+    //One frame's payload being decoded
+    private static class Payload {
+        private final byte[] bytes;
+        private int position;
+
+        Payload(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        int next(){
+            return bytes[position++] & 0xff;
+        }
+
+        int zigZag(){
+            int value = 0;
+            int b;
+            int shift = 0;
+            do{
+                b = next();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while((b & 0x80) != 0);
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    /*
+    Usage: TraceReader <trace file>
+    Prints the trace as text to stdout
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length != 1){
+            System.err.println("Usage: TraceReader <trace file>");
+            return;
+        }
+        Path file = Paths.get(args[0]);
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), 1 << 16)){
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.US_ASCII), 1 << 16);
+            new TraceReader(in).toText(out);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+Records execution traces to a file: for every instruction its PC, the
+register it wrote and the word lw/sw/ll/sc accessed.
+Each simulator thread fills its own Ring without locks. A background thread
+drains the rings, delta encodes and varint packs the records and writes
+them with a FileChannel, so the simulator never waits on the disk unless
+its ring fills up.
+
+File format:
+    "MIPSTRC1"
+    frames of   varint stream id, varint payload length, payload
+Each stream is one ring (one hart), and its frames hold whole records in order:
+    zigzag varint  pc - (previous pc + 1), pc as a word index into .text
+    byte           flags: register number in the low 5 bits, then REG, LOAD, STORE
+    REG:           zigzag varint  value - previous value of that register
+    LOAD/STORE:    zigzag varint  address - previous access address
+                   zigzag varint  word - register value (or - 0 without REG)
+The previous pc starts at -1 and everything else at 0, and all of them carry
+over between frames of the same stream.
+TraceReader turns a trace back into text.
+ */
+public class TraceWriter implements AutoCloseable {
+    static final byte[] MAGIC = "MIPSTRC1".getBytes(StandardCharsets.US_ASCII);
+    static final int FLAG_REG = 0x20;
+    static final int FLAG_LOAD = 0x40;
+    static final int FLAG_STORE = 0x80;
+    static final int REGISTER_MASK = 0x1f;
+    //Longest encoded record: pc, flags, register and two memory varints
+    private static final int MAX_RECORD_BYTES = 5 + 1 + 5 + 5 + 5;
+    private static final int PAYLOAD_BYTES = 1 << 16;
+    private static final long IDLE_NANOS = 1_000_000;
+
+    private final FileChannel channel;
+    private final List<Ring> rings = new CopyOnWriteArrayList<>();
+    private final Thread writerThread;
+    private volatile boolean closing;
+    private IOException failure;
+
+    public TraceWriter(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE);
+        channel.write(ByteBuffer.wrap(MAGIC));
+        writerThread = new Thread(this::drainLoop, "trace-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /*
+    A ring for one simulator thread to record into
+     */
+    public Ring newRing(){
+        Ring ring = new Ring(this, rings.size());
+        rings.add(ring);
+        return ring;
+    }
+
+    /*
+    Single producer, single consumer queue of fixed size records.
+    record() only touches the producer's own fields. The records become
+    visible to the writer at publish(), which the simulator calls once per block.
+     */
+    public static class Ring {
+        //Ints per record: pc, flags, register value, address, word
+        static final int RECORD_INTS = 5;
+        private static final int CAPACITY = 1 << 15;
+        private static final int MASK = CAPACITY - 1;
+
+        private final TraceWriter writer;
+        final int stream;
+        final int[] records = new int[CAPACITY * RECORD_INTS];
+        //Next record the writer will read, and one past the last published record
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong published = new AtomicLong();
+        //Producer side only
+        private long tail;
+        private long headSeen;
+        //Writer side only: encoder state carried between frames
+        int lastPc = -1;
+        final int[] lastRegisters = new int[32];
+        int lastAddress;
+
+        Ring(TraceWriter writer, int stream) {
+            this.writer = writer;
+            this.stream = stream;
+        }
+
+        public void record(int pc, int flags, int registerValue, int address, int word){
+            if(tail - headSeen == CAPACITY){
+                waitForSpace();
+            }
+            int i = (int)(tail & MASK) * RECORD_INTS;
+            records[i] = pc;
+            records[i + 1] = flags;
+            records[i + 2] = registerValue;
+            records[i + 3] = address;
+            records[i + 4] = word;
+            ++tail;
+        }
+
+        public void publish(){
+            published.lazySet(tail);
+            //Wake the writer early rather than let the ring fill
+            if(tail - headSeen > CAPACITY / 2){
+                headSeen = head.get();
+                if(tail - headSeen > CAPACITY / 2){
+                    LockSupport.unpark(writer.writerThread);
+                }
+            }
+        }
+
+        private void waitForSpace(){
+            published.lazySet(tail);
+            headSeen = head.get();
+            while(tail - headSeen == CAPACITY){
+                LockSupport.unpark(writer.writerThread);
+                Thread.yield();
+                headSeen = head.get();
+            }
+        }
+    }
+
+    private void drainLoop(){
+        ByteBuffer frameHeader = ByteBuffer.allocate(10);
+        ByteBuffer payload = ByteBuffer.allocateDirect(PAYLOAD_BYTES);
+        try{
+            while(true){
+                //Read closing first, so the pass after it sees everything published before close()
+                boolean last = closing;
+                boolean wrote = false;
+                for(Ring ring : rings){
+                    while(drain(ring, frameHeader, payload)){
+                        wrote = true;
+                    }
+                }
+                if(last){
+                    return;
+                }
+                if(!wrote){
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        }
+        catch(IOException e){
+            failure = e;
+            //Let producers carry on, dropping what they record
+            for(Ring ring : rings){
+                ring.head.set(Long.MAX_VALUE / 2);
+            }
+        }
+    }
+
+    /*
+    Encode and write one frame of a ring's published records.
+    Returns false if there was nothing to write.
+     */
+    private boolean drain(Ring ring, ByteBuffer frameHeader, ByteBuffer payload) throws IOException {
+        long head = ring.head.get();
+        long end = ring.published.get();
+        if(head >= end){
+            return false;
+        }
+        payload.clear();
+        int[] records = ring.records;
+        while(head < end && payload.remaining() >= MAX_RECORD_BYTES){
+            int i = (int)(head & Ring.MASK) * Ring.RECORD_INTS;
+            int pc = records[i];
+            int flags = records[i + 1];
+            putZigZag(payload, pc - (ring.lastPc + 1));
+            ring.lastPc = pc;
+            payload.put((byte)flags);
+            int base = 0;
+            if((flags & FLAG_REG) != 0){
+                int register = flags & REGISTER_MASK;
+                base = records[i + 2];
+                putZigZag(payload, base - ring.lastRegisters[register]);
+                ring.lastRegisters[register] = base;
+            }
+            if((flags & (FLAG_LOAD | FLAG_STORE)) != 0){
+                putZigZag(payload, records[i + 3] - ring.lastAddress);
+                ring.lastAddress = records[i + 3];
+                putZigZag(payload, records[i + 4] - base);
+            }
+            ++head;
+        }
+        payload.flip();
+        frameHeader.clear();
+        putVarint(frameHeader, ring.stream);
+        putVarint(frameHeader, payload.remaining());
+        frameHeader.flip();
+        ByteBuffer[] frame = {frameHeader, payload};
+        while(payload.hasRemaining()){
+            channel.write(frame);
+        }
+        ring.head.lazySet(head);
+        return true;
+    }
+
+    private static void putZigZag(ByteBuffer out, int value){
+        putVarint(out, (value << 1) ^ (value >> 31));
+    }
+
+    //7 bits per byte, low bits first, high bit set on every byte but the last
+    private static void putVarint(ByteBuffer out, int value){
+        while((value & ~0x7f) != 0){
+            out.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    /*
+    Write out everything published so far and close the file.
+    Simulators must have stopped recording.
+     */
+    @Override
+    public void close() throws IOException {
+        closing = true;
+        LockSupport.unpark(writerThread);
+        try{
+            writerThread.join();
+        }
+        catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+        if(failure != null){
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class CheckpointTest {
+    /*
+    Reads n, then counts it down, storing each value 1 KB past the last
+    one in .data so several pages get written, and printing it.
+     */
+    private static final int[] COUNT_DOWN_STORES = {
+            0x24020005,     //addiu $v0, $zero, 5
+            0x0000000c,     //syscall
+            0x00404025,     //or $t0, $v0, $zero
+            0x3c091001,     //lui $t1, 0x1001
+            0xad280000,     //loop: sw $t0, 0($t1)
+            0x25290400,     //addiu $t1, $t1, 1024
+            0x24020001,     //addiu $v0, $zero, 1
+            0x01002025,     //or $a0, $t0, $zero
+            0x0000000c,     //syscall
+            0x2508ffff,     //addiu $t0, $t0, -1
+            0x1500fff9,     //bne $t0, $zero, loop
+            0x2402000a,     //addiu $v0, $zero, 10
+            0x0000000c      //syscall
+    };
+    private static final String INPUT = "20\n";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void resumedRunMatchesUninterruptedRun() throws IOException {
+        ByteArrayOutputStream expectedOutput = new ByteArrayOutputStream();
+        MIPSSimulator uninterrupted = load(expectedOutput);
+        uninterrupted.loadProgram(COUNT_DOWN_STORES, new int[0]);
+        assertEquals(0, uninterrupted.run());
+
+        //Two frames, so the resumed memory comes from a full frame and a dirty page frame
+        Path file = directory.resolve("run.ckpt");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        MIPSSimulator first = load(output);
+        first.loadProgram(COUNT_DOWN_STORES, new int[0]);
+        try(Checkpoint.Writer writer = new Checkpoint.Writer(file, false)){
+            first.setInstructionLimit(40);
+            assertEquals(MIPSSimulator.EXIT_INSTRUCTION_LIMIT, first.run());
+            first.writeCheckpoint(writer);
+            first.setInstructionLimit(90);
+            assertEquals(MIPSSimulator.EXIT_INSTRUCTION_LIMIT, first.run());
+            first.writeCheckpoint(writer);
+        }
+
+        MIPSSimulator resumed = load(output);
+        resumed.resume(file);
+        assertEquals(0, resumed.run());
+
+        assertEquals(expectedOutput.toString(StandardCharsets.UTF_8), output.toString(StandardCharsets.UTF_8));
+        assertEquals(uninterrupted.getInstructionCount(), resumed.getInstructionCount());
+        assertEquals(uninterrupted.getProgramCounter(), resumed.getProgramCounter());
+        for(int i = 0; i < 32; i++){
+            assertEquals(uninterrupted.getRegister(i), resumed.getRegister(i), "register " + i);
+        }
+        Memory expectedMemory = uninterrupted.getMemory();
+        Memory memory = resumed.getMemory();
+        int[] pages = expectedMemory.getPageNumbers(false);
+        assertArrayEquals(pages, memory.getPageNumbers(false));
+        for(int page : pages){
+            assertArrayEquals(expectedMemory.getPage(page), memory.getPage(page), "page " + page);
+        }
+    }
+
+    private static MIPSSimulator load(ByteArrayOutputStream output){
+        MIPSSimulator sim = new MIPSSimulator();
+        sim.setSyscallIO(new StreamSyscallIO(new ByteArrayInputStream(INPUT.getBytes(StandardCharsets.US_ASCII)), output));
+        return sim;
+    }
+}
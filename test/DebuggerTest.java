@@ -0,0 +1,48 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class DebuggerTest {
+    //addiu $t0, $zero, 3; loop: addiu $t0, $t0, -1; bne $t0, $zero, loop; addiu $v0, $zero, 10; syscall
+    private static final int[] COUNTDOWN = {0x24080003, 0x2508ffff, 0x1500fffe, 0x2402000a, 0x0000000c};
+    private static final int LOOP_ADDRESS = 0x00400004;
+    //addiu $v0, $zero, 4; lui $at, 0x1001; ori $a0, $at, 0; syscall; addiu $v0, $zero, 10; syscall
+    private static final int[] PRINT_STRING = {0x24020004, 0x3c011001, 0x34240000, 0x0000000c, 0x2402000a, 0x0000000c};
+    //"Hi"
+    private static final int[] GREETING = {0x00006948};
+    private static final int DATA_ADDRESS = 0x10010000;
+
+    @Test
+    public void clearedBreakpointNoLongerStops(){
+        MIPSSimulator sim = new MIPSSimulator();
+        sim.loadProgram(COUNTDOWN, new int[0]);
+        Debugger debugger = new Debugger(sim);
+        debugger.setBreakpoint(LOOP_ADDRESS, null);
+
+        assertEquals(MIPSSimulator.EXIT_BREAKPOINT, debugger.cont());
+        assertEquals(1, sim.getProgramCounter());
+        //The second hit comes through the branch back to the loop, into a block that ends at the trap
+        assertEquals(MIPSSimulator.EXIT_BREAKPOINT, debugger.cont());
+        assertEquals(1, sim.getProgramCounter());
+
+        debugger.clearBreakpoint(LOOP_ADDRESS);
+        assertEquals(0, debugger.cont());
+        assertEquals(0, sim.getRegister(8));
+    }
+
+    @Test
+    public void watchpointStopsRightAfterSyscall(){
+        MIPSSimulator sim = new MIPSSimulator();
+        MemorySyscallIO io = new MemorySyscallIO("");
+        sim.setSyscallIO(io);
+        sim.loadProgram(PRINT_STRING, GREETING);
+        Debugger debugger = new Debugger(sim);
+        debugger.setWatchpoint(DATA_ADDRESS, 4);
+
+        //Print string reads the watched word inside the syscall that ends the block
+        assertEquals(MIPSSimulator.EXIT_BREAKPOINT, debugger.cont());
+        assertEquals(4, sim.getProgramCounter());
+        assertEquals(4, sim.getInstructionCount());
+        assertEquals(4, sim.getRegister(2));
+    }
+}
@@ -0,0 +1,41 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class DisassemblerTest {
+    //Every opcode and funct, then random words. More than one chunk, so the parallel path runs.
+    private static final int WORD_COUNT = 200_000;
+
+    @Test
+    public void matchesInstructionToString() throws IOException, InterruptedException {
+        int[] words = new int[WORD_COUNT];
+        int count = 0;
+        for(int opcode = 0; opcode < 64; opcode++){
+            words[count++] = opcode << 26 | 0x0123abcd;
+        }
+        for(int funct = 0; funct < 64; funct++){
+            words[count++] = 0x012a4000 | 0x7c0 | funct;
+        }
+        words[count++] = 0x0000000c;
+        Random random = new Random(17);
+        while(count < words.length){
+            words[count++] = random.nextInt();
+        }
+
+        StringBuilder expected = new StringBuilder();
+        for(int word : words){
+            expected.append(new Instruction(word)).append('\n');
+        }
+        for(int threads : new int[]{1, 4}){
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            new Disassembler(threads).disassemble(IntBuffer.wrap(words), out);
+            assertEquals(expected.toString(), out.toString(StandardCharsets.US_ASCII), threads + " threads");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+public class FusionTest {
+    /*
+    Uses every superinstruction. Adds 3 to $t1 while counting $t0 down from 50,
+    until $t1 catches up, then prints $t1.
+     */
+    private static final int[] CATCH_UP = {
+            0x3c010000,     //lui $at, 0
+            0x34280032,     //ori $t0, $at, 50
+            0x24090000,     //addiu $t1, $zero, 0
+            0x25290003,     //loop: addiu $t1, $t1, 3
+            0x0128502a,     //slt $t2, $t1, $t0
+            0x11400002,     //beq $t2, $zero, done
+            0x2508ffff,     //addiu $t0, $t0, -1
+            0x1500fffb,     //bne $t0, $zero, loop
+            0x24020001,     //done: addiu $v0, $zero, 1
+            0x01202025,     //or $a0, $t1, $zero
+            0x0000000c,     //syscall
+            0x2402000a,     //addiu $v0, $zero, 10
+            0x0000000c      //syscall
+    };
+
+    @Test
+    public void fusedProgramMatchesUnfused(){
+        MIPSSimulator fused = run(CATCH_UP, true, "");
+        MIPSSimulator plain = run(CATCH_UP, false, "");
+        assertTrue(fused.getFusedInstructionCount() > 0);
+        assertEquals(0, plain.getFusedInstructionCount());
+        assertEquals("39\n", ((MemorySyscallIO)plain.getSyscallIO()).getOutput());
+        assertSameRun(fused, plain);
+    }
+
+    @Test
+    public void fusedTestFileMatchesUnfused() throws IOException {
+        for(String input : new String[]{"7\n", "4\n", "-3\n"}){
+            MIPSSimulator fused = load(true, input);
+            MIPSSimulator plain = load(false, input);
+            fused.readFiles("TestFiles/EvenOrOdd/EvenOrOdd.data", "TestFiles/EvenOrOdd/EvenOrOdd.text");
+            plain.readFiles("TestFiles/EvenOrOdd/EvenOrOdd.data", "TestFiles/EvenOrOdd/EvenOrOdd.text");
+            assertEquals(fused.run(), plain.run());
+            assertSameRun(fused, plain);
+        }
+    }
+
+    private static MIPSSimulator run(int[] text, boolean fusion, String input){
+        MIPSSimulator sim = load(fusion, input);
+        sim.loadProgram(text, new int[0]);
+        assertEquals(0, sim.run());
+        return sim;
+    }
+
+    //Interpreter only, so the fused and plain blocks are what actually runs
+    private static MIPSSimulator load(boolean fusion, String input){
+        MIPSSimulator sim = new MIPSSimulator();
+        sim.setJitEnabled(false);
+        sim.setFusionEnabled(fusion);
+        sim.setSyscallIO(new MemorySyscallIO(input));
+        return sim;
+    }
+
+    private static void assertSameRun(MIPSSimulator fused, MIPSSimulator plain){
+        assertArrayEquals(((MemorySyscallIO)plain.getSyscallIO()).getOutputBytes(),
+                ((MemorySyscallIO)fused.getSyscallIO()).getOutputBytes());
+        assertEquals(plain.getInstructionCount(), fused.getInstructionCount());
+        assertEquals(plain.getProgramCounter(), fused.getProgramCounter());
+        for(int i = 0; i < 32; i++){
+            assertEquals(plain.getRegister(i), fused.getRegister(i), "register " + i);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+public class MultiHartSimulatorTest {
+    private static final int HARTS = 4;
+    private static final int INCREMENTS = 30000;
+    private static final int COUNTER_ADDRESS = 0x10010000;
+
+    //Every hart adds 1 to the word at COUNTER_ADDRESS INCREMENTS times with ll/sc
+    private static final int[] SHARED_COUNTER = {
+            0x3c091001,                 //lui $t1, 0x1001
+            0x240a0000 | INCREMENTS,    //addiu $t2, $zero, INCREMENTS
+            0xc1280000,                 //loop: ll $t0, 0($t1)
+            0x25080001,                 //addiu $t0, $t0, 1
+            0xe1280000,                 //sc $t0, 0($t1)
+            0x1100fffc,                 //beq $t0, $zero, loop
+            0x254affff,                 //addiu $t2, $t2, -1
+            0x1540fffa,                 //bne $t2, $zero, loop
+            0x2402000a,                 //addiu $v0, $zero, 10
+            0x0000000c                  //syscall
+    };
+
+    //Harts only race when the scheduler interleaves them, so each mode runs a few times
+    @Test
+    public void llScCounterLosesNoIncrements() throws InterruptedException {
+        for(int round = 0; round < 6; round++){
+            boolean jit = round % 2 == 1;
+            MultiHartSimulator machine = new MultiHartSimulator(HARTS);
+            machine.getHart(0).setJitEnabled(jit);
+            machine.loadProgram(SHARED_COUNTER, new int[]{0});
+
+            assertArrayEquals(new int[HARTS], machine.run());
+            assertEquals(HARTS * INCREMENTS, machine.getHart(0).getMemory().loadWord(COUNTER_ADDRESS), "jit " + jit);
+        }
+    }
+}